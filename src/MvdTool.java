@@ -23,6 +23,7 @@ import java.io.File;
 import java.io.PrintStream;
 import edu.luc.nmerge.mvd.MVD;
 import edu.luc.nmerge.mvd.MVDFile;
+import edu.luc.nmerge.mvd.MVDMappedFile;
 import edu.luc.nmerge.mvd.MVDXMLFile;
 import edu.luc.nmerge.mvd.ChunkState;
 import edu.luc.nmerge.mvd.Chunk;
@@ -31,12 +32,17 @@ import edu.luc.nmerge.mvd.Match;
 import edu.luc.nmerge.mvd.Variant;
 import edu.luc.nmerge.mvd.XMLGuideFile;
 import edu.luc.nmerge.mvd.Version;
+import edu.luc.nmerge.mvd.Sketch;
+import edu.luc.nmerge.mvd.MergeOrder;
+import edu.luc.nmerge.mvd.NGramIndex;
 import edu.luc.nmerge.exception.*;
 import edu.luc.nmerge.fastme.FastME;
 import edu.luc.nmerge.Utilities;
 import java.nio.charset.Charset;
 import java.io.FileInputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.util.BitSet;
@@ -45,6 +51,14 @@ import java.util.Set;
 import java.util.Iterator;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * MvdTool: adds or removes one version to/from an mvd, and 
@@ -107,6 +121,28 @@ public class MvdTool
     static boolean mergeSharedVersions = false;
     /** do only direct alignment */
     static boolean directAlignOnly = false;
+    /** save in the uncompressed mapped format */
+    static boolean mappedFormat = false;
+    /** find MUMs with a suffix array */
+    static boolean suffixArray = false;
+    /** find with an n-gram index saved next to the MVD */
+    static boolean useIndex = false;
+    /** most edits allowed in a match during find */
+    static int maxErrors = 0;
+    /** find text matching the find string as a regular expression */
+    static boolean regexFind = false;
+    /** add versions close to an existing one by diffing them */
+    static boolean nearCopies = false;
+    /** add several versions most similar first */
+    static boolean guideOrder = false;
+    /** endings of files in a folder of witnesses that aren't texts */
+    static final String[] NOT_WITNESSES = {".mvd",".ngrams",".tmp"};
+    /** number of witness files to read ahead during a bulk add */
+    static final int READ_AHEAD = 2;
+    /** number of threads to merge with, 1 = sequential */
+    static int threads = 1;
+    /** shared pool for concurrent merging, created on demand */
+    static ExecutorService executor;
     static final byte[] UTF8_BOM = {(byte)'\357',(byte)'\273',(byte)'\277'};
 	/**
 	 * Commandline entry point
@@ -257,7 +293,8 @@ public class MvdTool
 			{
 				mvd.setDescription( description );
 				MVDFile.externalise( mvd, new File(mvdFile), folderId,
-					Utilities.loadDBProperties(dbConn) );
+					Utilities.loadDBProperties(dbConn), 
+					mappedFormat );
 			}
 		}
 		catch ( Exception e )
@@ -280,8 +317,11 @@ public class MvdTool
 			{
 				MVD mvd = (description==null)?new MVD():new MVD(description);
                 mvd.setDirectAlign( directAlignOnly );
+                mvd.setExecutor( getExecutor() );
+                mvd.setSuffixArray( suffixArray );
 				MVDFile.externalise( mvd, file, folderId, 
-					Utilities.loadDBProperties(dbConn) );
+					Utilities.loadDBProperties(dbConn), 
+					mappedFormat );
 			}
 		}
 		catch ( Exception e )
@@ -408,7 +448,13 @@ public class MvdTool
 			mvd = MVDFile.internalise( m, Utilities.loadDBProperties(dbConn) );
 		else
 			throw new FileNotFoundException( "Couldn't find "+mvdFile );
+		// keep saving in the format it was read in
+		if ( MVDMappedFile.isMapped(m) )
+			mappedFormat = true;
         mvd.setDirectAlign( directAlignOnly );
+        mvd.setExecutor( getExecutor() );
+        mvd.setSuffixArray( suffixArray );
+        mvd.setNearCopies( nearCopies );
 		return mvd;
 	}
 	/**
@@ -430,7 +476,8 @@ public class MvdTool
                 char[] chars = Utilities.bytesToChars(data, mvd.getEncoding());
 				mvd.update( version, chars, mergeSharedVersions );
 				MVDFile.externalise( mvd, new File(mvdFile), folderId,
-					Utilities.loadDBProperties(dbConn) );
+					Utilities.loadDBProperties(dbConn), 
+					mappedFormat );
 			}
 			else
 				throw new MVDToolException( "No text for replacement version");
@@ -496,6 +543,8 @@ public class MvdTool
 			if ( pattern.length > 0 )
 			{
 				MVD mvd = loadMVD();
+				if ( useIndex )
+					loadIndex( mvd );
 				BitSet bs = new BitSet();
 				if ( version == 0 )
 				{
@@ -504,7 +553,16 @@ public class MvdTool
 				}
 				else
 					bs.set( version );
-				Match[] matches = mvd.search( pattern, bs, true ); 
+				Match[] matches;
+				if ( regexFind && maxErrors > 0 )
+					throw new MVDToolException( 
+						"-E and -R can't be used together" );
+				else if ( regexFind )
+					matches = mvd.searchRegex( findString, bs );
+				else if ( maxErrors > 0 )
+					matches = mvd.search( pattern, bs, maxErrors );
+				else
+					matches = mvd.search( pattern, bs, true ); 
 				for ( int i=0;i<matches.length;i++ )
 				{
 					out.print( matches[i] );
@@ -519,6 +577,27 @@ public class MvdTool
 			throw new MVDToolException( e );
 		}
 	}
+	/**
+	 * Give an MVD the n-gram index saved next to it. If there isn't 
+	 * one or it was made for an earlier state of the MVD build a new 
+	 * one and save that.
+	 * @param mvd the MVD just loaded from mvdFile
+	 * @throws Exception if the index couldn't be read or written
+	 */
+	private static void loadIndex( MVD mvd ) throws Exception
+	{
+		File indexFile = new File( mvdFile+".ngrams" );
+		NGramIndex index = null;
+		if ( indexFile.exists() )
+			index = NGramIndex.read( indexFile, mvd );
+		if ( index == null )
+		{
+			index = mvd.getNGramIndex();
+			index.write( indexFile );
+		}
+		else
+			mvd.setNGramIndex( index );
+	}
 	/**
 	 * List the versions of an MVD
 	 * @throws MVDToolException
@@ -537,56 +616,322 @@ public class MvdTool
 		}
 	}
 	/**
-	 * Add the specified version to the MVD. Don't replace an existing 
-	 * version, so we reset the supplied version parameter to the number 
-	 * of versions+1
+	 * A version file to be added to the MVD
 	 */
-	private static void doAddVersion() throws MVDToolException
+	static class Witness
 	{
-		try
+		/** the file containing the text */
+		File file;
+		/** short name of the new version */
+		String shortName;
+		/** long name of the new version */
+		String longName;
+		/** group name of the new version */
+		String group;
+		/** id of its backup version or NO_BACKUP */
+		short backup;
+		/** the new version is partial */
+		boolean partial;
+		/**
+		 * Create a witness
+		 * @param file the file containing the text
+		 * @param shortName short name of the new version
+		 * @param longName long name of the new version
+		 * @param group group name of the new version
+		 * @param backup id of its backup version or NO_BACKUP
+		 * @param partial true if the new version is partial
+		 */
+		Witness( File file, String shortName, String longName, 
+			String group, short backup, boolean partial )
 		{
-			File t = new File( textFile );
-			if ( t.exists() )
+			this.file = file;
+			this.shortName = shortName;
+			this.longName = longName;
+			this.group = group;
+			this.backup = backup;
+			this.partial = partial;
+		}
+	}
+	/**
+	 * Work out which files the textfile argument refers to. This may 
+	 * be a single file, which gets the names given on the commandline, 
+	 * a comma-separated list of files, a folder of files, or a guide 
+	 * file as written by archive (or a folder containing one). Files 
+	 * that aren't described by a guide are named after themselves.
+	 * @param numExisting the number of versions already in the MVD, 
+	 * since a guide numbers backups from the first version it lists
+	 * @return the witnesses to add in order
+	 * @throws Exception if a file or the guide couldn't be read
+	 */
+	private static ArrayList<Witness> getWitnesses( int numExisting ) 
+		throws Exception
+	{
+		ArrayList<Witness> witnesses = new ArrayList<Witness>();
+		File t = new File( textFile );
+		File[] files = null;
+		if ( t.isDirectory() )
+		{
+			File guideFile = new File( t, XMLGuideFile.GUIDE_FILE );
+			if ( guideFile.exists() )
+				t = guideFile;
+			else
+			{
+				files = t.listFiles();
+				Arrays.sort( files );
+			}
+		}
+		else if ( textFile.indexOf(',') != -1 )
+		{
+			String[] names = textFile.split( "," );
+			files = new File[names.length];
+			for ( int i=0;i<names.length;i++ )
+				files[i] = new File( names[i].trim() );
+		}
+		if ( t.getName().equals(XMLGuideFile.GUIDE_FILE) && t.isFile() )
+		{
+			XMLGuideFile guide = XMLGuideFile.internalise( t );
+			String[] names = guide.getVersionFileNames();
+			for ( int i=0;i<names.length;i++ )
+			{
+				XMLGuideFile.VersionInfo vi = guide.getVersionInfo( 
+					(short)(i+1) );
+				short backup = vi.backup;
+				if ( backup != Version.NO_BACKUP )
+					backup += numExisting;
+				witnesses.add( new Witness(new File(t.getParentFile(),
+					names[i]), vi.shortName, vi.longName, 
+					guide.getGroupName(vi.group), backup, 
+					backup!=Version.NO_BACKUP) );
+			}
+		}
+		else if ( files != null )
+		{
+			for ( int i=0;i<files.length;i++ )
+			{
+				if ( !isWitnessFile(files[i]) )
+					continue;
+				String name = files[i].getName();
+				int dot = name.lastIndexOf( '.' );
+				witnesses.add( new Witness(files[i], 
+					(dot>0)?name.substring(0,dot):name, name, 
+					groupName, Version.NO_BACKUP, false) );
+			}
+		}
+		else
+			witnesses.add( new Witness(t, shortName, longName, 
+				groupName, (short)backup, partial) );
+		for ( int i=0;i<witnesses.size();i++ )
+		{
+			File f = witnesses.get(i).file;
+			if ( !f.isFile() )
+				throw new FileNotFoundException(
+					"Couldn't find file "+f.getAbsolutePath() );
+		}
+		return witnesses;
+	}
+	/**
+	 * Could a file in a folder of witnesses be one of them? Hidden 
+	 * files, sub-folders and the files NMerge keeps next to the texts 
+	 * (MVDs, their n-gram indices and half-written saves) are not.
+	 * @param f the file
+	 * @return true if it should be added as a version
+	 */
+	private static boolean isWitnessFile( File f )
+	{
+		if ( f.isHidden() || f.isDirectory() )
+			return false;
+		String name = f.getName();
+		for ( int i=0;i<NOT_WITNESSES.length;i++ )
+			if ( name.endsWith(NOT_WITNESSES[i]) )
+				return false;
+		return mvdFile == null 
+			|| !f.getAbsoluteFile().equals(new File(mvdFile).getAbsoluteFile());
+	}
+	/**
+	 * Read and decode a witness file in the background
+	 * @param reader the thread to read on
+	 * @param w the witness to read
+	 * @param enc the encoding of its text
+	 * @return the pending text
+	 */
+	private static Future<char[]> readAhead( ExecutorService reader, 
+		final Witness w, final String enc )
+	{
+		return reader.submit( new Callable<char[]>() {
+			public char[] call() throws Exception
 			{
-				File m = new File( mvdFile );
-				MVD mvd;
-				if ( mvdFile != null )
+				FileInputStream fis = new FileInputStream( w.file );
+				try
 				{
-					mvd = MVDFile.internalise( m, Utilities.loadDBProperties(dbConn) );
-                    mvd.setDirectAlign( directAlignOnly );
-					mvd.newVersion(shortName, longName, groupName, 
-						(short)backup, partial );
+					byte[] data = new byte[(int)w.file.length()];
+					int n,offset = 0;
+					while ( offset < data.length && (n=fis.read(data,
+						offset,data.length-offset)) > 0 )
+						offset += n;
+					return Utilities.bytesToChars( data, enc );
 				}
-				else
+				finally
 				{
-					mvd = new MVD( description );
-                    mvd.setDirectAlign( directAlignOnly );
-					mvd.newVersion( shortName, longName, groupName, 
-						(short)backup, partial );
+					fis.close();
 				}
-				FileInputStream fis = new FileInputStream( t );
-				byte[] data = new byte[(int)t.length()];
-				fis.read( data );
-				char[] chars = Utilities.bytesToChars(data,mvd.getEncoding());
-                version = (short)(mvd.numVersions());
-				mvd.update( version, chars, mergeSharedVersions );
-				if ( mvd.getDescription() != null )
+			}
+		} );
+	}
+	/**
+	 * Add the specified version, or versions, to the MVD. Don't replace 
+	 * an existing version, so we reset the supplied version parameter 
+	 * to the number of versions+1. Several versions are merged in one 
+	 * batch and the MVD is only written once at the end. While one is 
+	 * being merged the next ones are read in on another thread.
+	 */
+	private static void doAddVersion() throws MVDToolException
+	{
+		ExecutorService reader = null;
+		try
+		{
+			File m = new File( mvdFile );
+			MVD mvd;
+			if ( mvdFile != null )
+			{
+				mvd = MVDFile.internalise( m, Utilities.loadDBProperties(dbConn) );
+				if ( MVDMappedFile.isMapped(m) )
+					mappedFormat = true;
+			}
+			else
+				mvd = new MVD( description );
+            mvd.setDirectAlign( directAlignOnly );
+            mvd.setExecutor( getExecutor() );
+            mvd.setSuffixArray( suffixArray );
+            mvd.setNearCopies( nearCopies );
+			ArrayList<Witness> witnesses = getWitnesses( mvd.numVersions() );
+			reader = Executors.newSingleThreadExecutor( new ThreadFactory() {
+				public Thread newThread( Runnable r )
 				{
-					MVDFile.externalise( mvd, m, folderId, 
-						Utilities.loadDBProperties(dbConn) );
+					Thread t = new Thread( r );
+					t.setDaemon( true );
+					return t;
 				}
-				MVDError.log("Unique percentage="+mvd.getUniquePercentage(version));
-				MvdTool.out.println(mvd.getUniquePercentage(version));
+			} );
+			if ( guideOrder && witnesses.size() > 1 )
+				witnesses = orderWitnesses( mvd, witnesses, reader );
+			ArrayList<Future<char[]>> texts = new ArrayList<Future<char[]>>();
+			for ( int i=0;i<witnesses.size()&&i<=READ_AHEAD;i++ )
+				texts.add( readAhead(reader,witnesses.get(i),
+					mvd.getEncoding()) );
+			short[] added = new short[witnesses.size()];
+			mvd.beginUpdates();
+			for ( int i=0;i<witnesses.size();i++ )
+			{
+				Witness w = witnesses.get( i );
+				char[] chars = getText( texts.get(i) );
+				texts.set( i, null );
+				if ( i+READ_AHEAD+1 < witnesses.size() )
+					texts.add( readAhead(reader,
+						witnesses.get(i+READ_AHEAD+1),mvd.getEncoding()) );
+				mvd.newVersion( w.shortName, w.longName, w.group, 
+					w.backup, w.partial );
+                version = (short)(mvd.numVersions());
+				mvd.update( version, chars, mergeSharedVersions );
+				added[i] = version;
+			}
+			mvd.endUpdates();
+			if ( mvd.getDescription() != null )
+			{
+				MVDFile.externalise( mvd, m, folderId, 
+					Utilities.loadDBProperties(dbConn), 
+					mappedFormat );
+			}
+			for ( int i=0;i<added.length;i++ )
+			{
+				float unique = mvd.getUniquePercentage( added[i] );
+				MVDError.log( "Unique percentage="+unique );
+				MvdTool.out.println( unique );
 			}
-			else
-				throw new FileNotFoundException(
-					"Couldn't find file "+t.getAbsolutePath() );
 		}
 		catch ( Exception e )
 		{
 			e.printStackTrace();
 			throw new MVDToolException( e );
 		}
+		finally
+		{
+			if ( reader != null )
+				reader.shutdownNow();
+		}
+	}
+	/**
+	 * Put the witnesses in the order that merges the most similar 
+	 * texts first, using a guide tree built from sketches of the new 
+	 * and existing versions. Each file is read ahead and sketched now 
+	 * and read again when it is merged, so we never hold all the 
+	 * texts at once. Witnesses with backups keep their given order 
+	 * because the guide refers to backups by their position.
+	 * @param mvd the MVD being added to
+	 * @param witnesses the witnesses in their given order
+	 * @param reader the thread to read on
+	 * @return the witnesses in merge order
+	 * @throws Exception if a file couldn't be read
+	 */
+	private static ArrayList<Witness> orderWitnesses( MVD mvd, 
+		ArrayList<Witness> witnesses, ExecutorService reader ) 
+		throws Exception
+	{
+		for ( int i=0;i<witnesses.size();i++ )
+		{
+			if ( witnesses.get(i).backup != Version.NO_BACKUP )
+			{
+				MVDError.log( "Versions have backups: not reordering" );
+				return witnesses;
+			}
+		}
+		Sketch[] existing = new Sketch[mvd.numVersions()];
+		for ( int i=0;i<existing.length;i++ )
+			existing[i] = new Sketch( mvd.getVersion(i+1) );
+		Sketch[] incoming = new Sketch[witnesses.size()];
+		ArrayList<Future<char[]>> texts = new ArrayList<Future<char[]>>();
+		for ( int i=0;i<witnesses.size()&&i<=READ_AHEAD;i++ )
+			texts.add( readAhead(reader,witnesses.get(i),
+				mvd.getEncoding()) );
+		for ( int i=0;i<witnesses.size();i++ )
+		{
+			char[] chars = getText( texts.get(i) );
+			texts.set( i, null );
+			if ( i+READ_AHEAD+1 < witnesses.size() )
+				texts.add( readAhead(reader,
+					witnesses.get(i+READ_AHEAD+1),mvd.getEncoding()) );
+			incoming[i] = new Sketch( chars );
+		}
+		int[] order = MergeOrder.getOrder( existing, incoming );
+		ArrayList<Witness> ordered = new ArrayList<Witness>();
+		StringBuilder sb = new StringBuilder( "Merge order:" );
+		for ( int i=0;i<order.length;i++ )
+		{
+			Witness w = witnesses.get( order[i] );
+			ordered.add( w );
+			sb.append( " "+w.shortName );
+		}
+		MVDError.log( sb.toString() );
+		return ordered;
+	}
+	/**
+	 * Wait for a witness to be read
+	 * @param text the pending text
+	 * @return the text
+	 * @throws Exception if it couldn't be read
+	 */
+	private static char[] getText( Future<char[]> text ) throws Exception
+	{
+		try
+		{
+			return text.get();
+		}
+		catch ( ExecutionException e )
+		{
+			Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw (Error)cause;
+			throw (Exception)cause;
+		}
 	}
 	/**
 	 * Write out all the versions as separate files
@@ -614,13 +959,13 @@ public class MvdTool
 			int nVersions = mvd.numVersions();
 			for ( short i=1;i<=nVersions;i++ )
 			{
-				char[] data = mvd.getVersion( i );
 				// use the short name as the file name
 				String vName = mvd.getVersionShortName( i );
 				File versionFile = new File( archiveDir, vName );
                 FileOutputStream fos = new FileOutputStream( versionFile );
-				OutputStreamWriter osw = new OutputStreamWriter( fos, mvd.getEncoding() );
-				osw.write( data );
+				Writer osw = new BufferedWriter( 
+					new OutputStreamWriter(fos,mvd.getEncoding()) );
+				mvd.getVersion( i, osw );
 				osw.close();
 				guideFile.setVersionFile( i, vName );
 			}
@@ -652,9 +997,13 @@ public class MvdTool
 			XMLGuideFile guide = XMLGuideFile.internalise( guideFile );
 			MVD mvd = new MVD();
             mvd.setDirectAlign( directAlignOnly );
+            mvd.setExecutor( getExecutor() );
+            mvd.setSuffixArray( suffixArray );
+            mvd.setNearCopies( nearCopies );
 			mvd.setDescription( guide.getDescription() );
 			// go through the files, adding versions to the MVD
 			String[] files = guide.getVersionFileNames();
+			mvd.beginUpdates();
 			for ( int i=0;i<files.length;i++ )
 			{
 				short vId = (short)(i+1);
@@ -672,8 +1021,10 @@ public class MvdTool
                 char[] chars = Utilities.bytesToChars(data,mvd.getEncoding());
 				mvd.update( vId, chars, mergeSharedVersions );
 			}
+			mvd.endUpdates();
 			MVDFile.externalise( mvd, new File(mvdFile), 
-				folderId, Utilities.loadDBProperties(dbConn) );
+				folderId, Utilities.loadDBProperties(dbConn), 
+				mappedFormat );
 		}
 		catch ( Exception e )
 		{
@@ -712,7 +1063,8 @@ public class MvdTool
 			MVD mvd = loadMVD();
 			mvd.removeVersion( version );
 			MVDFile.externalise( mvd, new File(mvdFile), 
-				folderId, Utilities.loadDBProperties(dbConn) );
+				folderId, Utilities.loadDBProperties(dbConn), 
+				mappedFormat );
 		}
 		catch ( Exception e )
 		{
@@ -733,7 +1085,8 @@ public class MvdTool
 				File xml = new File( xmlFile );
 				MVD m = MVDXMLFile.internalise( xml );
 				MVDFile.externalise( m, new File(mvdFile), 
-					folderId, Utilities.loadDBProperties(dbConn) );
+					folderId, Utilities.loadDBProperties(dbConn), 
+					mappedFormat );
 			}
 		}
 		catch ( Exception e )
@@ -760,6 +1113,26 @@ public class MvdTool
 			throw new MVDToolException( e );
 		}
 	}
+	/**
+	 * Get the executor to merge with
+	 * @return a pool of daemon threads or null if merging sequentially
+	 */
+	private static ExecutorService getExecutor()
+	{
+		if ( threads > 1 && executor == null )
+		{
+			executor = Executors.newFixedThreadPool( threads, 
+				new ThreadFactory() {
+					public Thread newThread( Runnable r )
+					{
+						Thread t = new Thread( r );
+						t.setDaemon( true );
+						return t;
+					}
+				} );
+		}
+		return (threads > 1)?executor:null;
+	}
 	/**
 	 * Set defaults for unset parameters. 
 	 */
@@ -848,6 +1221,18 @@ public class MvdTool
 				}
                 else if ( key.equals("D") )
                     directAlignOnly = true;
+                else if ( key.equals("M") )
+                    mappedFormat = true;
+                else if ( key.equals("S") )
+                    suffixArray = true;
+                else if ( key.equals("r") )
+                    guideOrder = true;
+                else if ( key.equals("C") )
+                    nearCopies = true;
+                else if ( key.equals("i") )
+                    useIndex = true;
+                else if ( key.equals("R") )
+                    regexFind = true;
 				else 
 				{
 					if ( value.length()==0 )
@@ -860,10 +1245,14 @@ public class MvdTool
 						description = value;
 					else if ( key.equals("e") )
 						encoding = value;
+					else if ( key.equals("E") )
+						maxErrors = Integer.parseInt( value );
 					else if ( key.equals("f") )
 						findString = value;
 					else if ( key.equals("g") )
 						groupName = value;
+					else if ( key.equals("j") )
+						threads = Integer.parseInt( value );
 					else if ( key.equals("h") )
 					{
 						command = Commands.HELP;
@@ -914,11 +1303,20 @@ public class MvdTool
 		command = null;
 		encoding = "UTF-8";
 		backup = variantLen = fromOffset = 0;
+		partial = false;
 		version = 1;
 		uniqueState = ChunkState.deleted;
 		dbConn = null;
         mergeSharedVersions = false;
         directAlignOnly = false;
+        mappedFormat = false;
+        threads = 1;
+        suffixArray = false;
+        guideOrder = false;
+        nearCopies = false;
+        useIndex = false;
+        maxErrors = 0;
+        regexFind = false;
 	}
 	/**
 	 * Tell the user about how to use this program
@@ -926,14 +1324,15 @@ public class MvdTool
 	private static void usage()
 	{
 		out.println(
-				"usage: nmerge [-c command] [-a archive] [-b backup]  [-d description]\n"
-				+"     [-e encoding] [-f string] [-g group] [-h command] [-k length]\n"
-				+"     [-l longname] [-m MVD] [-o offset] [-p] [-s shortname]\n"
-				+"     [-t textfile] [-v version] [-w with] [-x XMLfile] [-y] dbconn [-?] \n\n"
+				"usage: nmerge [-c command] [-a archive] [-b backup] [-C] [-d description]\n"
+				+"     [-e encoding] [-E errors] [-f string] [-g group] [-h command] [-i]\n"
+				+"     [-j threads] [-k length] [-l longname] [-m MVD] [-o offset] [-p]\n"
+				+"     [-r] [-R] [-s shortname] [-t textfile] [-v version] [-w with]\n"
+				+"     [-x XMLfile] [-y] dbconn [-?] \n\n"
 				+"-a archive - folder to use with archive and unarchive commands\n"
 				+"-b backup - the version number of a backup (for partial versions)\n"
 				+"-c command - operation to perform. One of:\n"
-				+"     add - add the specified version to the MVD\n"
+				+"     add - add the specified version(s) to the MVD\n"
 				+"     archive - save MVD in a folder as a set of separate versions\n"
 				+"     compare - compare specified version 'with' another version\n"
 				+"     create - create a new empty MVD\n"
@@ -949,19 +1348,30 @@ public class MvdTool
 				+"     unarchive - convert an MVD archive into an MVD\n"
 				+"     variants - find variants of specified version, offset and length\n"
 				+"-d description - specified when setting/changing the MVD description\n"
+                +"-C - add versions that are near copies of others by diffing them\n"
                 +"-D - direct align only (no transpositions)\n"
+                +"-M - save the MVD uncompressed so it can be opened mapped\n"
 				+"-e encoding - the encoding of the version's text e.g. UTF-8\n"
+				+"-E errors - find text within this many edits of the string\n"
 				+"-f string - to be found (used with command find)\n"
 				+"-g group - name of group for new version\n"
 				+"-h command - print example for command\n"
+				+"-i - find using an n-gram index kept next to the MVD, building it\n"
+				+"   if it is missing or out of date\n"
+				+"-j threads - number of threads to merge with (default 1)\n"
 				+"-k length - find variants of this length in the base version's text\n"
 				+"-l longname - the long name/description of the new version (quoted)\n"
 				+"-m MVD - the MVD file to create/update\n"
                 +"-n - apply update to all versions sharing the same text\n"
 				+"-o offset - in given version to look for variants\n"
 				+"-p - specified version is partial\n"
+				+"-r - add several versions in guide-tree order, most similar first\n"
+				+"-R - find text matching the string as a regular expression\n"
 				+"-s shortname - short name or siglum of specified version\n"
-				+"-t textfile - the text file to add to/update in the MVD\n"
+                +"-S - when merging, index the text with a suffix array rather\n"
+                +"   than a suffix tree to find alignments (less memory)\n"
+				+"-t textfile - the text file to add to/update in the MVD. For add\n"
+				+"   also a comma-separated list, a folder or an archive guide file\n"
 				+"-u unique - name of state to label text found in the main -v version,\n"
 				+"   not in -w version during compare - e.g. 'added' or 'deleted'(default)\n"
 				+"-v version - number of version for command (starting from 1)\n"
@@ -24,6 +24,7 @@ import edu.luc.nmerge.mvd.MVD;
 import edu.luc.nmerge.mvd.Chunk;
 import edu.luc.nmerge.mvd.Match;
 import edu.luc.nmerge.mvd.ChunkState;
+import edu.luc.nmerge.mvd.NGramIndex;
 import edu.luc.nmerge.exception.MVDException;
 import edu.luc.nmerge.exception.MVDToolException;
 import edu.luc.nmerge.exception.MVDTestException;
@@ -38,6 +39,10 @@ import java.io.File;
 import java.util.Vector;
 import java.util.Random;
 import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.BitSet;
+import java.util.Collections;
 /**
  * Test the NMerge library
  * @author Desmond Schmidt 2/5/09
@@ -94,6 +99,7 @@ public class Test
 			doCreateTest();
 			doHelpTest();
 			doAddTest();
+			doPartialTest();
 			doReadTest();
 			doDeleteTest();
 			doDescriptionTest();
@@ -104,6 +110,13 @@ public class Test
 			doListTest();
 			doCompareTest();
 			doFindTest();
+			doApproximateTest();
+			doSearchTest();
+			doNGramTest();
+			doMultiSearchTest();
+			doRegexTest();
+			doSuffixArrayTest();
+			doConvertTest();
 			doVariantsTest();
 			System.out.println( "Tests passed = "+testsPassed );
 			System.out.println( "Tests failed = "+testsFailed );
@@ -248,6 +261,513 @@ public class Test
 			doTestFailed( e );
 		}
 	}
+	/**
+	 * Test the search of all versions at once. Choose some phrases at 
+	 * random from the versions and search for every occurrence of each, 
+	 * in all the versions and in just one. Then check that each version 
+	 * scanned on its own has the same occurrences.
+	 */
+	private static void doSearchTest()
+	{
+		try
+		{
+			System.out.print("Testing search ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			String mvdName = createTestMVD( new File(folderName) );
+			MVD mvd = MVDFile.internalise( new File(mvdName), null );
+			Random rand = new Random( System.currentTimeMillis() );
+			for ( int i=0;i<10;i++ )
+			{
+				BitSet bs = getRandomVersions( mvd, rand );
+				char[] pattern = getRandomPattern( mvd, rand, 2, 20 );
+				Vector<String> expected = getScanMatches( mvd, pattern, bs );
+				Vector<String> actual = describeMatches( 
+					mvd.search(pattern,bs,true) );
+				if ( !expected.equals(actual) )
+					throw new MVDTestException( "Search for \""
+						+new String(pattern)+"\" found "+actual.size()
+						+" matches instead of "+expected.size() );
+				System.out.print(".");
+			}
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Test the n-gram index. Search for random phrases with and without 
+	 * the index and check both against a scan of each version. Then 
+	 * look for them with find, which ignores case, and check the 
+	 * versions it finds them in.
+	 */
+	private static void doNGramTest()
+	{
+		try
+		{
+			System.out.print("Testing n-gram index ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			String mvdName = createTestMVD( new File(folderName) );
+			MVD mvd = MVDFile.internalise( new File(mvdName), null );
+			NGramIndex index = mvd.getNGramIndex();
+			Random rand = new Random( System.currentTimeMillis() );
+			for ( int i=0;i<10;i++ )
+			{
+				BitSet bs = getRandomVersions( mvd, rand );
+				char[] pattern = getRandomPattern( mvd, rand, 
+					index.getN(), 30 );
+				Vector<String> expected = getScanMatches( mvd, pattern, bs );
+				mvd.setNGramIndex( index );
+				Vector<String> indexed = describeMatches( 
+					mvd.search(pattern,bs,true) );
+				mvd.setNGramIndex( null );
+				Vector<String> scanned = describeMatches( 
+					mvd.search(pattern,bs,true) );
+				if ( !expected.equals(indexed) || !expected.equals(scanned) )
+					throw new MVDTestException( "Search for \""
+						+new String(pattern)+"\" found "+indexed.size()
+						+" matches with the index and "+scanned.size()
+						+" without instead of "+expected.size() );
+				String query = new String( pattern );
+				mvd.setNGramIndex( index );
+				BitSet found = mvd.find( query );
+				BitSet versions = new BitSet();
+				for ( int v=1;v<=mvd.numVersions();v++ )
+				{
+					String text = new String( mvd.getVersion(v) );
+					if ( text.toLowerCase().contains(query.toLowerCase()) )
+						versions.set( v );
+				}
+				if ( !found.equals(versions) )
+					throw new MVDTestException( "Found \""+query
+						+"\" in versions "+found+" instead of "+versions );
+				System.out.print(".");
+			}
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Test the search for many patterns at once. Choose some phrases at 
+	 * random, some of them repeated or inside others, and search for 
+	 * them all together. Then check each one's matches against a search 
+	 * for it on its own.
+	 */
+	private static void doMultiSearchTest()
+	{
+		try
+		{
+			System.out.print("Testing multiple search ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			String mvdName = createTestMVD( new File(folderName) );
+			MVD mvd = MVDFile.internalise( new File(mvdName), null );
+			Random rand = new Random( System.currentTimeMillis() );
+			for ( int i=0;i<5;i++ )
+			{
+				BitSet bs = getRandomVersions( mvd, rand );
+				char[][] patterns = new char[20][];
+				for ( int j=0;j<patterns.length;j++ )
+				{
+					if ( j > 0 && rand.nextInt(4) == 0 )
+					{
+						// a repeat or the end of an earlier pattern
+						char[] earlier = patterns[rand.nextInt(j)];
+						int start = rand.nextInt( earlier.length );
+						patterns[j] = new char[earlier.length-start];
+						System.arraycopy( earlier, start, patterns[j], 0, 
+							patterns[j].length );
+					}
+					else
+						patterns[j] = getRandomPattern( mvd, rand, 1, 15 );
+				}
+				Match[][] matches = mvd.search( patterns, bs );
+				for ( int j=0;j<patterns.length;j++ )
+				{
+					Vector<String> expected = describeMatches( 
+						mvd.search(patterns[j],bs,true) );
+					Vector<String> actual = describeMatches( matches[j] );
+					if ( !expected.equals(actual) )
+						throw new MVDTestException( "Multiple search for \""
+							+new String(patterns[j])+"\" found "
+							+actual.size()+" matches instead of "
+							+expected.size() );
+				}
+				System.out.print(".");
+			}
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Test the regular expression search against java.util.regex on each 
+	 * version. Only expressions without alternation are tried, since 
+	 * there java's first match is also the longest. Empty matches 
+	 * aren't reported by the MVD search so they are skipped.
+	 */
+	private static void doRegexTest()
+	{
+		String[] regexes = { "[A-Z][a-z]+", "\\d+", "o{2,}", "<[^>]*>", 
+			"\\s+", "x?y", "e[a-z]{1,3}", "t[^ ]*e", ".{20}", 
+			"[^<]{5,40}>", "(?:the )?[A-Z]\\w*", "[Tt]he\\.", "zzzq" };
+		try
+		{
+			System.out.print("Testing regex search ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			String mvdName = createTestMVD( new File(folderName) );
+			MVD mvd = MVDFile.internalise( new File(mvdName), null );
+			BitSet all = new BitSet();
+			all.set( 1, mvd.numVersions()+1 );
+			for ( int i=0;i<regexes.length;i++ )
+			{
+				Vector<String> expected = new Vector<String>();
+				Pattern pattern = Pattern.compile( regexes[i] );
+				for ( int v=1;v<=mvd.numVersions();v++ )
+				{
+					Matcher m = pattern.matcher( 
+						new String(mvd.getVersion(v)) );
+					while ( m.find() )
+						if ( m.end() > m.start() )
+							expected.add( v+":"+m.start()+":"
+								+(m.end()-m.start()) );
+				}
+				Collections.sort( expected );
+				Vector<String> actual = describeMatches( 
+					mvd.searchRegex(regexes[i],all) );
+				if ( !expected.equals(actual) )
+					throw new MVDTestException( "Regex search for "
+						+regexes[i]+" found "+actual.size()
+						+" matches instead of "+expected.size() );
+				System.out.print(".");
+			}
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Test merging with a suffix array instead of a suffix tree. The 
+	 * MUMs found should be the same, so merging the same files in the 
+	 * same order with each should give exactly the same MVD.
+	 */
+	private static void doSuffixArrayTest()
+	{
+		try
+		{
+			System.out.print("Testing suffix array ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			File[] files = removeDotFiles( new File(folderName).listFiles() );
+			String[] mvds = new String[2];
+			for ( int i=0;i<mvds.length;i++ )
+			{
+				MVD mvd = new MVD( BLESSED_DAMOZEL+" test" );
+				mvd.setSuffixArray( i == 1 );
+				mvd.beginUpdates();
+				for ( int j=0;j<files.length;j++ )
+				{
+					FileInputStream fis = new FileInputStream( files[j] );
+					byte[] bytes = new byte[(int)files[j].length()];
+					fis.read( bytes );
+					fis.close();
+					char[] data = new String( bytes, "UTF-8" ).toCharArray();
+					int vId = mvd.newVersion( "V"+(j+1), files[j].getName(), 
+						"TOP LEVEL", (short)0, false );
+					mvd.update( (short)vId, data, false );
+					System.out.print(".");
+				}
+				mvd.endUpdates();
+				mvds[i] = MVDFile.externalise( mvd );
+			}
+			if ( !mvds[0].equals(mvds[1]) )
+				throw new MVDTestException( "Merging with a suffix array "
+					+"gave a different MVD" );
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Test turning a graph with a long run of variants into pairs. Merge 
+	 * a long text with a copy that differs every few characters, save 
+	 * the MVD and read it back, then check that both versions survive.
+	 */
+	private static void doConvertTest()
+	{
+		try
+		{
+			System.out.print("Testing conversion to pairs ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			File[] files = removeDotFiles( new File(folderName).listFiles() );
+			FileInputStream fis = new FileInputStream( files[0] );
+			byte[] bytes = new byte[(int)files[0].length()];
+			fis.read( bytes );
+			fis.close();
+			String text = new String( bytes, "UTF-8" );
+			StringBuffer sb = new StringBuffer();
+			for ( int i=0;i<4;i++ )
+				sb.append( text );
+			char[] data1 = sb.toString().toCharArray();
+			char[] data2 = sb.toString().toCharArray();
+			for ( int i=0;i<data2.length;i+=10 )
+				data2[i] = '#';
+			MVD mvd = new MVD( "conversion test" );
+			mvd.beginUpdates();
+			int vId = mvd.newVersion( "V1", "V1", "TOP LEVEL", (short)0, 
+				false );
+			mvd.update( (short)vId, data1, false );
+			vId = mvd.newVersion( "V2", "V2", "TOP LEVEL", (short)0, false );
+			mvd.update( (short)vId, data2, false );
+			mvd.endUpdates();
+			MVD copy = MVDFile.internalise( MVDFile.externalise(mvd) );
+			compareTwoCharArrays( copy.getVersion(1), data1 );
+			compareTwoCharArrays( copy.getVersion(2), data2 );
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Choose either all the versions of an MVD or one of them at random
+	 * @param mvd the MVD
+	 * @param rand a random number generator
+	 * @return the chosen versions
+	 */
+	private static BitSet getRandomVersions( MVD mvd, Random rand )
+	{
+		BitSet bs = new BitSet();
+		if ( rand.nextBoolean() )
+			bs.set( 1, mvd.numVersions()+1 );
+		else
+			bs.set( rand.nextInt(mvd.numVersions())+1 );
+		return bs;
+	}
+	/**
+	 * Get a random pattern from a random version of an MVD
+	 * @param mvd the MVD
+	 * @param rand a random number generator
+	 * @param minSize the minimum length of the pattern
+	 * @param range the extra size the pattern may take
+	 * @return the pattern
+	 */
+	private static char[] getRandomPattern( MVD mvd, Random rand, 
+		int minSize, int range )
+	{
+		char[] text = mvd.getVersion( rand.nextInt(mvd.numVersions())+1 );
+		int size = rand.nextInt( range ) + minSize;
+		int start = rand.nextInt( text.length - size );
+		char[] pattern = new char[size];
+		System.arraycopy( text, start, pattern, 0, size );
+		return pattern;
+	}
+	/**
+	 * Find all the occurrences of a pattern by scanning each version 
+	 * with String.indexOf, overlapping ones included
+	 * @param mvd the MVD to search
+	 * @param pattern the pattern to find
+	 * @param bs the versions to search
+	 * @return the matches as described by describeMatches
+	 */
+	private static Vector<String> getScanMatches( MVD mvd, char[] pattern, 
+		BitSet bs )
+	{
+		Vector<String> matches = new Vector<String>();
+		String str = new String( pattern );
+		for ( int v=bs.nextSetBit(1);v>=0;v=bs.nextSetBit(v+1) )
+		{
+			String text = new String( mvd.getVersion(v) );
+			int index = text.indexOf( str );
+			while ( index != -1 )
+			{
+				matches.add( v+":"+index+":"+pattern.length );
+				index = text.indexOf( str, index+1 );
+			}
+		}
+		Collections.sort( matches );
+		return matches;
+	}
+	/**
+	 * Describe some matches so they can be compared whatever order 
+	 * they were found in
+	 * @param matches the matches
+	 * @return each match as version:offset:length, sorted
+	 */
+	private static Vector<String> describeMatches( Match[] matches )
+	{
+		Vector<String> descriptions = new Vector<String>();
+		for ( int i=0;i<matches.length;i++ )
+			descriptions.add( matches[i].getVersion()+":"
+				+matches[i].getStartOffset()+":"+matches[i].getLength() );
+		Collections.sort( descriptions );
+		return descriptions;
+	}
+	/**
+	 * Test the approximate search. Choose some phrases at random, make 
+	 * one edit to each and search for them allowing two edits. Then 
+	 * check the hits against a brute force scan of each version with 
+	 * the edit distance table: each run of places where the pattern 
+	 * ends within two edits should be reported once, at its best end, 
+	 * and the text reported should be that close to the pattern.
+	 */
+	private static void doApproximateTest()
+	{
+		try
+		{
+			System.out.print("Testing approximate search ");
+			String folderName = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			File folder = new File( folderName );
+			String mvdName = createTestMVD( folder );
+			MVD mvd = MVDFile.internalise( new File(mvdName), null );
+			Random rand = new Random( System.currentTimeMillis() );
+			File[] files = removeDotFiles( folder.listFiles() );
+			BitSet all = new BitSet();
+			all.set( 1, mvd.numVersions()+1 );
+			int k = 2;
+			for ( int i=0;i<5;i++ )
+			{
+				int fileNo = rand.nextInt( files.length );
+				String phrase = getRandomPattern( files[fileNo], rand, 
+					10, 15 );
+				// insert, delete or substitute a character
+				int pos = rand.nextInt( phrase.length() );
+				int edit = rand.nextInt( 3 );
+				phrase = phrase.substring( 0, pos )+((edit==1)?"":"#")
+					+phrase.substring( (edit==0)?pos:pos+1 );
+				char[] pattern = phrase.toCharArray();
+				Match[] matches = mvd.search( pattern, all, k );
+				int m = 0;
+				for ( int v=1;v<=mvd.numVersions();v++ )
+				{
+					char[] text = mvd.getVersion( v );
+					Vector<int[]> ends = getApproximateEnds( text, 
+						pattern, k );
+					for ( int j=0;j<ends.size();j++,m++ )
+					{
+						int[] end = ends.get( j );
+						if ( m == matches.length )
+							throw new MVDTestException( "Missing hit in "
+								+"version "+v+" ending at "+end[0] );
+						Match match = matches[m];
+						int offset = match.getStartOffset();
+						int length = match.getLength();
+						if ( match.getVersion() != v 
+							|| offset+length-1 != end[0] 
+							|| getEditDistance(pattern,text,offset,length)
+								!= end[1] )
+							throw new MVDTestException( "Hit "+match
+								+" should end at "+end[0]+" in version "
+								+v+" with "+end[1]+" edits" );
+					}
+				}
+				if ( m != matches.length )
+					throw new MVDTestException( "Found "+matches.length
+						+" hits instead of "+m );
+				System.out.print(".");
+			}
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Find where a pattern ends in a text with at most k edits, using 
+	 * the whole edit distance table one column at a time. Of each run 
+	 * of consecutive ends keep only the first with the fewest edits.
+	 * @param text the text to scan
+	 * @param pattern the pattern to look for
+	 * @param k the most edits allowed
+	 * @return pairs of the end offset and its edit distance
+	 */
+	private static Vector<int[]> getApproximateEnds( char[] text, 
+		char[] pattern, int k )
+	{
+		Vector<int[]> ends = new Vector<int[]>();
+		int[] col = new int[pattern.length+1];
+		for ( int i=0;i<col.length;i++ )
+			col[i] = i;
+		int[] best = null;
+		for ( int j=0;j<text.length;j++ )
+		{
+			int diag = col[0];
+			for ( int i=1;i<col.length;i++ )
+			{
+				int d = diag+((pattern[i-1]==text[j])?0:1);
+				diag = col[i];
+				col[i] = Math.min( d, Math.min(col[i],col[i-1])+1 );
+			}
+			int score = col[pattern.length];
+			if ( score <= k )
+			{
+				if ( best == null || best[2] != j-1 )
+				{
+					best = new int[3];
+					best[0] = j;
+					best[1] = score;
+					ends.add( best );
+				}
+				else if ( score < best[1] )
+				{
+					best[0] = j;
+					best[1] = score;
+				}
+				best[2] = j;
+			}
+		}
+		for ( int i=0;i<ends.size();i++ )
+		{
+			int[] end = ends.get( i );
+			ends.set( i, new int[]{end[0],end[1]} );
+		}
+		return ends;
+	}
+	/**
+	 * Get the edit distance between a pattern and part of a text
+	 * @param pattern the pattern
+	 * @param text the text
+	 * @param offset the start of the part in the text
+	 * @param length the length of the part
+	 * @return the fewest insertions, deletions and substitutions 
+	 * that turn one into the other
+	 */
+	private static int getEditDistance( char[] pattern, char[] text, 
+		int offset, int length )
+	{
+		int[] col = new int[pattern.length+1];
+		for ( int i=0;i<col.length;i++ )
+			col[i] = i;
+		for ( int j=0;j<length;j++ )
+		{
+			int diag = col[0];
+			col[0] = j+1;
+			for ( int i=1;i<col.length;i++ )
+			{
+				int d = diag+((pattern[i-1]==text[offset+j])?0:1);
+				diag = col[i];
+				col[i] = Math.min( d, Math.min(col[i],col[i-1])+1 );
+			}
+		}
+		return col[pattern.length];
+	}
 	/**
 	 * Check the matches found by brute force against those returned
 	 * by the MvdTool. They should match one for one. If not, then 
@@ -519,6 +1039,79 @@ public class Test
 			throw new MVDTestException(
 				"Invalid list response line: "+line );
 	}
+	/**
+	 * Add a base version and a partial copy of its middle through a guide, 
+	 * as a bulk add does. The partial version should read back with the 
+	 * text of its backup.
+	 */
+	private static void doPartialTest()
+	{
+		try
+		{
+			System.out.print("Testing partial add ");
+			String testData = TEST_DATA+File.separator+BLESSED_DAMOZEL;
+			File[] versions = removeDotFiles( new File(testData).listFiles() );
+			FileInputStream fis = new FileInputStream( versions[0] );
+			byte[] bytes = new byte[(int)versions[0].length()];
+			fis.read( bytes );
+			fis.close();
+			String base = new String( bytes, "UTF-8" );
+			String extract = base.substring( base.length()/3, 
+				2*base.length()/3 );
+			File folder = new File( TEST_FOLDER, "Partial" );
+			if ( !folder.exists() )
+				folder.mkdirs();
+			writeTestFile( new File(folder,"base.txt"), base );
+			writeTestFile( new File(folder,"extract.txt"), extract );
+			writeTestFile( new File(folder,XMLGuideFile.GUIDE_FILE), 
+				"<mvdguide><description>partial test</description>"
+				+"<groups><group name=\"Base\" parent=\"0\"/></groups>"
+				+"<versions><version group=\"1\" longname=\"base\" "
+				+"shortname=\"V1\">base.txt</version><version group=\"1\" "
+				+"backup=\"1\" longname=\"extract\" shortname=\"V2\">"
+				+"extract.txt</version></versions></mvdguide>" );
+			String mvdName = TEST_FOLDER+File.separator+"Partial.mvd";
+			File mvdFile = new File( mvdName );
+			if ( mvdFile.exists() )
+				mvdFile.delete();
+			String[] args0 = {"-c","create","-m",mvdName,"-d","partial test"};
+			MvdTool.run( args0, out );
+			String[] args1 = {"-c","add","-m",mvdName,"-t",
+				folder.getAbsolutePath()};
+			MvdTool.run( args1, out );
+			String[] args2 = {"-c","read","-m",mvdName,"-v","2"};
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			PrintStream ps = new PrintStream( bos, true, "UTF-8" );
+			MvdTool.run( args2, ps );
+			ps.close();
+			String str1 = bos.toString( "UTF-8" );
+			char[] data1 = new char[str1.length()];
+			str1.getChars( 0, data1.length, data1, 0 );
+			char[] data2 = new char[base.length()];
+			base.getChars( 0, data2.length, data2, 0 );
+			compareTwoCharArrays( data1, data2 );
+			testsPassed++;
+			System.out.println(" test passed.");
+		}
+		catch ( Exception e )
+		{
+			doTestFailed( e );
+		}
+	}
+	/**
+	 * Write a string to a file in UTF-8
+	 * @param dst the file to write
+	 * @param text the text to write into it
+	 * @throws Exception if the file couldn't be written
+	 */
+	private static void writeTestFile( File dst, String text ) 
+		throws Exception
+	{
+		FileOutputStream fos = new FileOutputStream( dst );
+		OutputStreamWriter osw = new OutputStreamWriter( fos, "UTF-8" );
+		osw.write( text );
+		osw.close();
+	}
 	/**
 	 * Read a version, capturing it. Compare the result to the original 
 	 * put into the file. 
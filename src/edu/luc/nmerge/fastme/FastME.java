@@ -169,4 +169,52 @@ public class FastME
 	    			+ntype);
 	    }
 	}
+	/**
+	 * Measure the distances between the taxa along the branches of 
+	 * the built (and usually refined) tree
+	 * @return an NxN matrix of path lengths in the order of the taxa
+	 */
+	public double[][] getLeafDistances()
+	{
+		node[] leaves = new node[numSpecies];
+		findLeaves( T.root, null, leaves );
+		double[][] dists = new double[numSpecies][numSpecies];
+		for ( int i=0;i<numSpecies;i++ )
+			if ( leaves[i] != null )
+				walkTree( leaves[i], null, 0.0, dists[i] );
+		return dists;
+	}
+	/**
+	 * Collect the leaves of the tree by their taxon index
+	 * @param v the node to start from
+	 * @param from the edge we arrived by or null
+	 * @param leaves store the leaves here
+	 */
+	void findLeaves( node v, edge from, node[] leaves )
+	{
+		if ( v.index2 >= 0 )
+			leaves[v.index2] = v;
+		edge[] edges = {v.parentEdge,v.leftEdge,v.rightEdge,v.middleEdge};
+		for ( int i=0;i<edges.length;i++ )
+			if ( edges[i] != null && edges[i] != from )
+				findLeaves( (edges[i].head==v)?edges[i].tail:edges[i].head, 
+					edges[i], leaves );
+	}
+	/**
+	 * Record the path length from one leaf to all the others
+	 * @param v the node we have reached
+	 * @param from the edge we arrived by or null
+	 * @param dist the length of the path so far
+	 * @param row store the distances to leaves here
+	 */
+	void walkTree( node v, edge from, double dist, double[] row )
+	{
+		if ( v.index2 >= 0 )
+			row[v.index2] = dist;
+		edge[] edges = {v.parentEdge,v.leftEdge,v.rightEdge,v.middleEdge};
+		for ( int i=0;i<edges.length;i++ )
+			if ( edges[i] != null && edges[i] != from )
+				walkTree( (edges[i].head==v)?edges[i].tail:edges[i].head, 
+					edges[i], dist+edges[i].distance, row );
+	}
 }
@@ -50,6 +50,8 @@ public class Arc
 	Arc parent;
 	/** parent id if subject of a transposition */
 	int id;
+	/** the breadth-first traversal that last printed this arc */
+	int epoch;
 	/** id counter: used for parent/child relationships */
 	static int arcId = 1;
 	/**
@@ -0,0 +1,71 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph;
+
+import java.util.BitSet;
+
+/**
+ * Steps through the outgoing arcs of a node that lead on through a 
+ * subgraph: none if the node is the subgraph's end, otherwise those 
+ * that intersect its constraint. Unlike Node.outgoingArcs(Graph) it 
+ * copies nothing, and one cursor can be reset to each node of a 
+ * traversal in turn. The node must not change while it is in use.
+ * @author Desmond Schmidt
+ */
+public class ArcCursor 
+{
+	/** the node whose arcs we are visiting */
+	Node node;
+	/** the versions an arc must have one of */
+	BitSet constraint;
+	/** index of the next outgoing arc to try */
+	int index;
+	/** number of outgoing arcs to try */
+	int limit;
+	/**
+	 * Point the cursor at the first arc of a node
+	 * @param node the node whose outgoing arcs we want
+	 * @param subgraph the subgraph that constrains them
+	 * @return this cursor
+	 */
+	public ArcCursor reset( Node node, Graph subgraph )
+	{
+		this.node = node;
+		this.constraint = subgraph.constraint;
+		this.index = 0;
+		this.limit = (node==subgraph.end)?0:node.outdegree();
+		return this;
+	}
+	/**
+	 * Get the next arc that satisfies the constraint
+	 * @return the arc or null if there are no more
+	 */
+	public Arc next()
+	{
+		while ( index < limit )
+		{
+			Arc a = node.getOutgoing( index++ );
+			if ( a.versions.intersects(constraint) )
+				return a;
+		}
+		return null;
+	}
+}
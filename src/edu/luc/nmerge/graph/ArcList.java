@@ -0,0 +1,132 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * The incoming or outgoing arcs of a node. Nodes at points of heavy 
+ * variation can have many arcs, and the MUM searches walk them over 
+ * and over, so they are kept in a growable array rather than a linked 
+ * list. get is constant time and the usual iterators work on top of it. 
+ * Arcs are removed by identity: the arcs of one node never share a 
+ * version so no other arc can be equal to one that is present.
+ * @author Desmond Schmidt
+ */
+class ArcList extends AbstractList<Arc> implements RandomAccess
+{
+	/** the arcs in the order they were added */
+	private Arc[] arcs;
+	/** the number of arcs in use */
+	private int size;
+	/**
+	 * Create an empty list. Most nodes have one or two arcs.
+	 */
+	ArcList()
+	{
+		arcs = new Arc[2];
+	}
+	/**
+	 * Get an arc
+	 * @param index its index
+	 * @return the arc
+	 */
+	public Arc get( int index )
+	{
+		if ( index >= size )
+			throw new IndexOutOfBoundsException( "index "+index
+				+" size "+size );
+		return arcs[index];
+	}
+	/**
+	 * Get the number of arcs
+	 * @return the size of the list
+	 */
+	public int size()
+	{
+		return size;
+	}
+	/**
+	 * Add an arc to the end
+	 * @param a the arc to add
+	 * @return true
+	 */
+	public boolean add( Arc a )
+	{
+		if ( size == arcs.length )
+		{
+			Arc[] newArcs = new Arc[size*2];
+			System.arraycopy( arcs, 0, newArcs, 0, size );
+			arcs = newArcs;
+		}
+		arcs[size++] = a;
+		modCount++;
+		return true;
+	}
+	/**
+	 * Remove an arc by position
+	 * @param index the index of the arc
+	 * @return the arc removed
+	 */
+	public Arc remove( int index )
+	{
+		Arc a = get( index );
+		System.arraycopy( arcs, index+1, arcs, index, size-index-1 );
+		arcs[--size] = null;
+		modCount++;
+		return a;
+	}
+	/**
+	 * Find an arc
+	 * @param o the arc to look for
+	 * @return its index or -1
+	 */
+	public int indexOf( Object o )
+	{
+		for ( int i=0;i<size;i++ )
+			if ( arcs[i] == o )
+				return i;
+		return -1;
+	}
+	/**
+	 * Is an arc in the list?
+	 * @param o the arc to look for
+	 * @return true if it is there
+	 */
+	public boolean contains( Object o )
+	{
+		return indexOf(o) != -1;
+	}
+	/**
+	 * Remove an arc
+	 * @param o the arc to remove
+	 * @return true if it was there
+	 */
+	public boolean remove( Object o )
+	{
+		int index = indexOf( o );
+		if ( index == -1 )
+			return false;
+		remove( index );
+		return true;
+	}
+}
@@ -25,10 +25,12 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 
 import edu.luc.nmerge.exception.*;
 import edu.luc.nmerge.mvd.Pair;
+import edu.luc.nmerge.mvd.VersionSet;
 
 /**
  * The purpose of this class is to serialise and deserialise 
@@ -58,6 +60,8 @@ public class Converter
 	HashMap<Arc,Pair> parents;
 	/** map to help find children for parents */
 	HashMap<Arc,Pair> orphans;
+	/** stamp of the current breadth-first traversal */
+	int epoch;
 	/**
 	 * Create a Graph
 	 * @param pairs the list of pairs to build the graph from. 
@@ -109,7 +113,7 @@ public class Converter
 			Pair p = pairs.get( i );
 			Arc a = pairToArc( p, pnts, kids );
 			if ( (i>0 && 
-				a.versions.intersects(pairs.get(i-1).versions))
+				pairs.get(i-1).versions.intersects(a.versions))
 				|| a.isHint() )
 				u = v = createNode();
 			else
@@ -147,6 +151,16 @@ public class Converter
 			throw new MVDException(
 				"Unmatched child node(s) after deserialisation");
 	}
+	/**
+	 * Make room for a version added after the graph was created. 
+	 * Used when several versions are merged into the same graph.
+	 * @param version the id of the new version
+	 */
+	public void addVersion( int version )
+	{
+		allVersions.set( version );
+		graph.constraint.set( version );
+	}
 	/**
 	 * Regenerate the list of pairs by writing out the Graph
 	 * @return a list of pairs with hints where needed
@@ -158,7 +172,30 @@ public class Converter
 			origSize = 15;
 		numParents = 0;
         ArrayList<Pair> pairs = new ArrayList<Pair>( origSize );
-		printAcross( pairs, graph.start, allVersions );
+		epoch = Node.newEpoch();
+		// nodes whose outgoing arcs are still being printed
+		ArrayDeque<Across> stack = new ArrayDeque<Across>();
+		Across top = printAcross( pairs, graph.start, allVersions );
+		if ( top != null )
+			stack.push( top );
+		while ( !stack.isEmpty() )
+		{
+			top = stack.peek();
+			Arc a = top.nextArc();
+			if ( a == null )
+				stack.pop();
+			else if ( printDown(pairs,a) )
+			{
+				if ( top.hint != -1 )
+					reduceHint( pairs, top.hint );
+				// next node produced, invalidating hint
+				top.hint = -1;
+				Across next = printAcross( pairs, a.to, a.versions );
+				if ( next != null )
+					stack.push( next );
+			}
+		}
+		removeNulls( pairs );
 		if ( parents.size() != 0 )
 			throw new MVDToolException("Mismatched parent arc");
 		if ( orphans.size() != 0 )
@@ -213,7 +250,7 @@ public class Converter
 	{
 		nArcs++;
 		char[] pData = (p.isChild()||p.isHint())?null:p.getChars();
-		Arc a = new Arc( cloneVersions(p.versions), pData );
+		Arc a = new Arc( p.versions.toBitSet(), pData );
 		if ( p.isChild() )
 		{
 			// we're a child - find our parent
@@ -260,99 +297,133 @@ public class Converter
 		return clone;
 	}
 	/**
-	 *	Build a bit of the pairs-list starting from a node 
-	 *	@param tuples the part-built pairs-list
+	 * A node whose outgoing arcs are being printed. The arc that 
+	 * continues the path we arrived by is printed first, followed by 
+	 * the others in order. Keeping these on a stack instead of 
+	 * recursing lets us serialise graphs of any length.
+	 */
+	private static class Across
+	{
+		/** the node */
+		Node u;
+		/** the outgoing arc to print first */
+		Arc selected;
+		/** index of the next outgoing arc, or -1 if selected is next */
+		int next;
+		/** the location of the node's hint or -1 */
+		int hint;
+		/**
+		 * Get the next outgoing arc to print
+		 * @return the arc or null if they have all been printed
+		 */
+		Arc nextArc()
+		{
+			if ( next == -1 )
+			{
+				next = 0;
+				return selected;
+			}
+			while ( next < u.outdegree() )
+			{
+				Arc a = u.getOutgoing( next++ );
+				if ( a != selected )
+					return a;
+			}
+			return null;
+		}
+	}
+	/**
+	 *	Start building a bit of the pairs-list from a node 
+	 *	@param pairs the part-built pairs-list
 	 *	@param u the node from which to take outgoing arcs
 	 *	@param incoming the versions of the last incoming arc
+	 *	@return the node's outgoing arcs to print or null if it has none
 	 */
-	private void printAcross( ArrayList<Pair> pairs, Node u, BitSet incoming )
-		throws MVDException
+	private Across printAcross( ArrayList<Pair> pairs, Node u, 
+		BitSet incoming )
 	{
-		int hint = -1;
+		Across across = null;
         Arc selected = u.pickOutgoingArc( incoming );
         if ( selected != null )
 		{
-			if ( selected.to.isPrintedIncoming( selected.versions) )
+			across = new Across();
+			across.u = u;
+			across.selected = selected;
+			across.next = -1;
+			across.hint = -1;
+			if ( selected.epoch == epoch )
                 System.out.println("incoming arc already printed");
             // add an empty tuple as a hint if required
 			BitSet clique = u.getClique(selected);
 			if ( !clique.isEmpty() )
 			{
-				hint = pairs.size(); 
+				across.hint = pairs.size(); 
 				//System.out.println("creating hint at "+hint);
 				clique.set( 0 );
 				// create a hint
 				Pair h = new Pair(clique,new char[0]);
 				pairs.add( h );
 			}
-			hint = printDown( pairs, selected, hint );
-			ListIterator<Arc> iter = u.outgoingArcs();
-			while ( iter.hasNext() )
-			{
-				Arc a = iter.next();
-				if ( a != selected )
-					hint = printDown( pairs, a, hint );
-			}
 		}
+		return across;
 	}
 	/**
-	 *	Print a single tuple to the list. If this is the last incoming 
-	 *	arc, then call printAcross.
-	 *	@param tuples the part-built tuple-list
+	 *	Print a single tuple to the list. 
+	 *	@param pairs the part-built pairs-list
 	 *	@param a the arc to print
-	 *	@param hint the previous location of a hint
-	 *	@return the hint or -1 if it was removed
+	 *	@return true if a was the last incoming arc of its to node, 
+	 *	which must now be printed across
 	 */
-	private int printDown( ArrayList<Pair> pairs, Arc a, int hint )
+	private boolean printDown( ArrayList<Pair> pairs, Arc a )
 		throws MVDException
 	{
 		if ( a.numChildren() > 0 )
 			numParents++;
 		Pair p = a.toPair( parents, orphans );
 		pairs.add( p );
-		a.to.printArc( a );
-		if ( a.to != null )
-		{
-			Node u = a.to;
-			if ( u.allPrintedIncoming() )
-			{
-				if ( hint != -1 )
-					hint = reduceHint( pairs, hint );
-				printAcross( pairs, u, a.versions );
-				// next node produced, invalidating hint
-				hint = -1;
-			}
-		}
-		return hint;
+		return a.to != null && a.to.printArc( a, epoch, null );
 	}
 	/**
-	 *	Reduce or remove the hint at offset hint and if removing 
-	 *	shunt all the tuples along from hint to pos. Otherwise 
-	 *	just reduce the number of versions at offset hint.
-	 *	@param tuples the array of tuples to write to
+	 *	Reduce or remove the hint at offset hint. A removed hint is 
+	 *	just set to null, so that the pairs after it don't have to be 
+	 *	shunted along each time: removeNulls does that once at the end.
+	 *	@param pairs the part-built pairs-list
 	 *	@param hint the offset of the hint
-	 *	@param pos the offset of the current write position
-	 *	@return the index of the hint or -1 if it was removed
 	 */
-	private int reduceHint( ArrayList<Pair> pairs, int hint )
+	private void reduceHint( ArrayList<Pair> pairs, int hint )
 	{
 		Pair hintPair = pairs.get( hint );
+		BitSet bs = hintPair.versions.toBitSet();
 		for ( int i=hint+2;i<pairs.size();i++ )
 		{
 			Pair p = pairs.get( i );
-			hintPair.versions.andNot( p.versions );
-			if ( hintPair.versions.nextSetBit(1)==-1 )
+			if ( p == null )
+				continue;
+			p.versions.removeFrom( bs );
+			if ( bs.nextSetBit(1)==-1 )
 			{
-				pairs.remove( hint );
+				pairs.set( hint, null );
 				//System.out.println("removing hint at "+hint);
-				hint = -1;
 				break;
 			}
 		}
-		/*if ( hint != -1 )
-			System.out.println("hint at "+hint+" versions="
-				+hintPair.versions.toString());*/
-		return hint;
+		hintPair.versions = new VersionSet( bs );
+	}
+	/**
+	 *	Close up the gaps left by removed hints
+	 *	@param pairs the finished pairs-list
+	 */
+	private void removeNulls( ArrayList<Pair> pairs )
+	{
+		int j = 0;
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			if ( p != null )
+				pairs.set( j++, p );
+		}
+		while ( pairs.size() > j )
+			pairs.remove( pairs.size()-1 );
 	}
 	/**
 	 *	Is this graph isomorphic to another? We can do this by printing 
@@ -371,6 +442,7 @@ public class Converter
 		current = graph.start;
 		int numArcs = 0;
 		otherCurrent = other.start;
+		epoch = Node.newEpoch();
 		while ( !q.isEmpty() && !otherQueue.isEmpty() )
 		{
 			current = q.pop();
@@ -381,39 +453,20 @@ public class Converter
 				Arc a = iter.next();
 				Arc b = otherCurrent.pickOutgoingArc(a.versions);
 				numArcs++;
-				if ( a == null )
-				{
-					graph.clearPrinted();
-					other.clearPrinted();
+				if ( a == null || b == null )
 					return false;
-				}
-				if ( b == null )
-				{
-					graph.clearPrinted();
-					other.clearPrinted();
-					return false;
-				}
-				else
-				{
-					a.to.printArc(a);
-					b.to.printArc( b );
-				}
-				if ( a.to.allPrintedIncoming() )
+				boolean aDone = a.to.printArc( a, epoch, null );
+				boolean bDone = b.to.printArc( b, epoch, null );
+				if ( aDone )
 				{
 					q.push( a.to );
-					if ( b.to.allPrintedIncoming() )
+					if ( bDone )
 						otherQueue.push( b.to );
 					else
-					{
-						graph.clearPrinted();
-						other.clearPrinted();
 						return false;
-					}
 				}
 			}
 		}
-		graph.clearPrinted();
-		other.clearPrinted();
 		return true;
 	}
 	/**
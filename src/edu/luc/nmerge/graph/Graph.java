@@ -21,11 +21,9 @@
 package edu.luc.nmerge.graph;
 import edu.luc.nmerge.exception.*;
 import java.util.BitSet;
-import java.util.ListIterator;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
-import java.util.HashSet;
 import edu.luc.nmerge.mvd.diff.Diff;
 
 /**
@@ -113,7 +111,13 @@ public class Graph
 					splitNode = n.split();
 			}
 			else if ( a.dataLen()+pos == offset )
-				splitNode = a.to;
+			{
+				// nothing follows the end, so open an arc before it
+				if ( atStart && a.to == end )
+					splitNode = end.splitBefore();
+				else
+					splitNode = a.to;
+			}
 			else
 			{
 				Arc[] pair = a.split( offset-pos );
@@ -166,6 +170,25 @@ public class Graph
 		}
 		return bs;
 	}
+	/**
+	 * Make a version not yet in the graph follow the same path as an 
+	 * existing one, so that it has exactly the same text
+	 * @param from the existing version to copy
+	 * @param to the version to add to its arcs
+	 */
+	public void copyVersion( int from, int to )
+	{
+		Node n = start;
+		while ( n != end )
+		{
+			Arc a = n.pickOutgoingArc( from );
+			a.versions.set( to );
+			n.addOutgoingVersion( to );
+			a.to.addIncomingVersion( to );
+			n = a.to;
+		}
+		constraint.set( to );
+	}
 	/**
 	 * Add an unaligned arc to the graph, attached to the start and end only
 	 * @param data the data of the single version it will hold
@@ -203,7 +226,7 @@ public class Graph
 	 * @param version the id of the version to read
 	 * @return the version's data as a char array
 	 */
-	char[] getVersion( int version )
+	public char[] getVersion( int version )
 	{
 		Node temp = start;
 		int len=0;
@@ -235,15 +258,16 @@ public class Graph
 	{
 		HashMap <Integer,Integer> lengths = new HashMap<Integer,Integer>();
 		SimpleQueue<Node> queue = new SimpleQueue<Node>();
-		HashSet<Node> printed = new HashSet<Node>();
+		int epoch = Node.newEpoch();
 		queue.add( start );
+		ArcCursor cursor = new ArcCursor();
 		while ( !queue.isEmpty() )
 		{
 			Node node = queue.poll();
-			ListIterator<Arc> iter = node.outgoingArcs( this );
-			while ( iter.hasNext() )
+			cursor.reset( node, this );
+			Arc a;
+			while ( (a=cursor.next()) != null )
 			{
-				Arc a = iter.next();
 				char[] data = a.getData();
 				// calculate total length
 				totalLen += data.length;
@@ -258,22 +282,10 @@ public class Graph
 					else
 						lengths.put( i, data.length );
 				}
-				a.to.printArc( a );
-				printed.add( a.to );
-				if ( a.to != end && a.to.allPrintedIncoming(constraint) )
-				{
+				if ( a.to.printArc(a,epoch,constraint) && a.to != end )
 					queue.add( a.to );
-					a.to.reset();
-				}
 			}
 		}
-		// clear printed
-		Iterator<Node> iter2 = printed.iterator();
-		while ( iter2.hasNext() )
-		{
-			Node n = iter2.next();
-			n.reset();
-		}
 		/// Find the maximum length version
 		Integer max = new Integer( 0 );
 		Set<Integer> keys = lengths.keySet();
@@ -339,32 +351,23 @@ public class Graph
 	public void verify() throws MVDException
 	{
 		SimpleQueue<Node> queue = new SimpleQueue<Node>();
-		HashSet<Node> printed = new HashSet<Node>();
+		int epoch = Node.newEpoch();
 		start.verify();
 		queue.add( start );
+		ArcCursor cursor = new ArcCursor();
 		while ( !queue.isEmpty() )
 		{
 			Node node = queue.poll();
 			node.verify();
-			ListIterator<Arc> iter = node.outgoingArcs(this);
-			while ( iter.hasNext() )
+			cursor.reset( node, this );
+			Arc a;
+			while ( (a=cursor.next()) != null )
 			{
-				Arc a = iter.next();
 				a.verify();
-				a.to.printArc( a );
-				printed.add( a.to );
-				if ( a.to != end && a.to.allPrintedIncoming(constraint) )
-				{
+				if ( a.to.printArc(a,epoch,constraint) && a.to != end )
 					queue.add( a.to );
-				}
 			}
 		}	
-		Iterator<Node> iter2 = printed.iterator();
-		while ( iter2.hasNext() )
-		{
-			Node n = iter2.next();
-			n.reset();
-		}
 		end.verify();
 	}
 	/**
@@ -390,11 +393,12 @@ public class Graph
 		int maxIndegree = 0;
 		int maxOutdegree = 0;
 		StringBuilder sb = new StringBuilder();
-		HashSet<Node> printed = new HashSet<Node>();
+		int epoch = Node.newEpoch();
 		try
 		{
 			SimpleQueue<Node> queue = new SimpleQueue<Node>();
 			queue.add( start );
+			ArcCursor cursor = new ArcCursor();
 			while ( !queue.isEmpty() )
 			{
 				Node node = queue.poll();
@@ -406,26 +410,16 @@ public class Graph
 				totalOutdegree += node.outdegree();
 				totalNodes++;
 				node.verify();
-				ListIterator<Arc> iter = node.outgoingArcs(this);
-				while ( iter.hasNext() )
+				cursor.reset( node, this );
+				Arc a;
+				while ( (a=cursor.next()) != null )
 				{
-					Arc a = iter.next();
 					sb.append( a.toString() );
 					sb.append( "\n" );
-					a.to.printArc( a );
-					printed.add( a.to );
-					if ( a.to != end && a.to.allPrintedIncoming(constraint) )
-					{
+					if ( a.to.printArc(a,epoch,constraint) && a.to != end )
 						queue.add( a.to );
-					}
 				}
 			}
-			Iterator<Node> iter2 = printed.iterator();
-			while ( iter2.hasNext() )
-			{
-				Node n = iter2.next();
-				n.reset();
-			}
 		}
 		catch ( Exception e )
 		{
@@ -443,31 +437,6 @@ public class Graph
 		sb.append( maxIndegree );
 		return sb.toString(); 
 	}
-	/**
-	 * Clear all the printed arcs. Report any that are already 
-	 * printed but shouldn't be. 
-	 */
-	void clearPrinted()
-	{
-		HashMap<Integer,Node> hash = new HashMap<Integer,Node>(1500);
-		SimpleQueue<Node> queue = new SimpleQueue<Node>();
-		queue.add(start);
-		while ( !queue.isEmpty() )
-		{
-			Node node = queue.poll();
-			ListIterator<Arc> iter = node.outgoingArcs();
-			while ( iter.hasNext() )
-			{
-				Arc a = iter.next();
-				if ( !hash.containsKey(a.to.nodeId) )
-				{
-					queue.add( node );
-					node.reset();
-					hash.put( a.to.nodeId, a.to );
-				}
-			}
-		}
-	}
 	// extra routines for nmerge
 	/**
 	 * Get the start node (read only)
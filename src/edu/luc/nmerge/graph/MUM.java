@@ -24,9 +24,10 @@ import java.util.ListIterator;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 
-import edu.luc.nmerge.graph.suffixtree.SuffixTree;
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
 import edu.luc.nmerge.exception.*;
 import edu.luc.nmerge.mvd.MVDFile;
 /**
@@ -62,6 +63,8 @@ public class MUM implements Comparable<MUM>
 	short version;
 	/** store candidate MUMs here */
 	HashMap<Match,Match> table;
+	/** if not null collect candidates here in order instead */
+	ArrayList<Match> candidates;
 	/** are we transposed? */
 	boolean transposed;
 	/** transposing on the left? */
@@ -86,6 +89,20 @@ public class MUM implements Comparable<MUM>
 		this.transposed = transposed;
 		table = new HashMap<Match,Match>( INITIAL_QUEUE_LEN );
 	}
+	/**
+	 * Create a MUM that only collects candidate matches for another. 
+	 * Used by a batch of searches running on a worker thread.
+	 * @param mum the MUM the candidates are for
+	 */
+	MUM( MUM mum )
+	{
+		this.arc = mum.arc;
+		this.version = mum.version;
+		this.graph = mum.graph;
+		this.transposed = mum.transposed;
+		this.transposeLeft = mum.transposeLeft;
+		this.candidates = new ArrayList<Match>();
+	}
 	/**
 	 * Store in the priority table.
 	 * @param start the nearest node after which the match starts
@@ -103,27 +120,39 @@ public class MUM implements Comparable<MUM>
 		/*if ( !transposed || withinThreshold(distance,dataOffset,length) )
 		{*/
 			// select first version of match
-			BitSet bs = new BitSet();
-			bs.or( matchVersions );
+			short v = (short)matchVersions.nextSetBit(0);
 			// adjust if alignment is direct
 			if ( !transposed )
-				bs.and( graph.constraint );
-			short v = (short)bs.nextSetBit(0);
+			{
+				while ( v != -1 && !graph.constraint.get(v) )
+					v = (short)matchVersions.nextSetBit(v+1);
+			}
 			assert v != -1;
 			Match m = new Match( start, graphOffset, v, dataOffset, 
 				length, arc.data );
-			Match q = table.get( m );
-			if ( q != null )
-			{
-				if ( !m.overlaps(q) )
-					q.freq++;
-				// else it is the same data sharing part of the same 
-				// path, so it is really the same match
-			}
+			if ( candidates != null )
+				candidates.add( m );
 			else
-				table.put( m, m );
+				add( m );
 		/*}*/
 	}
+	/**
+	 * Add a candidate match to the table or count it if already there
+	 * @param m the match to add
+	 */
+	void add( Match m )
+	{
+		Match q = table.get( m );
+		if ( q != null )
+		{
+			if ( !m.overlaps(q) )
+				q.freq++;
+			// else it is the same data sharing part of the same 
+			// path, so it is really the same match
+		}
+		else
+			table.put( m, m );
+	}
 	/**
 	 * Get the length of this MUM
 	 * @return the length of the data
@@ -227,64 +256,71 @@ public class MUM implements Comparable<MUM>
 	 * Find a direct MUM by comparing a special arc with its immediately 
 	 * opposite subgraph
 	 * @param special the special arc to find the MUM of
-	 * @param st the suffix tree made from special
+	 * @param st the suffix index made from special
 	 * @param subGraph the subgraph directly opposite it
 	 * @return the best MUM or null
 	 */
-	public static MUM findDirectMUM( SpecialArc special, SuffixTree st, 
+	public static MUM findDirectMUM( SpecialArc special, SuffixIndex st, 
 		Graph subGraph ) throws MVDException
+	{
+		return findDirectMUM( special, st, subGraph, null );
+	}
+	/**
+	 * Find a direct MUM by comparing a special arc with its immediately 
+	 * opposite subgraph, optionally searching in parallel
+	 * @param special the special arc to find the MUM of
+	 * @param st the suffix index made from special
+	 * @param subGraph the subgraph directly opposite it
+	 * @param executor if not null search from batches of start 
+	 * positions on this
+	 * @return the best MUM or null
+	 */
+	public static MUM findDirectMUM( SpecialArc special, SuffixIndex st, 
+		Graph subGraph, ExecutorService executor ) throws MVDException
 	{
 		MUM mum = new MUM( special, subGraph, false );
-		HashSet<Node> printedNodes = new HashSet<Node>( PRINTED_HASH_SIZE );
+		MatchBatcher batcher = (executor==null)?null
+			:new MatchBatcher( mum, subGraph, st, executor );
+		Traversal traversal = new Traversal();
 		SimpleQueue<Node> queue = new SimpleQueue<Node>();
 		queue.add( subGraph.start );
+		ArcCursor cursor = new ArcCursor();
 		Arc lastArc=null;
-		printedNodes.add( subGraph.start );
 		PrevChar[] prevChars = new PrevChar[0];
 		if ( MVDFile.debug )
 			subGraph.verify();
 		while ( !queue.isEmpty() )
 		{
 			Node node = queue.poll();
-			ListIterator<Arc> iter = node.outgoingArcs( subGraph );
-			while ( iter.hasNext() )
+			traversal.visit( node );
+			cursor.reset( node, subGraph );
+			Arc a;
+			while ( (a=cursor.next()) != null )
 			{
-				Arc a = iter.next();
 				if ( a.dataLen() > 0 && (!a.isParent()
 					||!a.hasChildInVersion(mum.version)) )
 				{
-					// first character
-					MatchThreadDirect mtd;
 					char[] data = a.getData();
 					if ( a.from != subGraph.start )
                         prevChars = a.from.getPrevChars(
                             subGraph.constraint,subGraph.start);
-                    mtd = new MatchThreadDirect( 
-                        mum, subGraph, st, a, a.from, 0, 
-                        prevChars, subGraph.end );
-                    mtd.run();
+					if ( batcher != null )
+						batcher.add( a, prevChars );
+					else
+						searchArc( mum, subGraph, st, a, 0, data.length, 
+							prevChars );
+					// later arcs from subGraph.start inherit the 
+					// chars that preceded our last char
 					if ( data.length > 1 )
 					{
 						prevChars = new PrevChar[1];
-						BitSet prevVersions = new BitSet();
-						prevVersions.or( a.versions );
-						prevVersions.and( subGraph.constraint );
-						// other (1 to N) characters
-						for ( int i=1;i<data.length;i++ )
-						{
-							prevChars[0] = new PrevChar(
-                                prevVersions, data[i-1] );
-                            mtd = new MatchThreadDirect( 
-                                mum, subGraph, st, a, a.from, i, 
-                                prevChars, subGraph.end );
-                            mtd.run();
-						}
+						prevChars[0] = new PrevChar( 
+							prevVersions(a,subGraph), data[data.length-2] );
 					}
 				}
-				a.to.printArc( a );
-				printedNodes.add( a.to );
-				if ( a.to != subGraph.end && a.to.allPrintedIncoming(
-					subGraph.constraint) )
+				traversal.printArc( a.to, a );
+				if ( a.to != subGraph.end && traversal.allPrintedIncoming(
+					a.to, subGraph.constraint) )
 				{
 					queue.add( a.to );
 				}
@@ -292,12 +328,59 @@ public class MUM implements Comparable<MUM>
 			}
 		}
 		assert lastArc.to == subGraph.end;
-		clearPrintedArcs( printedNodes );
+		if ( batcher != null )
+			batcher.finish();
 		if ( mum.length() > 0 )
 			return mum;
 		else
 			return null;
 	}
+	/**
+	 * Look for direct matches starting at a run of offsets in one arc
+	 * @param mum the MUM to update
+	 * @param subGraph the subgraph directly opposite the special arc
+	 * @param st the suffix index made from the special arc
+	 * @param a the arc to search
+	 * @param from the first offset in a to start from
+	 * @param to the offset in a to stop before
+	 * @param prevChars the chars that may precede offset 0 of a
+	 */
+	static void searchArc( MUM mum, Graph subGraph, SuffixIndex st, Arc a, 
+		int from, int to, PrevChar[] prevChars )
+	{
+		char[] data = a.getData();
+		PrevChar[] others = null;
+		BitSet prevVersions = null;
+		for ( int i=from;i<to;i++ )
+		{
+			if ( i > 0 )
+			{
+				if ( others == null )
+				{
+					others = new PrevChar[1];
+					prevVersions = prevVersions( a, subGraph );
+				}
+				others[0] = new PrevChar( prevVersions, data[i-1] );
+			}
+			MatchThreadDirect mtd = new MatchThreadDirect( mum, subGraph, 
+				st, a, a.from, i, (i==0)?prevChars:others, subGraph.end );
+			mtd.run();
+		}
+	}
+	/**
+	 * Get the versions of the chars inside an arc that could 
+	 * precede a match
+	 * @param a the arc
+	 * @param subGraph the subgraph containing it
+	 * @return the versions of a within the subgraph's constraint
+	 */
+	private static BitSet prevVersions( Arc a, Graph subGraph )
+	{
+		BitSet prevVersions = new BitSet();
+		prevVersions.or( a.versions );
+		prevVersions.and( subGraph.constraint );
+		return prevVersions;
+	}
 	/**
 	 * Check that we can't get back to the source node
 	 * @param list the list of previously seen nodes
@@ -341,11 +424,11 @@ public class MUM implements Comparable<MUM>
 	 * Find the left transpose MUM by comparing a special arc with  
 	 * the graph to the left of the immediately opposite subgraph
 	 * @param special the special arc to find the transpose MUM of
-	 * @param st the suffix tree made from special
+	 * @param st the suffix index made from special
 	 * @param subGraph the subgraph directly opposite it
 	 * @return the best left transpose MUM or null
 	 */
-	public static MUM findLeftTransposeMUM( SpecialArc special, SuffixTree st, 
+	public static MUM findLeftTransposeMUM( SpecialArc special, SuffixIndex st, 
 		Graph subGraph )
 	{
 		MUM mum = new MUM( special, subGraph, true );
@@ -369,34 +452,34 @@ public class MUM implements Comparable<MUM>
 	 * Proceed backwards using breadth first search. Any arc reachable from 
 	 * the start node of the graph is fair game for a transposition. This means
 	 * that we will gradually expand our range of versions, while marking the 
-	 * arcs that we have traversed via the outgoing print-arc facility of node. 
+	 * arcs that we have traversed as printed outgoing in the traversal. 
 	 * Then threads that generate the actual matches know only to traverse 
 	 * these marked arcs. Special arcs are avoided because we only do 
 	 * transpositions between special arcs and the graph.
 	 * @param mum the transpose mum to build
-	 * @param st the suffix tree of the special arc
+	 * @param st the suffix index of the special arc
 	 * @param node node to look backwards from
 	 * @param distance the distance to search left in bytes
 	 */
-	static void findLeftPositions( MUM mum, SuffixTree st, 
+	static void findLeftPositions( MUM mum, SuffixIndex st, 
 		Node node, int distance )
 	{
-		HashSet<Node> printedNodes = new HashSet<Node>( 
-			PRINTED_HASH_SIZE );
+		Traversal traversal = new Traversal();
 		SimpleQueue<Node> queue = new SimpleQueue<Node>();
 		int travelled = 0;
 		short mumV = mum.version;
 		Node origin = node;
 		//BitSet range = new BitSet();
 		queue.add( node );
-		node.setShortestPath( 0 );
+		traversal.setShortestPath( node, 0 );
 		while ( !queue.isEmpty() )
 		{
 			node = queue.poll();
+			traversal.visit( node );
 			// ALL of the incoming arcs are within range
 			//range.or( node.getIncomingSet() );
 			// the shortest path to get to this node
-			int shortestPath = node.getShortestPath();
+			int shortestPath = traversal.getShortestPath( node );
 			ListIterator<Arc> iter = node.incomingArcs();
 			while ( iter.hasNext() )
 			{
@@ -427,52 +510,31 @@ public class MUM implements Comparable<MUM>
                             prevChars = a.from.getPrevChars();
                         mtt = new MatchThreadTransposeLeft( 
                             mum, st, a, i, prevChars, 
-                            shortestPath+travelled, origin );
+                            shortestPath+travelled, origin, traversal );
                         mtt.run();
 						travelled++;
 					}
 				}
 				// finished with this arc: record distance travelled
-				a.from.printOutgoingArc( a, shortestPath );
-				// keep track of nodes with printed arcs
-				printedNodes.add( a.from );
+				traversal.printOutgoingArc( a.from, a, shortestPath );
 				if ( distance-(shortestPath+travelled) > 0 
 					&& a.from.indegree() > 0 
-					&& a.from.allPrintedOutgoing() )
+					&& traversal.allPrintedOutgoing(a.from) )
 				{
 					queue.add( a.from );
 				}
 			}
 		}
-		clearPrintedArcs( printedNodes );
-	}
-	/**
-	 * Clear the printed arcs and outgoing printed arcs of any nodes 
-	 * in the set
-	 * @param printedNodes a set of nodes with some arcs printed.
-	 */
-	static void clearPrintedArcs( HashSet<Node> printedNodes )
-	{
-		Iterator<Node> iter2 = printedNodes.iterator();
-		while ( iter2.hasNext() )
-		{
-			Node n = iter2.next();
-			n.reset();
-		}
-		//totalHashSize += printedNodes.size();
-		//numberOfHashes++;
-		//if ( printedNodes.size() > maxHashSize )
-		//	maxHashSize = printedNodes.size();
 	}
 	/**
 	 * Find the right transpose MUM by comparing a special arc with the rest 
 	 * of the overall graph to the right of the immediately opposite subgraph.
 	 * @param special the special arc to find the transpose MUM of
-	 * @param st the suffix tree made from special
+	 * @param st the suffix index made from special
 	 * @param subGraph the subgraph directly opposite it
 	 * @return the best right transpose MUM or null
 	 */
-	public static MUM findRightTransposeMUM( SpecialArc special, SuffixTree st, 
+	public static MUM findRightTransposeMUM( SpecialArc special, SuffixIndex st, 
 		Graph subGraph )
 	{
 		MUM mum = new MUM( special, subGraph, true );
@@ -495,29 +557,29 @@ public class MUM implements Comparable<MUM>
 	 * on the right of the subgraph. Proceed forwards using breadth-first 
 	 * search.
 	 * @param mum the MUM to update
-	 * @param st the suffix tree to lookup matches in
+	 * @param st the suffix index to lookup matches in
 	 * @param node the node to start from
 	 * @param distance the distance to search forwards
 	 */
-	static void findRightPositions( MUM mum, SuffixTree st, Node node, 
+	static void findRightPositions( MUM mum, SuffixIndex st, Node node, 
 		int distance )
 	{
 		SimpleQueue<Node> queue = new SimpleQueue<Node>();
-		HashSet<Node> printedNodes = new HashSet<Node>( PRINTED_HASH_SIZE );
+		Traversal traversal = new Traversal();
 		Node origin = node;
 		BitSet range = new BitSet();
 		int travelled = 0;
 		short mumV = mum.version;
-		printedNodes.add( node );
 		queue.add( node );
-		node.setShortestPath( 0 );
+		traversal.setShortestPath( node, 0 );
 		while ( !queue.isEmpty() )
 		{
 			node = queue.poll();
+			traversal.visit( node );
 			// ALL of the incoming arcs are within range
 			range.or( node.getOutgoingSet() );
 			// the shortest path to get to this node
-			int shortestPath = node.getShortestPath();
+			int shortestPath = traversal.getShortestPath( node );
 			ListIterator<Arc> iter = node.outgoingArcs();
 			while ( iter.hasNext() )
 			{
@@ -559,19 +621,15 @@ public class MUM implements Comparable<MUM>
 					}
 				}
 				// finished with this arc: record distance travelled
-				a.to.printArc( a, shortestPath+a.dataLen() );
-				// keep track of nodes with printed arcs
-				printedNodes.add( a.to );
+				traversal.printArc( a.to, a, shortestPath+a.dataLen() );
 				if ( distance-(shortestPath+a.dataLen()) > 0 
 					&& a.to.outdegree() > 0 
-					&& a.to.allPrintedIncoming(range) )
+					&& traversal.allPrintedIncoming(a.to,range) )
 				{
 					queue.add( a.to );
 				}
 			}
 		}
-		// important: clean up all printed arcs
-		clearPrintedArcs( printedNodes );
 	}
 	/**
 	 * Carry out the merge already calculated
@@ -1036,10 +1094,13 @@ public class MUM implements Comparable<MUM>
 		return transposed;
 	}
 	/**
-	 * This is used in TreeMap to order the special arc keys. Since we want them 
-	 * sorted by decreasing length we return 1 if we are LESS than the other.
+	 * Rank two MUMs so that the better one comes first: longer before 
+	 * shorter and, at equal length, direct before transposed. So we 
+	 * return 1 if we are LESS good than the other. MVD uses this to pick 
+	 * the best MUM for a special arc; SpecialQueue orders its arcs the 
+	 * same way but through its own packed priority.
 	 * @param other the other MUM to compare this to
-	 * @return 0 if equal in length, -1 if we are less than other, 1 if greater
+	 * @return 0 if equally good, -1 if we are better than other, 1 if worse
 	 */
 	public int compareTo( MUM other ) 
 	{
@@ -0,0 +1,183 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph;
+
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
+import edu.luc.nmerge.exception.MVDException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Run the direct match searches of findDirectMUM in parallel. The
+ * start positions in the arcs of the subgraph are cut up into batches
+ * of roughly equal size as the breadth-first traversal finds them.
+ * Each batch collects its candidate matches privately and at the end
+ * they are added to the MUM in batch order, i.e. in the same order
+ * as a sequential search would have found them, so the result is the
+ * same. A thread that waits for a batch runs it itself if no worker
+ * has started on it yet, so batches never wait for a busy executor.
+ * @author Desmond Schmidt
+ */
+class MatchBatcher
+{
+	/** number of start positions in a batch */
+	static final int BATCH_SIZE = 256;
+	/** the MUM to update */
+	MUM mum;
+	/** the subgraph directly opposite the special arc */
+	Graph subGraph;
+	/** the suffix index of the special arc */
+	SuffixIndex st;
+	/** where to run the batches */
+	ExecutorService executor;
+	/** batches already submitted in order */
+	ArrayList<FutureTask<ArrayList<Match>>> tasks;
+	/** the batch being filled */
+	Batch current;
+	/**
+	 * A run of start positions in one arc
+	 */
+	static class Segment
+	{
+		/** the arc to search */
+		Arc arc;
+		/** the first offset to start from */
+		int from;
+		/** the offset to stop before */
+		int to;
+		/** the chars that may precede offset 0 of arc */
+		PrevChar[] prevChars;
+	}
+	/**
+	 * A batch of segments searched by one task
+	 */
+	class Batch implements Callable<ArrayList<Match>>
+	{
+		/** the segments to search */
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		/** the number of start positions in all the segments */
+		int size;
+		/**
+		 * Search all the segments
+		 * @return the candidate matches found in order
+		 */
+		public ArrayList<Match> call()
+		{
+			MUM local = new MUM( mum );
+			for ( int i=0;i<segments.size();i++ )
+			{
+				Segment s = segments.get( i );
+				MUM.searchArc( local, subGraph, st, s.arc, s.from, s.to,
+					s.prevChars );
+			}
+			return local.candidates;
+		}
+	}
+	/**
+	 * Create a batcher
+	 * @param mum the MUM to update
+	 * @param subGraph the subgraph directly opposite the special arc
+	 * @param st the suffix index of the special arc
+	 * @param executor the executor to run the batches on
+	 */
+	MatchBatcher( MUM mum, Graph subGraph, SuffixIndex st,
+		ExecutorService executor )
+	{
+		this.mum = mum;
+		this.subGraph = subGraph;
+		this.st = st;
+		this.executor = executor;
+		this.tasks = new ArrayList<FutureTask<ArrayList<Match>>>();
+		this.current = new Batch();
+	}
+	/**
+	 * Add all the start positions of an arc, submitting batches
+	 * as they fill up
+	 * @param a the arc to search
+	 * @param prevChars the chars that may precede offset 0 of a.
+	 * They must not be modified afterwards.
+	 */
+	void add( Arc a, PrevChar[] prevChars )
+	{
+		int len = a.dataLen();
+		int from = 0;
+		while ( from < len )
+		{
+			Segment s = new Segment();
+			s.arc = a;
+			s.from = from;
+			s.to = Math.min( len, from+BATCH_SIZE-current.size );
+			s.prevChars = prevChars;
+			current.segments.add( s );
+			current.size += s.to-s.from;
+			from = s.to;
+			if ( current.size == BATCH_SIZE )
+				submit();
+		}
+	}
+	/**
+	 * Hand the current batch over to the executor
+	 */
+	private void submit()
+	{
+		FutureTask<ArrayList<Match>> task =
+			new FutureTask<ArrayList<Match>>( current );
+		tasks.add( task );
+		executor.execute( task );
+		current = new Batch();
+	}
+	/**
+	 * Wait for all the batches and add their candidates to the MUM
+	 * @throws MVDException if a batch failed or we were interrupted
+	 */
+	void finish() throws MVDException
+	{
+		if ( current.size > 0 )
+			submit();
+		try
+		{
+			for ( int i=0;i<tasks.size();i++ )
+			{
+				FutureTask<ArrayList<Match>> task = tasks.get( i );
+				// does nothing if a worker already started it
+				task.run();
+				ArrayList<Match> candidates = task.get();
+				for ( int j=0;j<candidates.size();j++ )
+					mum.add( candidates.get(j) );
+			}
+		}
+		catch ( ExecutionException e )
+		{
+			Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw (Error)cause;
+			throw new MVDException( (Exception)cause );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new MVDException( e );
+		}
+	}
+}
@@ -20,16 +20,16 @@
  */
 package edu.luc.nmerge.graph;
 
-import edu.luc.nmerge.graph.suffixtree.SuffixTree;
-import edu.luc.nmerge.graph.suffixtree.Pos;
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
+import edu.luc.nmerge.graph.suffixtree.MatchCursor;
 import java.util.BitSet;
-import java.util.ListIterator;
 
 /**
  * A MatchThread examines a run of characters, starting at some 
  * position, in a single arc. It could be a Thread, but in this 
  * implementation it is not because it is probably faster this 
- * way (no blocking required).
+ * way (no blocking required). Instead MatchBatcher runs batches of 
+ * them on worker threads.
  * @author Desmond Schmidt 3/11/08 modified to use MUMs 14/1/09 
  * modified for new path specification 21/1/09
  */
@@ -39,8 +39,8 @@ public class MatchThreadDirect implements Runnable
 	protected MUM mum;
 	/** the subgraph we are searching through */
 	protected Graph graph;
-	/** the Suffix Tree we are matching against */
-	protected SuffixTree st;
+	/** the suffix index we are matching against */
+	protected SuffixIndex st;
 	/** the last node we have seen before the match started */
 	Node start;
 	/** the start offset from start in bytes */
@@ -51,10 +51,12 @@ public class MatchThreadDirect implements Runnable
 	protected int travelled;
 	/** the arc being currently searched */
 	Arc arc;
-	/** the current position in the SuffixTree */
-	protected Pos pos;
+	/** the current position in the suffix index */
+	protected MatchCursor pos;
 	/** Versions shared by all arcs in the path */
 	protected BitSet versions;
+	/** true if versions belongs to the instance we were copied from */
+	boolean sharedVersions;
 	/** overall length of the path in bytes */
 	protected int pathLen;
 	/** array of immediately preceding bytes in the variant graph */
@@ -74,17 +76,17 @@ public class MatchThreadDirect implements Runnable
 	{
 	}
 	/**
-	 * A MatchThread looks for matches in the suffix tree 
+	 * A MatchThread looks for matches in the suffix index 
 	 * vis-a-vis the variant graph.
 	 * @param mum the MUM to update if we find a longer match
-	 * @param st the suffix tree of the arc
+	 * @param st the suffix index of the arc
 	 * @param arc the arc we are currently searching 
 	 * @param graph the subgraph containing the arc
 	 * @param start the last node we have seen
 	 * @param prevChars an array of possible bytes that immediately 
 	 * precede this match
 	 */
-	public MatchThreadDirect( MUM mum, Graph graph, SuffixTree st, Arc arc,  
+	public MatchThreadDirect( MUM mum, Graph graph, SuffixIndex st, Arc arc,  
 		Node start, int offset, PrevChar[] prevChars, Node forbidden )
 	{
 		this.mum = mum;
@@ -93,7 +95,7 @@ public class MatchThreadDirect implements Runnable
 		this.arc = arc;
 		this.start = start;
 		this.graph = graph;
-		this.pos = new Pos( null, 0 );
+		this.pos = st.getCursor();
 		this.offset = offset;
 		this.prevChars = prevChars;
 		this.forbidden = forbidden;
@@ -115,9 +117,10 @@ public class MatchThreadDirect implements Runnable
 		this.offset = mtd.offset;
 		// don't forget to duplicate this!
 		// or splits will update each other
-		this.pos = new Pos( mtd.pos.node, mtd.pos.edgePos );
-		this.versions = new BitSet();
-		this.versions.or( mtd.versions );
+		this.pos = mtd.pos.copy();
+		// copied on write in addToPath
+		this.versions = mtd.versions;
+		this.sharedVersions = true;
 		this.pathLen = mtd.pathLen;
 		this.prevChars = mtd.prevChars;
 		this.travelled = mtd.travelled;
@@ -140,7 +143,7 @@ public class MatchThreadDirect implements Runnable
 	{
 		char[] data = arc.getData();
 		while ( first < data.length 
-			&& st.advance(pos,data[first]) )
+			&& pos.advance(data[first]) )
 		{
 			first++;
 			pathLen++;
@@ -178,8 +181,8 @@ public class MatchThreadDirect implements Runnable
 		// first test: are we long enough?
 		if ( pathLen >= MUM.MIN_LEN )
 		{
-			// second test: are we unique in the suffix tree?
-			if ( pos.node.isLeaf() )
+			// second test: are we unique in the suffix index?
+			if ( pos.isUnique() )
 			{
 				// third test
 				if ( isMaximal() )		
@@ -187,7 +190,7 @@ public class MatchThreadDirect implements Runnable
 					addToPath( arc );
 					// if we matched at least one byte of the current arc
 					mum.update( start, offset, versions, 
-						pos.edgePos-pathLen, pathLen, travelled );
+						pos.getStart(pathLen), pathLen, travelled );
 				}
 				// else it's a substring of the maximum match
 			}
@@ -203,22 +206,18 @@ public class MatchThreadDirect implements Runnable
 	 */
 	protected boolean isMaximal()
 	{
-		int prevCharIndex = pos.edgePos-(pathLen+1);
+		int prevCharIndex = pos.getStart(pathLen)-1;
 		if ( prevCharIndex >= 0 )
 		{
 			char dataPrevChar = mum.arc.getData()[prevCharIndex];
 			if ( prevCharIndex >= 0 )
 			{
-				BitSet pathVersions = new BitSet();
-				if ( versions != null )
-					pathVersions.or( versions );
-				pathVersions.and( arc.versions );
 				for ( int i=0;i<prevChars.length;i++ )
 				{
 					if ( prevChars[i] == null )
 						System.out.println("null");
 					if ( prevChars[i].previous == dataPrevChar 
-						&& prevChars[i].versions.intersects(pathVersions) )
+						&& onPath(prevChars[i].versions) )
 						return false;
 				}
 			}
@@ -239,10 +238,10 @@ public class MatchThreadDirect implements Runnable
 		addToPath( arc );
 		if ( arc.to != forbidden )
 		{
-			ListIterator<Arc> iter = arc.to.outgoingArcs( graph );
-			while ( iter.hasNext() )
+			ArcCursor cursor = new ArcCursor().reset( arc.to, graph );
+			Arc a;
+			while ( (a=cursor.next()) != null )
 			{
-				Arc a = iter.next();
 				if ( a.versions.intersects(versions)&&(!a.isParent()
 					||!a.hasChildInVersion(mum.version)) )
 				{
@@ -276,7 +275,48 @@ public class MatchThreadDirect implements Runnable
 			if ( graph != null )
 				versions.and( graph.constraint );
 		}
-		else
+		else if ( !isSubset(versions,arc.versions) )
+		{
+			if ( sharedVersions )
+			{
+				versions = (BitSet)versions.clone();
+				sharedVersions = false;
+			}
 			versions.and( arc.versions );
+		}
+	}
+	/**
+	 * Does a set of versions intersect with those of the path 
+	 * so far extended by the current arc? Saves building the 
+	 * intersection of the path and arc versions.
+	 * @param bs the versions to test
+	 * @return true if at least one version in bs is on the path
+	 */
+	private boolean onPath( BitSet bs )
+	{
+		// no path yet: nothing can precede it
+		if ( versions == null )
+			return false;
+		for ( int i=bs.nextSetBit(0);i>=0;i=bs.nextSetBit(i+1) )
+		{
+			if ( arc.versions.get(i) && versions.get(i) )
+				return true;
+		}
+		return false;
+	}
+	/**
+	 * Is one set of versions contained in another?
+	 * @param a the possible subset
+	 * @param b the possible superset
+	 * @return true if every version of a is also in b
+	 */
+	static boolean isSubset( BitSet a, BitSet b )
+	{
+		for ( int i=a.nextSetBit(0);i>=0;i=a.nextSetBit(i+1) )
+		{
+			if ( !b.get(i) )
+				return false;
+		}
+		return true;
 	}
 }
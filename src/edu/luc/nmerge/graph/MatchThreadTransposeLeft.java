@@ -21,7 +21,7 @@
 package edu.luc.nmerge.graph;
 
 import java.util.ListIterator;
-import edu.luc.nmerge.graph.suffixtree.SuffixTree;
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
 
 /**
  * This version of MatchThread searches the arcs to the left 
@@ -33,21 +33,26 @@ import edu.luc.nmerge.graph.suffixtree.SuffixTree;
  */
 public class MatchThreadTransposeLeft extends MatchThreadDirect
 {
+	/** the traversal that printed the arcs we may follow */
+	Traversal traversal;
 	/**
 	 * Constructor for thread to search for matches
 	 * @param mum the mum we have to update
-	 * @param st the suffix tree representing the new version 
+	 * @param st the suffix index representing the new version 
 	 * @param a the arc to start searching from
 	 * @param first the offset into a at which to start
 	 * @param prevChars an array of characters preceding a[first]
 	 * @param travelled the distance from the special arc on our right
 	 * @param forbidden the forbidden node we mustn't cross
+	 * @param traversal the traversal that printed the arcs we may follow
 	 */
-	MatchThreadTransposeLeft( MUM mum, SuffixTree st, Arc a, 
-		int first, PrevChar[] prevChars, int travelled, Node forbidden )
+	MatchThreadTransposeLeft( MUM mum, SuffixIndex st, Arc a, 
+		int first, PrevChar[] prevChars, int travelled, Node forbidden,
+		Traversal traversal )
 	{
 		super( mum, null, st, a, a.from, first, prevChars, forbidden );
 		this.travelled = travelled;
+		this.traversal = traversal;
 	}
 	/**
 	 * Copy constructor for recursion
@@ -57,6 +62,7 @@ public class MatchThreadTransposeLeft extends MatchThreadDirect
 	{
 		super( mttl );
 		this.forbidden = mttl.forbidden;
+		this.traversal = mttl.traversal;
 	}
 	/** 
 	 * Move on to the next arc(s) - if you can - by recursion.
@@ -74,7 +80,7 @@ public class MatchThreadTransposeLeft extends MatchThreadDirect
 			{
 				Arc a = iter.next();
 				if ( a.versions.intersects(versions)
-					&&a.to.isPrintedOutgoing(a.versions)
+					&&traversal.isPrintedOutgoing(a.to,a.versions)
 					&&a.versions.nextSetBit(mum.version)!=mum.version
 					&&(!a.isParent()||!a.hasChildInVersion(mum.version)) )
 				{
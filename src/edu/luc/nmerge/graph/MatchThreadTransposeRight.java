@@ -20,7 +20,7 @@
  */
 package edu.luc.nmerge.graph;
 
-import edu.luc.nmerge.graph.suffixtree.SuffixTree;
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
 import java.util.ListIterator;
 
 
@@ -35,14 +35,14 @@ public class MatchThreadTransposeRight extends MatchThreadDirect
 	/**
 	 * Constructor for thread to search for matches
 	 * @param mum the mum we have to update
-	 * @param st the suffix tree representing the new version 
+	 * @param st the suffix index representing the new version 
 	 * @param a the arc to start searching from
 	 * @param first the offset into a at which to start
 	 * @param prevChars an array of characters preceding a[first]
 	 * @param travelled the distance from the special arc
 	 * @param forbidden don't travel beyond this node (should be null)
 	 */
-	MatchThreadTransposeRight( MUM mum, SuffixTree st, Arc a, 
+	MatchThreadTransposeRight( MUM mum, SuffixIndex st, Arc a, 
 		int first, PrevChar[] prevChars, int travelled, Node forbidden )
 	{
 		super( mum, null, st, a, a.from, first, prevChars, forbidden );
@@ -23,6 +23,7 @@ package edu.luc.nmerge.graph;
 import java.util.ArrayList;
 import java.util.ListIterator;
 import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.LinkedList;
 import edu.luc.nmerge.exception.*;
 
@@ -33,23 +34,23 @@ import edu.luc.nmerge.exception.*;
 public class Node
 {
 	/** set of incoming arcs, perhaps empty */
-	private LinkedList<Arc> incoming;
+	private ArcList incoming;
 	/** set of outgoing arcs, perhaps empty */
-	private LinkedList<Arc> outgoing;
+	private ArcList outgoing;
 	/** set of incoming versions */
 	private BitSet incomingSet;
 	/** set of outgoing versions */
 	private BitSet outgoingSet;
-	/** used during breadth-first traversal */
-	BitSet printed;
-	/** used during backwards breadth-first traversal */
-	BitSet printedOutgoing;
-	/** the shortest route to the node! */
-	int shortestPathToNode;
+	/** the breadth-first traversal that last printed an incoming arc */
+	int epoch;
+	/** incoming arcs still to be printed in that traversal */
+	int unprinted;
+	/** traversal stamp counter (static) */
+	static AtomicInteger epochs = new AtomicInteger( 0 );
 	/** list of Matches */
 	LinkedList<Match> matches;
 	/** new id counter (static) */
-	static int id = 1;
+	static AtomicInteger id = new AtomicInteger( 1 );
 	/** unique identifier */
 	int nodeId;
     /**
@@ -57,21 +58,20 @@ public class Node
 	 */
 	public Node()
 	{
-		incoming = new LinkedList<Arc>();
-		outgoing = new LinkedList<Arc>();
-		printed = new BitSet();
-		printedOutgoing = new BitSet();
+		incoming = new ArcList();
+		outgoing = new ArcList();
 		incomingSet = new BitSet();
 		outgoingSet = new BitSet();
-		nodeId = Node.id++;
+		nodeId = Node.id.getAndIncrement();
 	}
 	/**
 	 * We are being used as the start point of a match. In case 
 	 * we ever get eliminated by an alignMerge operation our 
-	 * match-relatives will need to be told.
+	 * match-relatives will need to be told. Synchronized because 
+	 * MUM searches may run concurrently over the same graph.
 	 * @param m a match that relies on us
 	 */
-	public void addMatch( Match m )
+	public synchronized void addMatch( Match m )
 	{
 		// lazy evaluation - usually matches is null
 		if ( matches == null )
@@ -105,7 +105,6 @@ public class Node
 				"There is already an outgoing arc with that version");
 		outgoing.add( a );	
 		outgoingSet.or( a.versions );
-		printedOutgoing.or( a.versions );
 		a.setFrom( this );
 	}
 	/**
@@ -130,34 +129,6 @@ public class Node
 		incoming.add( a );
 		incomingSet.or( a.versions );
 		a.setTo( this );
-		printed.or( a.versions );
-	}
-	/**
-	 * After printing a node, reset its printed set to the 
-	 * incoming one so we can print it again. Same for outgoing 
-	 * also.
-	 */
-	public void reset()
-	{
-		printed.or( incomingSet );
-		printedOutgoing.or( outgoingSet );
-		shortestPathToNode = 0;
-	}
-	/**
-	 * Get the shortest path to the node from either side.
-	 * @return the shortest path to this node
-	 */
-	public int getShortestPath()
-	{
-		return shortestPathToNode;
-	}
-	/**
-	 * Set the shortest path
-	 * @param value the value of the path length
-	 */
-	public void setShortestPath( int value )
-	{
-		shortestPathToNode = value;
 	}
 	/**
 	 * Split a Node into two, adding an empty arc between the
@@ -187,87 +158,66 @@ public class Node
 		return right;
     }
 	/**
-	 * "Print" an arc, that is remove it from the printed set.
-	 */
-	public void printArc( Arc a )
-	{
-		printed.andNot( a.versions );
-	}
-	/**
-	 * "Print" an arc, that is remove it from the printed set.
-	 * @param a the arc to print
-	 * @param parentPathLen the shortest path to the from node of a
+	 * Split a Node into two the other way round: move all the 
+	 * incoming arcs to a new left node and join it to this one by an 
+	 * empty arc carrying all the node's versions. Unlike split this 
+	 * can be used on the end node of a graph, which stays the end.
+	 * @return the left hand node
 	 */
-	public void printArc( Arc a, int parentPathLen )
+	public Node splitBefore() throws Exception
 	{
-		printed.andNot( a.versions );
-		if ( shortestPathToNode == 0 
-			|| parentPathLen < shortestPathToNode )
-			shortestPathToNode = parentPathLen;
-	}
-	/**
-	 * Is the given incoming arc printed?
-	 * @param versions the versions of the arc to test
-	 * @return true if an incoming arc with those versions is printed
-	 */
-	public boolean isPrintedIncoming( BitSet versions )
-	{
-		return !versions.intersects( printed );
-	}
-	/**
-	 * Is the given outgoing arc printed?
-	 * @param versions the versions of the arc to test
-	 * @return true if an outgoing arc with those versions is printed
-	 */
-	public boolean isPrintedOutgoing( BitSet versions )
-	{
-		return !versions.intersects( printedOutgoing );
-	}
-	/**
-	 * "Print" an arc backwards. Used in left transpose detection.
-	 * (breadth-first backwards traversal). 
-	 */
-	public void printOutgoingArc( Arc a )
-	{
-		printedOutgoing.andNot( a.versions );
-	}
-	/**
-	 * "Print" an arc, that is remove it from the printed set. Used 
-	 * in left transpose detection.
-	 * @param a the arc to print
-	 * @param parentPathLen the shortest path from the to node of a
-	 */
-	public void printOutgoingArc( Arc a, int parentPathLen )
-	{
-		printedOutgoing.andNot( a.versions );
-		if ( shortestPathToNode == 0 
-			|| parentPathLen + a.dataLen() < shortestPathToNode )
-			shortestPathToNode = parentPathLen + a.dataLen();
-	}
-	/**
-	 * Have all the outgoing arcs been printed (backwards)?
-	 * @return true if there are none left in the printedOutgoing set
-	 */
-	boolean allPrintedOutgoing()
-	{
-		return printedOutgoing.isEmpty();
+		Node left = new Node();
+		BitSet bs = new BitSet();
+		bs.or( getVersions() );
+		Arc a = new Arc( bs, new char[0] );
+		Arc[] array = new Arc[incoming.size()];
+		incoming.toArray( array );
+		for ( int i=0;i<array.length;i++ )
+		{
+			removeIncoming( array[i] );
+			left.addIncoming( array[i] );
+		}
+		left.addOutgoing( a );
+		addIncoming( a );
+		return left;
 	}
 	/**
-	 * Have all the incoming arcs been printed?
-	 * @param range the range within which the incoming arcs are assessed
-	 * @return true if there are none left in the printed set
+	 * Get a stamp for a new breadth-first traversal. Nodes and arcs 
+	 * stamped by older traversals count as unprinted in it, so there 
+	 * is nothing to clear afterwards. A node can only be in one such 
+	 * traversal at a time: concurrent MUM searches use a Traversal.
+	 * @return a stamp not used before
 	 */
-	boolean allPrintedIncoming( BitSet range )
+	static int newEpoch()
 	{
-		return !printed.intersects(range);
+		return epochs.incrementAndGet();
 	}
 	/**
-	 * Have all the incoming arcs been printed?
-	 * @return true if there are none left in the printed set
+	 * "Print" an incoming arc during a traversal. The first time the 
+	 * traversal reaches us we count the incoming arcs it has to print 
+	 * before we are done.
+	 * @param a the incoming arc to print
+	 * @param epoch the stamp of the traversal
+	 * @param range only incoming arcs intersecting this count, or null 
+	 * if they all do
+	 * @return true if all the incoming arcs in range are now printed
 	 */
-	public boolean allPrintedIncoming()
+	boolean printArc( Arc a, int epoch, BitSet range )
 	{
-		return printed.isEmpty();
+		if ( this.epoch != epoch )
+		{
+			this.epoch = epoch;
+			unprinted = 0;
+			for ( int i=0;i<incoming.size();i++ )
+				if ( range == null || incoming.get(i).versions.intersects(range) )
+					unprinted++;
+		}
+		if ( a.epoch != epoch )
+		{
+			a.epoch = epoch;
+			unprinted--;
+		}
+		return unprinted == 0;
 	}
 	/**
 	 * How many incoming Arcs are there?
@@ -351,17 +301,30 @@ public class Node
 	public ListIterator<Arc> outgoingArcs( Graph subgraph )
 	{
 		ArrayList<Arc> constrainedArcs = new ArrayList<Arc>();
-		if ( this != subgraph.end )
-		{
-			for ( int i=0;i<outgoing.size();i++ )
-			{
-				Arc a = outgoing.get( i );
-				if ( a.versions.intersects(subgraph.constraint) )
-					constrainedArcs.add( a );
-			}
-		}
+		ArcCursor cursor = new ArcCursor().reset( this, subgraph );
+		Arc a;
+		while ( (a=cursor.next()) != null )
+			constrainedArcs.add( a );
 		return constrainedArcs.listIterator();
 	}
+	/**
+	 * Get an outgoing arc by position
+	 * @param index the index of the arc, less than outdegree()
+	 * @return the arc
+	 */
+	public Arc getOutgoing( int index )
+	{
+		return outgoing.get( index );
+	}
+	/**
+	 * Get an incoming arc by position
+	 * @param index the index of the arc, less than indegree()
+	 * @return the arc
+	 */
+	public Arc getIncoming( int index )
+	{
+		return incoming.get( index );
+	}
 	/**
 	 * Get an iterator over the outgoing arcs of this node. This is 
 	 * unconstrained and will return all outgoing arcs.
@@ -386,10 +349,9 @@ public class Node
 	 */
 	public Arc pickIncomingArc( int version )
 	{
-		ListIterator<Arc> iter = incoming.listIterator();
-		while ( iter.hasNext() )
+		for ( int i=0;i<incoming.size();i++ )
 		{
-			Arc a = iter.next();
+			Arc a = incoming.get( i );
 			if ( a.versions.nextSetBit(version)==version )
 				return a;
 		}
@@ -402,10 +364,9 @@ public class Node
 	 */
 	public Arc pickOutgoingArc( int version )
 	{
-		ListIterator<Arc> iter = outgoing.listIterator();
-		while ( iter.hasNext() )
+		for ( int i=0;i<outgoing.size();i++ )
 		{
-			Arc a = iter.next();
+			Arc a = outgoing.get( i );
 			assert version>= 0;
 			if ( a.versions.nextSetBit(version)==version )
 				return a;
@@ -446,7 +407,6 @@ public class Node
 	public void removeIncomingVersion( int version )
 	{
 		incomingSet.clear( version );
-		printed.clear( version );
 	}
 	/**
 	 * Clear the outgoing version set of the given version.
@@ -458,7 +418,6 @@ public class Node
 	public void removeOutgoingVersion( int version )
 	{
 		outgoingSet.clear( version );
-		printedOutgoing.clear( version );
 	}
 	/**
 	 * This is required by the deserialising code. See the IJHCS 
@@ -503,7 +462,6 @@ public class Node
 	public void addIncomingVersion( int version )
 	{
 		incomingSet.set( version );
-		printed.set( version );
 	}
 	/**
 	 * Add a version to the outgoing set (used when merging paths)
@@ -512,7 +470,6 @@ public class Node
 	public void addOutgoingVersion( int version )
 	{
 		outgoingSet.set( version );
-		printedOutgoing.set( version );
 	}
 	/**
 	 * Remove an outgoing arc
@@ -598,10 +555,9 @@ public class Node
 	PrevChar[] getPrevChars( BitSet constraint, Node forbidden )
 	{
 		ArrayList<PrevChar> array = new ArrayList<PrevChar>();
-		ListIterator<Arc> iter = incomingArcs();
-		while ( iter.hasNext() )
+		for ( int j=0;j<incoming.size();j++ )
 		{
-			Arc a = iter.next();
+			Arc a = incoming.get( j );
 			if ( a.versions.intersects(constraint) )
 			{
 				if ( a.dataLen() > 0 )
@@ -666,10 +622,9 @@ public class Node
 	 */
 	Arc pickOutgoingArc( BitSet versions )
 	{
-		ListIterator<Arc> iter = outgoing.listIterator();
-		while ( iter.hasNext() )
+		for ( int i=0;i<outgoing.size();i++ )
 		{
-			Arc a = iter.next();
+			Arc a = outgoing.get( i );
 			if ( a.versions.intersects(versions) )
 				return a;
 		}
@@ -694,12 +649,10 @@ public class Node
 	BitSet getOverhang()
 	{
 		BitSet overhang = new BitSet();
-		ListIterator<Arc> iter1 = incoming.listIterator();
-		ListIterator<Arc> iter2 = outgoing.listIterator();
-		while ( iter1.hasNext() )
-			overhang.or( iter1.next().versions );
-		while ( iter2.hasNext() )
-			overhang.andNot(iter2.next().versions );
+		for ( int i=0;i<incoming.size();i++ )
+			overhang.or( incoming.get(i).versions );
+		for ( int i=0;i<outgoing.size();i++ )
+			overhang.andNot( outgoing.get(i).versions );
 		return overhang;
 	}
 	/**
@@ -714,10 +667,9 @@ public class Node
 		BitSet bs = new BitSet();
 		if ( incoming.size() > 0 )
 		{
-			ListIterator<Arc> iter = incoming.listIterator();
-			while ( iter.hasNext() )
+			for ( int i=0;i<incoming.size();i++ )
 			{
-				Arc a = iter.next();
+				Arc a = incoming.get( i );
 				if ( !a.versions.intersects(selected.versions) )
 					bs.or( a.versions );
 			}
@@ -20,6 +20,7 @@
  */
 package edu.luc.nmerge.graph;
 
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
 import java.util.BitSet;
 
 /**
@@ -33,6 +34,12 @@ public class SpecialArc extends Arc
 	MUM best;
 	/** position from the start of the new version */
 	int position;
+	/** suffix index of the data, kept while the arc is unmerged */
+	SuffixIndex index;
+	/** packed priority in a SpecialQueue */
+	long priority;
+	/** index in the SpecialQueue's heap or -1 if not queued */
+	int heapIndex = -1;
 	/** 
 	 * Override the Arc constructor
 	 * @param versions the versions of the arc
@@ -61,6 +68,24 @@ public class SpecialArc extends Arc
 	{
 		this.best = best;
 	}
+	/**
+	 * Get the suffix index of this arc's data if already built
+	 * @return the index or null
+	 */
+	public SuffixIndex getIndex()
+	{
+		return index;
+	}
+	/**
+	 * Keep the suffix index of this arc's data so that recomputing 
+	 * the MUM doesn't have to build it again. The data of a special 
+	 * arc never changes so the index stays valid until it is merged.
+	 * @param index the index or null to release it
+	 */
+	public void setIndex( SuffixIndex index )
+	{
+		this.index = index;
+	}
 	/**
 	 * Reset best to null so it will be recalculate when required
 	 */
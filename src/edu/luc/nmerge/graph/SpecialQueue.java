@@ -0,0 +1,174 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph;
+
+/**
+ * A priority queue of special arcs waiting to be merged, longest MUM 
+ * first. Each arc's priority is worked out once when it is added, as 
+ * a tuple of MUM length, direct before transposed, arc length and 
+ * position in the new version, packed into two longs. So comparing 
+ * two arcs never looks at their data, and since arcs remember where 
+ * they are in the heap they can be removed or requeued without a 
+ * search. An arc can only be in one queue at a time.
+ * @author Desmond Schmidt
+ */
+public class SpecialQueue 
+{
+	/** binary heap of arcs, best at 0 */
+	SpecialArc[] heap;
+	/** number of arcs in the heap */
+	int size;
+	/**
+	 * Create an empty queue
+	 */
+	public SpecialQueue()
+	{
+		heap = new SpecialArc[16];
+	}
+	/**
+	 * Add an arc, or move it if it is already queued and its MUM 
+	 * has changed
+	 * @param special a special arc whose best MUM has been computed
+	 */
+	public void add( SpecialArc special )
+	{
+		MUM best = special.getBest();
+		int direct = best.isTransposition()?0:1;
+		special.priority = ((long)best.length()<<32)|((long)direct<<31)
+			|special.dataLen();
+		if ( special.heapIndex < 0 )
+		{
+			if ( size == heap.length )
+			{
+				SpecialArc[] newHeap = new SpecialArc[size*2];
+				System.arraycopy( heap, 0, newHeap, 0, size );
+				heap = newHeap;
+			}
+			special.heapIndex = size++;
+			heap[special.heapIndex] = special;
+		}
+		siftDown( siftUp(special.heapIndex) );
+	}
+	/**
+	 * Take an arc out of the queue if it is in it
+	 * @param special the arc to remove
+	 * @return true if it was there
+	 */
+	public boolean remove( SpecialArc special )
+	{
+		int i = special.heapIndex;
+		if ( i < 0 || i >= size || heap[i] != special )
+			return false;
+		special.heapIndex = -1;
+		SpecialArc last = heap[--size];
+		heap[size] = null;
+		if ( i < size )
+		{
+			heap[i] = last;
+			last.heapIndex = i;
+			siftDown( siftUp(i) );
+		}
+		return true;
+	}
+	/**
+	 * Remove the arc with the best MUM
+	 * @return the arc or null if the queue is empty
+	 */
+	public SpecialArc poll()
+	{
+		if ( size == 0 )
+			return null;
+		SpecialArc top = heap[0];
+		remove( top );
+		return top;
+	}
+	/**
+	 * Get the number of queued arcs
+	 * @return the size of the queue
+	 */
+	public int size()
+	{
+		return size;
+	}
+	/**
+	 * Is the queue empty?
+	 * @return true if it is
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	/**
+	 * Should one arc come out of the queue before another?
+	 * @param a the first arc
+	 * @param b the second arc
+	 * @return true if a has the higher priority
+	 */
+	private static boolean before( SpecialArc a, SpecialArc b )
+	{
+		if ( a.priority != b.priority )
+			return a.priority > b.priority;
+		else
+			return a.position < b.position;
+	}
+	/**
+	 * Move an arc up towards the top until its parent is better
+	 * @param i the heap index of the arc
+	 * @return its new index
+	 */
+	private int siftUp( int i )
+	{
+		SpecialArc special = heap[i];
+		while ( i > 0 )
+		{
+			int parent = (i-1)/2;
+			if ( !before(special,heap[parent]) )
+				break;
+			heap[i] = heap[parent];
+			heap[i].heapIndex = i;
+			i = parent;
+		}
+		heap[i] = special;
+		special.heapIndex = i;
+		return i;
+	}
+	/**
+	 * Move an arc down until both its children are worse
+	 * @param i the heap index of the arc
+	 */
+	private void siftDown( int i )
+	{
+		SpecialArc special = heap[i];
+		int child;
+		while ( (child=2*i+1) < size )
+		{
+			if ( child+1 < size && before(heap[child+1],heap[child]) )
+				child++;
+			if ( !before(heap[child],special) )
+				break;
+			heap[i] = heap[child];
+			heap[i].heapIndex = i;
+			i = child;
+		}
+		heap[i] = special;
+		special.heapIndex = i;
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph;
+
+import java.util.BitSet;
+
+/**
+ * The printed-arc state of one breadth-first traversal of a graph
+ * during a MUM search. Keeping it here rather than on the nodes means
+ * that several searches can walk the same graph at once, and there is
+ * nothing to clear afterwards: the state is just thrown away. It is
+ * kept in an open-addressed hash table keyed on node id, which grows
+ * with the number of nodes touched, so nothing is allocated per node.
+ * A node that the traversal has not yet touched has nothing printed 
+ * and a shortest path of 0.
+ * @author Desmond Schmidt
+ */
+class Traversal
+{
+	/** the id of the node in each slot, or 0 if the slot is free */
+	int[] keys;
+	/** the order in which each node was visited, or 0 if it wasn't */
+	int[] stamps;
+	/** the number of arcs of each node printed so far */
+	int[] printed;
+	/** the shortest route to each node */
+	int[] shortestPath;
+	/** the number of slots in use */
+	int size;
+	/** the number of nodes visited so far */
+	int clock;
+	/**
+	 * Create a fresh traversal
+	 */
+	Traversal()
+	{
+		allocate( MUM.PRINTED_HASH_SIZE );
+	}
+	/**
+	 * Make empty tables
+	 * @param capacity the number of slots, a power of 2
+	 */
+	private void allocate( int capacity )
+	{
+		keys = new int[capacity];
+		stamps = new int[capacity];
+		printed = new int[capacity];
+		shortestPath = new int[capacity];
+	}
+	/**
+	 * Get the first slot to try for a node id
+	 * @param id the node id
+	 * @return its home slot
+	 */
+	private int home( int id )
+	{
+		return (id*0x9E3779B9)>>>(32-Integer.numberOfTrailingZeros(
+			keys.length));
+	}
+	/**
+	 * Find the slot of a node that has been touched
+	 * @param n the node
+	 * @return its slot or -1 if it hasn't been touched
+	 */
+	private int find( Node n )
+	{
+		int mask = keys.length-1;
+		for ( int i=home(n.nodeId);keys[i]!=0;i=(i+1)&mask )
+			if ( keys[i] == n.nodeId )
+				return i;
+		return -1;
+	}
+	/**
+	 * Get the slot of a node, adding it if it hasn't been touched.
+	 * Call it before reading a table, which it may replace.
+	 * @param n the node
+	 * @return its slot
+	 */
+	private int index( Node n )
+	{
+		int mask = keys.length-1;
+		int i = home( n.nodeId );
+		while ( keys[i] != 0 )
+		{
+			if ( keys[i] == n.nodeId )
+				return i;
+			i = (i+1)&mask;
+		}
+		if ( 2*(size+1) > keys.length )
+		{
+			grow();
+			return index( n );
+		}
+		keys[i] = n.nodeId;
+		size++;
+		return i;
+	}
+	/**
+	 * Double the tables and put the nodes back in
+	 */
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		int[] oldStamps = stamps;
+		int[] oldPrinted = printed;
+		int[] oldShortestPath = shortestPath;
+		allocate( oldKeys.length*2 );
+		int mask = keys.length-1;
+		for ( int j=0;j<oldKeys.length;j++ )
+		{
+			if ( oldKeys[j] != 0 )
+			{
+				int i = home( oldKeys[j] );
+				while ( keys[i] != 0 )
+					i = (i+1)&mask;
+				keys[i] = oldKeys[j];
+				stamps[i] = oldStamps[j];
+				printed[i] = oldPrinted[j];
+				shortestPath[i] = oldShortestPath[j];
+			}
+		}
+	}
+	/**
+	 * Record that a node has been taken from the queue
+	 * @param n the node
+	 */
+	void visit( Node n )
+	{
+		int i = index( n );
+		stamps[i] = ++clock;
+	}
+	/**
+	 * "Print" an incoming arc of a node
+	 * @param n the node a goes to
+	 * @param a the arc to print
+	 */
+	void printArc( Node n, Arc a )
+	{
+		int i = index( n );
+		printed[i]++;
+	}
+	/**
+	 * "Print" an incoming arc and record the shortest path to its node
+	 * @param n the node a goes to
+	 * @param a the arc to print
+	 * @param parentPathLen the shortest path to n via a
+	 */
+	void printArc( Node n, Arc a, int parentPathLen )
+	{
+		int i = index( n );
+		printed[i]++;
+		if ( shortestPath[i] == 0 || parentPathLen < shortestPath[i] )
+			shortestPath[i] = parentPathLen;
+	}
+	/**
+	 * "Print" an outgoing arc backwards and record the shortest path
+	 * from its node. Used in left transpose detection.
+	 * @param n the node a comes from
+	 * @param a the arc to print
+	 * @param parentPathLen the shortest path from the to node of a
+	 */
+	void printOutgoingArc( Node n, Arc a, int parentPathLen )
+	{
+		int i = index( n );
+		printed[i]++;
+		if ( shortestPath[i] == 0
+			|| parentPathLen + a.dataLen() < shortestPath[i] )
+			shortestPath[i] = parentPathLen + a.dataLen();
+	}
+	/**
+	 * Is an outgoing arc with the given versions printed? In a 
+	 * backwards traversal an arc is printed once the node it goes 
+	 * to has been visited. The node being visited now can't be the 
+	 * one an arc from n goes to, because n lies after it.
+	 * @param n the node the arc comes from
+	 * @param versions the versions of the arc
+	 * @return true if it has been printed
+	 */
+	boolean isPrintedOutgoing( Node n, BitSet versions )
+	{
+		for ( int i=0;i<n.outdegree();i++ )
+		{
+			Arc a = n.getOutgoing( i );
+			if ( a.versions.intersects(versions) )
+			{
+				int j = find( a.to );
+				if ( j == -1 || stamps[j] == 0 )
+					return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Have all the outgoing arcs of a node been printed (backwards)?
+	 * @param n the node
+	 * @return true if there are none left unprinted
+	 */
+	boolean allPrintedOutgoing( Node n )
+	{
+		int i = find( n );
+		return (i==-1)?n.outdegree()==0:printed[i]>=n.outdegree();
+	}
+	/**
+	 * Have all the incoming arcs of a node been printed? Only arcs 
+	 * in range are ever printed, so they all are if there are at 
+	 * least as many printed as there are in range.
+	 * @param n the node
+	 * @param range the range within which the incoming arcs are assessed
+	 * @return true if there are none left unprinted in range
+	 */
+	boolean allPrintedIncoming( Node n, BitSet range )
+	{
+		int inRange = 0;
+		for ( int i=0;i<n.indegree();i++ )
+			if ( n.getIncoming(i).versions.intersects(range) )
+				inRange++;
+		int j = find( n );
+		return ((j==-1)?0:printed[j]) >= inRange;
+	}
+	/**
+	 * Get the shortest path to a node
+	 * @param n the node
+	 * @return the shortest path found so far
+	 */
+	int getShortestPath( Node n )
+	{
+		int i = find( n );
+		return (i==-1)?0:shortestPath[i];
+	}
+	/**
+	 * Set the shortest path to a node
+	 * @param n the node
+	 * @param value the path length
+	 */
+	void setShortestPath( Node n, int value )
+	{
+		int i = index( n );
+		shortestPath[i] = value;
+	}
+}
@@ -22,12 +22,15 @@ package edu.luc.nmerge.graph;
 
 import java.util.HashSet;
 import java.util.BitSet;
-import java.util.ListIterator;
-import java.util.Iterator;
 import edu.luc.nmerge.exception.*;
 
 /**
- * Represent a set of unattached arcs during building of the Graph
+ * Represent a set of unattached arcs during building of the Graph. 
+ * Each version has at most one unattached arc, so they are also 
+ * indexed by version, and finding the arcs for a set of versions 
+ * doesn't have to look at all the others. Version 0 only marks hints 
+ * and is not indexed. The versions of an arc in the set must only be 
+ * changed through removeEmptyArc.
  * @author Desmond Schmidt
  */
 public class UnattachedSet extends HashSet<Arc>
@@ -36,12 +39,47 @@ public class UnattachedSet extends HashSet<Arc>
 	static final long serialVersionUID = 1;
 	/** the union of all the versions in the unattached set */
 	BitSet versions;   
+	/** the unattached arc of each version or null */
+	Arc[] byVersion;
 	/**
 	 * Create an unattached set
 	 */
 	UnattachedSet()
 	{
 		versions = new BitSet();
+		byVersion = new Arc[16];
+	}
+	/**
+	 * Get the unattached arc of a version
+	 * @param version the version
+	 * @return the arc or null
+	 */
+	private Arc get( int version )
+	{
+		return (version < byVersion.length)?byVersion[version]:null;
+	}
+	/**
+	 * Point some versions of the index at an arc
+	 * @param a the arc or null to clear them
+	 * @param set the versions to set
+	 * @param old if not null only clear versions pointing to it
+	 */
+	private void index( Arc a, BitSet set, Arc old )
+	{
+		for ( int v=set.nextSetBit(1);v>=0;v=set.nextSetBit(v+1) )
+		{
+			if ( v >= byVersion.length )
+			{
+				if ( a == null )
+					break;
+				Arc[] newIndex = new Arc[Math.max(v+1,byVersion.length*2)];
+				System.arraycopy( byVersion, 0, newIndex, 0, 
+					byVersion.length );
+				byVersion = newIndex;
+			}
+			if ( old == null || byVersion[v] == old )
+				byVersion[v] = a;
+		}
 	}
 	/**
 	 *	Add all unattached arcs to the given node as incoming
@@ -49,19 +87,12 @@ public class UnattachedSet extends HashSet<Arc>
 	 */
 	void addAllAsIncoming( Node u ) throws MVDException
 	{
-		Iterator<Arc> iter = iterator();
-		while ( iter.hasNext() )
-		{
-			Arc a = iter.next();
-			u.addIncoming( a );
-		}
-		// remove them from the unattached set
-		ListIterator<Arc> iter2 = u.incomingArcs();
-		while ( iter2.hasNext() )
+		Arc[] arcs = new Arc[size()];
+		toArray( arcs );
+		for ( int i=0;i<arcs.length;i++ )
 		{
-			Arc a = iter2.next();
-			remove( a );
-			versions.andNot( a.versions );
+			u.addIncoming( arcs[i] );
+			remove( arcs[i] );
 		}
 	}
 	/**
@@ -73,27 +104,14 @@ public class UnattachedSet extends HashSet<Arc>
 	 */
 	void addAsIncoming( Node u, BitSet is ) throws MVDException
 	{
-		Iterator<Arc> iter = iterator();
-		boolean wasAttached = false;
-		while ( iter.hasNext() )
+		for ( int v=is.nextSetBit(1);v>=0;v=is.nextSetBit(v+1) )
 		{
-			Arc a = (Arc) iter.next();
-			if ( a.versions.intersects(is) )
+			Arc a = get( v );
+			if ( a != null )
 			{
 				u.addIncoming( a );
-				wasAttached = true;
-			}
-		}
-		if ( wasAttached )
-		{
-			// now remove the incoming arcs from the unattached set
-			// because we can't remove while adding
-			ListIterator<Arc> iter2 = u.incomingArcs();
-			while ( iter2.hasNext() )
-			{
-				Arc a = iter2.next();
-				if ( remove(a) )
-					versions.andNot( a.versions );
+				// clears the arc's other versions too
+				remove( a );
 			}
 		}
 	}
@@ -106,6 +124,23 @@ public class UnattachedSet extends HashSet<Arc>
 	{
 		boolean answer = super.add( a );
 		versions.or( a.versions );
+		index( a, a.versions, null );
+		return answer;
+	}
+	/**
+	 * Override the remove method in order to maintain the versions
+	 * @param o the arc to remove
+	 * @return true if the arc was there
+	 */
+	public boolean remove( Object o )
+	{
+		boolean answer = super.remove( o );
+		if ( answer )
+		{
+			Arc a = (Arc)o;
+			versions.andNot( a.versions );
+			index( null, a.versions, a );
+		}
 		return answer;
 	}
 	/**
@@ -115,11 +150,11 @@ public class UnattachedSet extends HashSet<Arc>
 	 */
 	Arc getIntersectingArc( Arc a )
 	{
-		Iterator<Arc> iter = iterator();
-		while ( iter.hasNext() )
+		BitSet bs = a.versions;
+		for ( int v=bs.nextSetBit(1);v>=0;v=bs.nextSetBit(v+1) )
 		{
-			Arc b = (Arc) iter.next();
-			if ( b.versions.intersects(a.versions) )
+			Arc b = get( v );
+			if ( b != null )
 				return b;
 		}
 		return null;
@@ -133,6 +168,7 @@ public class UnattachedSet extends HashSet<Arc>
 	boolean removeEmptyArc( Arc a, BitSet set ) throws Exception
 	{
 		versions.andNot( set );
+		index( null, set, a );
 		a.versions.andNot( set );
 		a.getFrom().removeOutgoingVersions( set );
 		if ( a.versions.nextSetBit(1)==-1 )
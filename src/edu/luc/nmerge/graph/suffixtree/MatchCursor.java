@@ -0,0 +1,53 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph.suffixtree;
+
+/**
+ * A position in a SuffixIndex reached by matching some string 
+ * against it from the root.
+ * @author Desmond Schmidt
+ */
+public interface MatchCursor
+{
+	/**
+	 * Try to match one more char. If it doesn't match the cursor 
+	 * stays where it was.
+	 * @param c the next char to match
+	 * @return true if the advance was successful, false otherwise
+	 */
+	boolean advance( char c );
+	/**
+	 * Does the string matched so far occur only once in the text?
+	 * @return true if it is unique
+	 */
+	boolean isUnique();
+	/**
+	 * Get the offset in the text where a unique match starts
+	 * @param length the number of chars matched so far
+	 * @return the 0-based offset of the match in the text
+	 */
+	int getStart( int length );
+	/**
+	 * Duplicate this cursor so that the copy can advance separately
+	 * @return a new cursor at the same position
+	 */
+	MatchCursor copy();
+}
@@ -0,0 +1,463 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph.suffixtree;
+
+import java.util.Arrays;
+
+/**
+ * An enhanced suffix array: a suffix array, its LCP table and a 
+ * compact child table (Abouelhoda, Kurtz and Ohlebusch 2004). 
+ * Together they can be walked like a suffix tree but take only 
+ * three ints per char. The suffix array is built in linear time by 
+ * induced sorting (SA-IS, Nong, Zhang and Chan 2009) after mapping 
+ * the chars of the text onto a dense alphabet.
+ * <p>An lcp-interval [i..j] of the suffix array is the set of 
+ * suffixes that share a prefix of length lcp(i,j). It corresponds 
+ * to an internal node of the suffix tree and its child intervals to 
+ * the node's children. A unique match is a singleton interval.</p>
+ * @author Desmond Schmidt
+ */
+public class SuffixArray implements SuffixIndex
+{
+	/** the indexed text */
+	char[] text;
+	/** number of suffixes: the text plus a terminal sentinel */
+	int n;
+	/** the suffix array: start offsets of the suffixes in order */
+	int[] sa;
+	/** lcp[i] = length of the common prefix of sa[i-1] and sa[i] */
+	int[] lcp;
+	/** the up, down and next l-index values, overlaid */
+	int[] child;
+	/**
+	 * Build the index
+	 * @param text the text to index
+	 */
+	public SuffixArray( char[] text )
+	{
+		this.text = text;
+		this.n = text.length+1;
+		int[] s = new int[n];
+		int k = rankChars( text, s );
+		sa = new int[n];
+		sais( s, sa, n, k );
+		lcp = new int[n+1];
+		computeLcp( s );
+		child = new int[n+1];
+		computeChildTable();
+	}
+	/**
+	 * Replace each char by its rank among the distinct chars of the 
+	 * text, starting at 1. The sentinel at the end gets 0. Most texts 
+	 * indexed are short, so we sort their distinct chars rather than 
+	 * fill a table covering the whole of Unicode.
+	 * @param text the text
+	 * @param s an array one longer than text to receive the ranks
+	 * @return the size of the resulting alphabet
+	 */
+	private static int rankChars( char[] text, int[] s )
+	{
+		char[] alphabet = text.clone();
+		Arrays.sort( alphabet );
+		int k = 0;
+		for ( int i=0;i<alphabet.length;i++ )
+			if ( k == 0 || alphabet[i] != alphabet[k-1] )
+				alphabet[k++] = alphabet[i];
+		for ( int i=0;i<text.length;i++ )
+			s[i] = Arrays.binarySearch( alphabet, 0, k, text[i] )+1;
+		s[text.length] = 0;
+		return k+1;
+	}
+	/**
+	 * Find the start or end of each bucket
+	 * @param s the string
+	 * @param bkt the bucket array to fill
+	 * @param n the length of s
+	 * @param k the alphabet size
+	 * @param end true to get the ends (exclusive) else the starts
+	 */
+	private static void getBuckets( int[] s, int[] bkt, int n, int k, 
+		boolean end )
+	{
+		Arrays.fill( bkt, 0 );
+		for ( int i=0;i<n;i++ )
+			bkt[s[i]]++;
+		int sum = 0;
+		for ( int i=0;i<k;i++ )
+		{
+			sum += bkt[i];
+			bkt[i] = (end)?sum:sum-bkt[i];
+		}
+	}
+	/**
+	 * Is a position the leftmost S-type char of a run?
+	 * @param t the types of s: true for S-type
+	 * @param i the position
+	 * @return true if i is an LMS position
+	 */
+	private static boolean isLMS( boolean[] t, int i )
+	{
+		return i > 0 && t[i] && !t[i-1];
+	}
+	/**
+	 * Induce the order of the L-type and then the S-type suffixes 
+	 * from the LMS suffixes already in sa
+	 * @param s the string
+	 * @param sa the suffix array being built
+	 * @param t the suffix types
+	 * @param bkt scratch bucket array
+	 * @param n the length of s
+	 * @param k the alphabet size
+	 */
+	private static void induce( int[] s, int[] sa, boolean[] t, int[] bkt, 
+		int n, int k )
+	{
+		getBuckets( s, bkt, n, k, false );
+		for ( int i=0;i<n;i++ )
+		{
+			int j = sa[i]-1;
+			if ( sa[i] > 0 && !t[j] )
+				sa[bkt[s[j]]++] = j;
+		}
+		getBuckets( s, bkt, n, k, true );
+		for ( int i=n-1;i>=0;i-- )
+		{
+			int j = sa[i]-1;
+			if ( sa[i] > 0 && t[j] )
+				sa[--bkt[s[j]]] = j;
+		}
+	}
+	/**
+	 * Build a suffix array by induced sorting
+	 * @param s the string, ending in a unique 0
+	 * @param sa the array to receive the suffix array
+	 * @param n the length of s
+	 * @param k the alphabet size: all values in s are less than this
+	 */
+	private static void sais( int[] s, int[] sa, int n, int k )
+	{
+		if ( n == 1 )
+		{
+			sa[0] = 0;
+			return;
+		}
+		// classify the suffixes as S or L type
+		boolean[] t = new boolean[n];
+		t[n-1] = true;
+		for ( int i=n-2;i>=0;i-- )
+			t[i] = s[i]<s[i+1] || (s[i]==s[i+1] && t[i+1]);
+		// sort the LMS substrings
+		int[] bkt = new int[k];
+		getBuckets( s, bkt, n, k, true );
+		Arrays.fill( sa, -1 );
+		for ( int i=1;i<n;i++ )
+			if ( isLMS(t,i) )
+				sa[--bkt[s[i]]] = i;
+		induce( s, sa, t, bkt, n, k );
+		// gather the sorted LMS substrings at the front
+		int n1 = 0;
+		for ( int i=0;i<n;i++ )
+			if ( isLMS(t,sa[i]) )
+				sa[n1++] = sa[i];
+		// name them, equal substrings getting equal names
+		Arrays.fill( sa, n1, n, -1 );
+		int name = 0;
+		int prev = -1;
+		for ( int i=0;i<n1;i++ )
+		{
+			int pos = sa[i];
+			boolean diff = false;
+			for ( int d=0;d<n;d++ )
+			{
+				if ( prev == -1 || s[pos+d] != s[prev+d] 
+					|| t[pos+d] != t[prev+d] )
+				{
+					diff = true;
+					break;
+				}
+				else if ( d > 0 && (isLMS(t,pos+d) || isLMS(t,prev+d)) )
+					break;
+			}
+			if ( diff )
+			{
+				name++;
+				prev = pos;
+			}
+			sa[n1+pos/2] = name-1;
+		}
+		int[] s1 = new int[n1];
+		for ( int i=n1,j=0;i<n;i++ )
+			if ( sa[i] >= 0 )
+				s1[j++] = sa[i];
+		// sort the reduced string, recursively if names aren't unique
+		int[] sa1 = new int[n1];
+		if ( name < n1 )
+			sais( s1, sa1, n1, name );
+		else
+			for ( int i=0;i<n1;i++ )
+				sa1[s1[i]] = i;
+		// induce the full order from the sorted LMS suffixes
+		for ( int i=1,j=0;i<n;i++ )
+			if ( isLMS(t,i) )
+				s1[j++] = i;
+		getBuckets( s, bkt, n, k, true );
+		Arrays.fill( sa, -1 );
+		for ( int i=n1-1;i>=0;i-- )
+		{
+			int j = s1[sa1[i]];
+			sa[--bkt[s[j]]] = j;
+		}
+		induce( s, sa, t, bkt, n, k );
+	}
+	/**
+	 * Compute the LCP table in linear time (Kasai et al. 2001)
+	 * @param s the ranked text, ending in a unique sentinel
+	 */
+	private void computeLcp( int[] s )
+	{
+		int[] rank = new int[n];
+		for ( int i=0;i<n;i++ )
+			rank[sa[i]] = i;
+		int h = 0;
+		for ( int i=0;i<n;i++ )
+		{
+			if ( rank[i] > 0 )
+			{
+				int j = sa[rank[i]-1];
+				while ( s[i+h] == s[j+h] )
+					h++;
+				lcp[rank[i]] = h;
+				if ( h > 0 )
+					h--;
+			}
+			else
+				h = 0;
+		}
+		// lcp[0] and lcp[n] stay 0: the borders of the root interval
+	}
+	/**
+	 * Compute the child table. The up value of i is stored in 
+	 * child[i-1], and the down and next l-index values of i in 
+	 * child[i]. Which one a slot holds can be told from the lcp 
+	 * values, so one int per suffix is enough.
+	 */
+	private void computeChildTable()
+	{
+		Arrays.fill( child, -1 );
+		int[] stack = new int[n+1];
+		int top = 0;
+		int lastIndex = -1;
+		stack[0] = 0;
+		// up and down values
+		for ( int i=1;i<=n;i++ )
+		{
+			while ( lcp[i] < lcp[stack[top]] )
+			{
+				lastIndex = stack[top--];
+				if ( lcp[i] <= lcp[stack[top]] 
+					&& lcp[stack[top]] != lcp[lastIndex] )
+					child[stack[top]] = lastIndex;	// down
+			}
+			if ( lastIndex != -1 )
+			{
+				child[i-1] = lastIndex;	// up
+				lastIndex = -1;
+			}
+			stack[++top] = i;
+		}
+		// next l-index values
+		top = 0;
+		stack[0] = 0;
+		for ( int i=1;i<n;i++ )
+		{
+			while ( lcp[i] < lcp[stack[top]] )
+				top--;
+			if ( lcp[i] == lcp[stack[top]] )
+				child[stack[top--]] = i;	// next l-index
+			stack[++top] = i;
+		}
+	}
+	/**
+	 * Get the up value of an index
+	 * @param i the index
+	 * @return the up value or -1 if undefined
+	 */
+	private int up( int i )
+	{
+		return ( lcp[i-1] > lcp[i] )?child[i-1]:-1;
+	}
+	/**
+	 * Get the down value of an index
+	 * @param i the index
+	 * @return the down value or -1 if undefined
+	 */
+	private int down( int i )
+	{
+		int c = child[i];
+		return ( c > i && lcp[c] > lcp[i] )?c:-1;
+	}
+	/**
+	 * Get the next l-index value of an index
+	 * @param i the index
+	 * @return the next l-index or -1 if undefined
+	 */
+	private int nextl( int i )
+	{
+		int c = child[i];
+		return ( c > i && lcp[c] == lcp[i] )?c:-1;
+	}
+	/**
+	 * Get the index where the second child of an lcp-interval starts
+	 * @param i the first index of the interval
+	 * @param j the last index of the interval
+	 * @return the start of its second child interval
+	 */
+	private int secondChild( int i, int j )
+	{
+		if ( i == 0 && j == n-1 )
+			return nextl( 0 );
+		int u = up( j+1 );
+		return ( i < u && u <= j )?u:down( i );
+	}
+	/**
+	 * Get the length of the prefix shared by an interval
+	 * @param i the first index of the interval
+	 * @param j the last index of the interval
+	 * @return its lcp value, or for a singleton the length of the 
+	 * suffix excluding the sentinel
+	 */
+	private int intervalLcp( int i, int j )
+	{
+		if ( i == j )
+			return text.length-sa[i];
+		else if ( i == 0 && j == n-1 )
+			return 0;
+		return lcp[secondChild(i,j)];
+	}
+	/**
+	 * Get a new cursor that has matched nothing yet
+	 * @return a cursor on the root interval
+	 */
+	public MatchCursor getCursor()
+	{
+		return new Cursor( 0, n-1, 0, 0 );
+	}
+	/**
+	 * A position in the enhanced suffix array: an lcp-interval and 
+	 * the number of chars matched, which is at most its lcp value
+	 */
+	class Cursor implements MatchCursor
+	{
+		/** first index of the current interval */
+		int lo;
+		/** last index of the current interval */
+		int hi;
+		/** number of chars matched so far */
+		int depth;
+		/** lcp value of the current interval */
+		int ilcp;
+		/**
+		 * Create a cursor
+		 * @param lo the first index of the interval
+		 * @param hi the last index of the interval
+		 * @param depth the number of chars matched
+		 * @param ilcp the lcp value of the interval
+		 */
+		Cursor( int lo, int hi, int depth, int ilcp )
+		{
+			this.lo = lo;
+			this.hi = hi;
+			this.depth = depth;
+			this.ilcp = ilcp;
+		}
+		/**
+		 * Advance by one char if possible. Within an interval's shared 
+		 * prefix there is only one char to compare, otherwise we 
+		 * look for the child interval that starts with c.
+		 * @param c the char to match
+		 * @return true if it matched
+		 */
+		public boolean advance( char c )
+		{
+			if ( depth < ilcp )
+			{
+				if ( text[sa[lo]+depth] != c )
+					return false;
+			}
+			else if ( lo == hi )
+				return false;
+			else
+			{
+				int i = lo;
+				int next = secondChild( lo, hi );
+				while ( true )
+				{
+					int p = sa[i]+depth;
+					// the first child may have run out of text
+					if ( p < text.length )
+					{
+						if ( text[p] == c )
+						{
+							int j = (next==-1)?hi:next-1;
+							lo = i;
+							hi = j;
+							ilcp = intervalLcp( i, j );
+							break;
+						}
+						else if ( text[p] > c )
+							return false;
+					}
+					if ( next == -1 )
+						return false;
+					i = next;
+					next = nextl( i );
+				}
+			}
+			depth++;
+			return true;
+		}
+		/**
+		 * The match is unique if only one suffix starts with it
+		 * @return true if it is unique
+		 */
+		public boolean isUnique()
+		{
+			return lo == hi && depth > 0;
+		}
+		/**
+		 * Get the start of the match
+		 * @param length the length matched
+		 * @return its 0-based offset in the text
+		 */
+		public int getStart( int length )
+		{
+			return sa[lo];
+		}
+		/**
+		 * Copy this cursor
+		 * @return a new cursor at the same place
+		 */
+		public MatchCursor copy()
+		{
+			return new Cursor( lo, hi, depth, ilcp );
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph.suffixtree;
+
+/**
+ * An index of all the suffixes of a text that a MUM search can 
+ * match a variant graph against one character at a time. The text 
+ * is that of a special arc. Implementations must be read-only once 
+ * built so that several searches can share them.
+ * @author Desmond Schmidt
+ */
+public interface SuffixIndex
+{
+	/**
+	 * Get a new cursor that has matched nothing yet
+	 * @return a cursor at the root of the index
+	 */
+	MatchCursor getCursor();
+}
@@ -29,7 +29,7 @@ import java.io.FileInputStream;
  * http://mila.cs.technion.ac.il/~yona/suffix_tree/
  * @author Desmond Schmidt 25/10/08
  */
-public class SuffixTree 
+public class SuffixTree implements SuffixIndex
 {
 	/** Used in function traceString for skipping (Ukkonen's Skip Trick). */
 	enum SkipType
@@ -390,6 +390,14 @@ public class SuffixTree
 		}
 		return node;
 	}
+	/**
+	 * Get a new cursor that has matched nothing yet
+	 * @return a cursor at the root
+	 */
+	public MatchCursor getCursor()
+	{
+		return new TreeCursor( this, null, 0 );
+	}
 	/**
 	 * Get the Pos from the root that corresponds to the initial char c
 	 * @param b the first char from the root whose Pos is desired
@@ -0,0 +1,77 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ * 
+ *  This file is part of NMerge. NMerge is a Java library for merging 
+ *  multiple versions into multi-version documents (MVDs), and for 
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.graph.suffixtree;
+
+/**
+ * A cursor into a SuffixTree. It is just a Pos that knows its tree.
+ * @author Desmond Schmidt
+ */
+class TreeCursor extends Pos implements MatchCursor
+{
+	/** the tree we are in */
+	SuffixTree tree;
+	/**
+	 * Create a cursor
+	 * @param tree the tree to move about in
+	 * @param node the node whose edge we are on or null for the root
+	 * @param edgePos the position of the last matched char in the 
+	 * tree string (which is 1-based)
+	 */
+	TreeCursor( SuffixTree tree, Node node, int edgePos )
+	{
+		super( node, edgePos );
+		this.tree = tree;
+	}
+	/**
+	 * Advance by one char if possible
+	 * @param c the char to match
+	 * @return true if it matched
+	 */
+	public boolean advance( char c )
+	{
+		return tree.advance( this, c );
+	}
+	/**
+	 * The match is unique if we are on an edge leading to a leaf
+	 * @return true if it is unique
+	 */
+	public boolean isUnique()
+	{
+		return node.isLeaf();
+	}
+	/**
+	 * Get the start of the match
+	 * @param length the length matched
+	 * @return its 0-based offset in the text
+	 */
+	public int getStart( int length )
+	{
+		return edgePos-length;
+	}
+	/**
+	 * Copy this cursor
+	 * @return a new cursor at the same place
+	 */
+	public MatchCursor copy()
+	{
+		return new TreeCursor( tree, node, edgePos );
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Aho-Corasick search of all the versions of an MVD for many patterns
+ * at once. The patterns are put into a trie with failure links, so
+ * the state of a version is the node of the longest suffix of what
+ * it has read so far that starts some pattern. The pairs are read
+ * only once however many patterns there are.
+ * @author Desmond Schmidt
+ */
+class AhoCorasick extends PairAutomaton
+{
+	/** the patterns to find */
+	char[][] patterns;
+	/** the children of node q are at childStart[q] up to
+	 * childStart[q+1] in labels and targets */
+	int[] childStart;
+	/** the characters on the trie edges, sorted for each node */
+	char[] labels;
+	/** the nodes the trie edges lead to */
+	int[] targets;
+	/** the node of the longest proper suffix of each node's string */
+	int[] fail;
+	/** the nearest node along the failure links that ends some
+	 * pattern, or 0 if there is none */
+	int[] dict;
+	/** the indices of the patterns that end at each node, or null */
+	int[][] out;
+	/** the matches of each pattern found so far */
+	ArrayList<ArrayList<Match>> found;
+	/**
+	 * Build the automaton and put all the versions at its root
+	 * @param patterns the patterns to search for; empty ones never match
+	 * @param bs the versions to search
+	 */
+	AhoCorasick( char[][] patterns, BitSet bs )
+	{
+		super( countNodes(patterns) );
+		this.patterns = patterns;
+		int n = at.length;
+		HashMap<Long,Integer> edges = new HashMap<Long,Integer>();
+		ArrayList<ArrayList<Integer>> ends = new ArrayList<ArrayList<Integer>>( n );
+		for ( int q=0;q<n;q++ )
+			ends.add( null );
+		int numNodes = 1;
+		for ( int k=0;k<patterns.length;k++ )
+		{
+			int q = 0;
+			for ( int i=0;i<patterns[k].length;i++ )
+			{
+				Long key = edgeKey( q, patterns[k][i] );
+				Integer next = edges.get( key );
+				if ( next == null )
+				{
+					next = numNodes++;
+					edges.put( key, next );
+				}
+				q = next;
+			}
+			if ( q != 0 )
+			{
+				if ( ends.get(q) == null )
+					ends.set( q, new ArrayList<Integer>() );
+				ends.get( q ).add( k );
+			}
+		}
+		// edges sorted by key are grouped by node then by character
+		long[] keys = new long[edges.size()];
+		int e = 0;
+		for ( Long key : edges.keySet() )
+			keys[e++] = key;
+		Arrays.sort( keys );
+		childStart = new int[n+1];
+		labels = new char[keys.length];
+		targets = new int[keys.length];
+		for ( e=0;e<keys.length;e++ )
+		{
+			childStart[(int)(keys[e]>>>16)+1]++;
+			labels[e] = (char)keys[e];
+			targets[e] = edges.get( keys[e] );
+		}
+		for ( int q=0;q<n;q++ )
+			childStart[q+1] += childStart[q];
+		out = new int[n][];
+		for ( int q=0;q<n;q++ )
+		{
+			ArrayList<Integer> list = ends.get( q );
+			if ( list != null )
+			{
+				out[q] = new int[list.size()];
+				for ( int i=0;i<out[q].length;i++ )
+					out[q][i] = list.get( i );
+			}
+		}
+		computeLinks();
+		found = new ArrayList<ArrayList<Match>>( patterns.length );
+		for ( int k=0;k<patterns.length;k++ )
+			found.add( new ArrayList<Match>() );
+		start( bs );
+	}
+	/**
+	 * Work out the number of nodes the trie can have at most
+	 * @param patterns the patterns
+	 * @return one more than their total length
+	 */
+	private static int countNodes( char[][] patterns )
+	{
+		int n = 1;
+		for ( int k=0;k<patterns.length;k++ )
+			n += patterns[k].length;
+		return n;
+	}
+	/**
+	 * Make a key for a trie edge
+	 * @param q the node it leaves
+	 * @param c its character
+	 * @return a key that sorts by node and then by character
+	 */
+	private static Long edgeKey( int q, char c )
+	{
+		return ((long)q<<16)|c;
+	}
+	/**
+	 * Set the failure and dictionary links breadth-first, so that
+	 * each node's links are set before those of its children
+	 */
+	private void computeLinks()
+	{
+		int n = at.length;
+		fail = new int[n];
+		dict = new int[n];
+		int[] queue = new int[n];
+		int head = 0, tail = 0;
+		for ( int e=childStart[0];e<childStart[1];e++ )
+			queue[tail++] = targets[e];
+		while ( head < tail )
+		{
+			int r = queue[head++];
+			for ( int e=childStart[r];e<childStart[r+1];e++ )
+			{
+				int u = targets[e];
+				int f = step( fail[r], labels[e] );
+				fail[u] = f;
+				dict[u] = ( out[f] != null ) ? f : dict[f];
+				queue[tail++] = u;
+			}
+		}
+	}
+	/**
+	 * Find the child of a node along a given character
+	 * @param q the node
+	 * @param c the character
+	 * @return the child or -1 if there is none
+	 */
+	private int child( int q, char c )
+	{
+		int bottom = childStart[q];
+		int top = childStart[q+1]-1;
+		while ( bottom <= top )
+		{
+			int middle = (bottom+top)>>>1;
+			if ( labels[middle] < c )
+				bottom = middle+1;
+			else if ( labels[middle] > c )
+				top = middle-1;
+			else
+				return targets[middle];
+		}
+		return -1;
+	}
+	/**
+	 * Advance from a node on reading a character
+	 * @param q the current node
+	 * @param c the character read
+	 * @return the node of the longest suffix that starts a pattern
+	 */
+	int step( int q, char c )
+	{
+		int next;
+		while ( (next=child(q,c)) == -1 && q != 0 )
+			q = fail[q];
+		return ( next == -1 ) ? 0 : next;
+	}
+	/**
+	 * Record a match of every pattern that ends at a node
+	 * @param q the node just reached
+	 * @param bs the versions that reached it
+	 * @param end the offset in the pair of the last character read
+	 * @return true, since all the matches are wanted
+	 */
+	boolean report( int q, BitSet bs, int end )
+	{
+		for ( int r=(out[q]!=null)?q:dict[q];r!=0;r=dict[r] )
+		{
+			for ( int i=0;i<out[r].length;i++ )
+			{
+				int k = out[r][i];
+				int len = patterns[k].length;
+				for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+					found.get( k ).add( new Match((short)v,
+						getOffset(v,end,len), len,
+						mvd.getVersionShortName(v), ChunkState.found) );
+			}
+		}
+		return true;
+	}
+	/**
+	 * Search the pairs of an MVD
+	 * @param mvd the MVD
+	 * @return the matches of each pattern in the order in which they 
+	 * end, indexed as the patterns were
+	 */
+	Match[][] search( MVD mvd )
+	{
+		run( mvd );
+		Match[][] result = new Match[patterns.length][];
+		for ( int k=0;k<patterns.length;k++ )
+		{
+			result[k] = new Match[found.get(k).size()];
+			found.get( k ).toArray( result[k] );
+		}
+		return result;
+	}
+}
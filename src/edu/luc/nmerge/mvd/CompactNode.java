@@ -68,7 +68,7 @@ public class CompactNode
 	 */
 	void addIncoming( Pair arc )
 	{
-		incoming.or( arc.versions );
+		arc.versions.addTo( incoming );
 	}
 	/**
 	 * Add as outgoing a pair
@@ -76,7 +76,7 @@ public class CompactNode
 	 */
 	void addOutgoing( Pair arc )
 	{
-		outgoing.or( arc.versions );
+		arc.versions.addTo( outgoing );
 	}
 	public String toString()
 	{
@@ -0,0 +1,127 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The still-encoded data table of an MVD file. Pairs read from a file
+ * can refer to a range of bytes in here instead of holding their own
+ * chars, and decode them only when they are first needed. The buffer
+ * may be an ordinary byte array or a mapped file.
+ * @author Desmond Schmidt
+ */
+class DataTable
+{
+	/** the raw bytes of the table */
+	ByteBuffer buf;
+	/** the charset the bytes are in */
+	Charset charset;
+	/** true if charset is UTF-8 */
+	boolean utf8;
+	/** if true pairs only keep a soft reference to their decoded data */
+	boolean soft;
+	/**
+	 * Create a data table
+	 * @param buf the buffer containing the encoded data
+	 * @param encoding the name of the encoding it is in
+	 */
+	DataTable( ByteBuffer buf, String encoding )
+	{
+		this.buf = buf;
+		try
+		{
+			this.charset = Charset.forName( encoding );
+		}
+		catch ( Exception e )
+		{
+			// same fallback as MVDFile.toChars
+			this.charset = Charset.defaultCharset();
+		}
+		this.utf8 = charset.name().equals("UTF-8");
+	}
+	/**
+	 * Get a view of part of the table. The view has its own position
+	 * so concurrent readers don't interfere with each other.
+	 * @param offset the offset of the first byte
+	 * @param len the number of bytes
+	 * @return a buffer containing exactly those bytes
+	 */
+	private ByteBuffer slice( int offset, int len )
+	{
+		ByteBuffer bb = buf.duplicate();
+		bb.limit( offset+len );
+		bb.position( offset );
+		return bb;
+	}
+	/**
+	 * Decode a range of bytes
+	 * @param offset the offset of the first byte
+	 * @param len the number of bytes
+	 * @return the decoded chars
+	 */
+	char[] decode( int offset, int len )
+	{
+		CharBuffer cb = charset.decode( slice(offset,len) );
+		char[] chars = new char[cb.remaining()];
+		cb.get( chars );
+		return chars;
+	}
+	/**
+	 * Copy out a range of bytes without decoding them
+	 * @param offset the offset of the first byte
+	 * @param len the number of bytes
+	 * @return a copy of the bytes
+	 */
+	byte[] getBytes( int offset, int len )
+	{
+		byte[] bytes = new byte[len];
+		slice(offset,len).get( bytes );
+		return bytes;
+	}
+	/**
+	 * Work out how many chars a range of bytes will decode to. For
+	 * UTF-8 we can count them without decoding: every byte that is
+	 * not a continuation byte starts a char, and four-byte sequences
+	 * become surrogate pairs.
+	 * @param offset the offset of the first byte
+	 * @param len the number of bytes
+	 * @return the number of chars
+	 */
+	int charLength( int offset, int len )
+	{
+		if ( utf8 )
+		{
+			int count = 0;
+			for ( int i=offset;i<offset+len;i++ )
+			{
+				int b = buf.get(i) & 0xFF;
+				if ( (b & 0xC0) != 0x80 )
+					count += (b >= 0xF0)?2:1;
+			}
+			return count;
+		}
+		else
+			return decode(offset,len).length;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Knuth-Morris-Pratt search of all the versions of an MVD at once.
+ * The state of a version is how much of the pattern it has matched,
+ * and all the runs share one failure table.
+ * @author Desmond Schmidt
+ */
+class KMPAutomaton extends PairAutomaton
+{
+	/** the pattern to find */
+	char[] pattern;
+	/** fail[q] is the length of the longest proper border of the
+	 * first q characters of the pattern */
+	int[] fail;
+	/** the matches found so far */
+	ArrayList<Match> found;
+	/** if true find all matches, otherwise only the first */
+	boolean multiple;
+	/**
+	 * Set up the automaton with all versions at the start
+	 * @param pattern the pattern to search for, not empty
+	 * @param bs the versions to search
+	 */
+	KMPAutomaton( char[] pattern, BitSet bs )
+	{
+		super( pattern.length+1 );
+		int m = pattern.length;
+		this.pattern = pattern;
+		fail = new int[m+1];
+		for ( int q=1,k=0;q<m;q++ )
+		{
+			while ( k > 0 && pattern[q] != pattern[k] )
+				k = fail[k];
+			if ( pattern[q] == pattern[k] )
+				k++;
+			fail[q+1] = k;
+		}
+		start( bs );
+	}
+	/**
+	 * Advance from a position on reading a character
+	 * @param q the number of pattern characters matched so far
+	 * @param c the character read
+	 * @return the number matched afterwards, which may be all of them
+	 */
+	int step( int q, char c )
+	{
+		while ( q > 0 && pattern[q] != c )
+			q = fail[q];
+		if ( pattern[q] == c )
+			q++;
+		return q;
+	}
+	/**
+	 * Record a match in each version that has matched all the pattern
+	 * @param q the number of pattern characters matched
+	 * @param bs the versions that have matched them
+	 * @param end the offset in the pair of the last character read
+	 * @return false if only the first match was wanted and it was found
+	 */
+	boolean report( int q, BitSet bs, int end )
+	{
+		int m = pattern.length;
+		if ( q == m )
+		{
+			for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+			{
+				found.add( new Match((short)v, getOffset(v,end,m), m,
+					mvd.getVersionShortName(v), ChunkState.found) );
+				if ( !multiple )
+					return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * After a whole match carry on from its longest border
+	 * @param q the number of pattern characters matched
+	 * @return the number to carry on from
+	 */
+	int settle( int q )
+	{
+		return ( q == pattern.length ) ? fail[q] : q;
+	}
+	/**
+	 * Search the pairs of an MVD
+	 * @param mvd the MVD
+	 * @param multiple if true find all matches, otherwise only the first
+	 * @return the matches in the order in which they end
+	 */
+	Match[] search( MVD mvd, boolean multiple )
+	{
+		this.multiple = multiple;
+		found = new ArrayList<Match>();
+		run( mvd );
+		Match[] result = new Match[found.size()];
+		found.toArray( result );
+		return result;
+	}
+}
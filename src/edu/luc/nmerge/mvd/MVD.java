@@ -23,16 +23,28 @@ import edu.luc.nmerge.mvd.navigator.TextNavigator;
 import edu.luc.nmerge.mvd.diff.Diff;
 import java.util.*;
 import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.Writer;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
 import java.io.Serializable;
 import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 import edu.luc.nmerge.graph.Graph;
 import edu.luc.nmerge.graph.Arc;
 import edu.luc.nmerge.graph.MUM;
 import edu.luc.nmerge.graph.SimpleQueue;
 import edu.luc.nmerge.graph.SpecialArc;
-import edu.luc.nmerge.graph.SpecialComparator;
+import edu.luc.nmerge.graph.SpecialQueue;
 import edu.luc.nmerge.graph.suffixtree.SuffixTree;
+import edu.luc.nmerge.graph.suffixtree.SuffixArray;
+import edu.luc.nmerge.graph.suffixtree.SuffixIndex;
 import edu.luc.nmerge.graph.Converter;
 import edu.luc.nmerge.graph.Node;
 import edu.luc.nmerge.exception.MVDException;
@@ -51,12 +63,34 @@ public class MVD extends Serialiser implements Serializable
 	// new options
 	boolean timing;
 	boolean directAlignOnly;
+	/** find MUMs with a suffix array instead of a suffix tree */
+	boolean suffixArray;
+	/** add versions close to an existing one by diffing against it */
+	boolean nearCopies;
+	/** sketch distance up to which a new version is a near copy */
+	static final double NEAR_COPY_DISTANCE = 0.2;
+	/** shortest run shared with its backup that anchors a partial version */
+	static final int PARTIAL_ANCHOR = 32;
+	/** sketches of the versions' texts by id, built as needed */
+	transient HashMap<Integer,Sketch> sketches;
+	/** number of times a special arc's suffix index was reused */
+	AtomicInteger indexReuses = new AtomicInteger();
+	/** builds and serialises the graph kept during a batch session */
+	transient Converter session;
+	/** the graph being updated in a batch session or null */
+	transient Graph sessionGraph;
+	/** runs the MUM searches concurrently if not null */
+	transient ExecutorService executor;
 	static final int DUFF_PID = -1;
 	static final int NULL_PID = 0;
 	public static String UNTITLED_NAME = "untitled";
 	ArrayList<Group> groups;		// id = position in table+1
 	ArrayList<Version> versions;	// id = position in table+1
 	ArrayList<Pair> pairs;
+	/** positional index over pairs, built lazily */
+	PairIndex posIndex;
+	/** n-gram index over the pairs for searching, or null */
+	transient NGramIndex ngrams;
 	String description;
 	int headerSize,groupTableSize,versionTableSize,pairsTableSize,
 	dataTableSize,versionSetSize;
@@ -113,6 +147,37 @@ public class MVD extends Serialiser implements Serializable
 	{
 		this.directAlignOnly = directAlignOnly;
 	}
+	/**
+	 * Choose the index used to find MUMs in the text being merged. 
+	 * A suffix array gives the same MUMs as the default suffix tree 
+	 * but uses much less memory.
+	 * @param suffixArray true to use a suffix array
+ 	 */
+	public void setSuffixArray( boolean suffixArray )
+	{
+		this.suffixArray = suffixArray;
+	}
+	/**
+	 * Add a new version that is almost the same as an existing one, 
+	 * such as a reprint or a corrected state, by diffing it against 
+	 * that version and only merging the ranges that differ. Versions 
+	 * that aren't close to any other are merged in full as usual.
+	 * @param nearCopies true to look for a close existing version
+ 	 */
+	public void setNearCopies( boolean nearCopies )
+	{
+		this.nearCopies = nearCopies;
+	}
+	/**
+	 * Set the executor used to run the direct and transpose MUM 
+	 * searches concurrently while merging. The caller owns the 
+	 * executor and must shut it down.
+	 * @param executor the executor or null to search sequentially
+ 	 */
+	public void setExecutor( ExecutorService executor )
+	{
+		this.executor = executor;
+	}
 	/**
 	 * Set the version set size for all version sets
 	 * @param setSize the size of the version set in bytes
@@ -249,6 +314,8 @@ public class MVD extends Serialiser implements Serializable
 	void addPair( Pair pair ) throws Exception
 	{
 		pairs.add( pair );
+		posIndex = null;
+		ngrams = null;
 	}
 	/**
 	 * Get the pairs list for converting to a Graph
@@ -372,16 +439,7 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	int next( int pairIndex, short u )
 	{
-		int i=pairIndex;
-		while ( i < pairs.size() )
-		{
-			Pair p = pairs.get( i );
-			if ( p.contains(u) )
-				return i;
-			else
-				i++;
-		}
-		return Integer.MAX_VALUE;
+		return getPairIndex().next( pairIndex, u );
 	}
 	/**
 	 * Get the index of the previous pair intersecting with a 
@@ -392,16 +450,52 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	int previous( int pairIndex, short u )
 	{
-		int i=pairIndex-1;
-		while ( i > 0 )
-		{
-			Pair p = pairs.get( i );
-			if ( p.contains(u) )
-				return i;
-			else
-				i--;
-		}
-		return -1;
+		return getPairIndex().previous( pairIndex, u );
+	}
+	/**
+	 * Get the positional index over the pairs, building it if needed.
+	 * It is discarded whenever the pairs list changes.
+	 * @return the current pair index
+	 */
+	PairIndex getPairIndex()
+	{
+		if ( posIndex == null )
+			posIndex = new PairIndex( pairs, versions.size() );
+		return posIndex;
+	}
+	/**
+	 * Make a positional index for a search or other task that visits 
+	 * many versions. Unlike the one from getPairIndex its version 
+	 * tables aren't kept in the MVD, so they go when the task is done.
+	 * @return a new index over the current pairs
+	 */
+	PairIndex newPairIndex()
+	{
+		return new PairIndex( pairs, versions.size() );
+	}
+	/**
+	 * Get the n-gram index used to search the MVD, building it with 
+	 * n-grams of the default length if there isn't one. Like the 
+	 * positional index it is discarded whenever the pairs change.
+	 * @return the n-gram index over the current pairs
+	 */
+	public NGramIndex getNGramIndex()
+	{
+		if ( ngrams == null )
+			ngrams = new NGramIndex( this, NGramIndex.DEFAULT_N );
+		return ngrams;
+	}
+	/**
+	 * Use an n-gram index, usually one read back from disk, to search 
+	 * the MVD
+	 * @param index the index or null to search by scanning
+	 * @throws MVDException if the index was built from other pairs
+	 */
+	public void setNGramIndex( NGramIndex index ) throws MVDException
+	{
+		if ( index != null && !index.fits(this) )
+			throw new MVDException( "N-gram index doesn't fit the MVD" );
+		ngrams = index;
 	}
     /**
      * Look forward from a position for a string in a given version
@@ -467,28 +561,61 @@ public class MVD extends Serialiser implements Serializable
             rhs = query.substring(index);
             lhs = query.substring(0,index);
         }
-        for ( int i=0;i<pairs.size();i++ )
+        int i = getPairIndex().getMvdPair( mvdPos );
+        if ( i >= 0 )
         {
             Pair p = pairs.get(i);
-            if ( p.length()+pos > mvdPos )
+            pos = posIndex.getMvdStart( i );
+            for ( int v=p.versions.nextSetBit(0);v>=0;v=p.versions.nextSetBit(v+1) )
             {
-                for ( int v=p.versions.nextSetBit(0);v>=0;v=p.versions.nextSetBit(v+1) )
-                {
-                    found = findForward(rhs,i,mvdPos-pos,v);
-                    if ( found && lhs.length()>0 )
-                        found = findBackward(lhs,i,(mvdPos-pos)-1,v);
-                    if ( found ) 
-                        bs.set(v);
-                }
-                break;
+                found = findForward(rhs,i,mvdPos-pos,v);
+                if ( found && lhs.length()>0 )
+                    found = findBackward(lhs,i,(mvdPos-pos)-1,v);
+                if ( found ) 
+                    bs.set(v);
+            }
+        }
+        return bs;
+    }
+    /**
+     * Find a literal query anywhere in the MVD. The n-gram index gives 
+     * the positions where the query may start and each one is checked 
+     * as by the other find method. Queries shorter than the n-grams 
+     * are tried at every position that starts like them.
+     * @param query the literal text to find
+     * @return the set of versions it was found in (may be empty)
+     */
+	public BitSet find( String query )
+    {
+        BitSet bs = new BitSet();
+        if ( query.length() == 0 )
+            return bs;
+        NGramIndex index = getNGramIndex();
+        if ( query.length() >= index.getN() )
+        {
+            int[] starts = index.getMvdPositions( this, 
+                query.toCharArray() );
+            for ( int i=0;i<starts.length;i++ )
+                bs.or( find(query,starts[i],query) );
+        }
+        else
+        {
+            char first = Character.toLowerCase( query.charAt(0) );
+            for ( int mvdPos=0,i=0;i<pairs.size();i++ )
+            {
+                char[] data = pairs.get(i).getChars();
+                for ( int j=0;j<data.length;j++,mvdPos++ )
+                    if ( Character.toLowerCase(data[j]) == first )
+                        bs.or( find(query,mvdPos,query) );
             }
-            pos += p.length();
         }
         return bs;
     }
     /**
 	 * Search for a pattern. Return multiple matches if requested 
-	 * as an array of Match objects
+	 * as an array of Match objects. If an n-gram index has been set 
+	 * or built, multiple matches of patterns at least as long as its 
+	 * n-grams are looked up in it instead of scanning all the pairs.
 	 * @param pattern the pattern to search for
 	 * @param bs the set of versions to search through
 	 * @param multiple if true return all hits; otherwise only the first 
@@ -497,89 +624,71 @@ public class MVD extends Serialiser implements Serializable
 	public Match[] search( char[] pattern, BitSet bs, boolean multiple ) 
 		throws Exception
 	{
-		KMPSearchState inactive = null;
-		KMPSearchState active = null;
-		Match[] matches = new Match[0];
-		if ( !versions.isEmpty() )
-		{
-			inactive = new KMPSearchState( pattern, bs );
-			for ( int i=0;i<pairs.size();i++ )
-			{
-				Pair temp = pairs.get( i );
-				// move all elements from active to inactive
-				if ( inactive == null )
-					inactive = active;
-				else
-					inactive.append( active );
-				active = null;
-				// move matching SearchStates into active
-				KMPSearchState s = inactive;
-				while ( s != null )
-				{
-					KMPSearchState sequential = s.following;
-					if ( s.v.intersects(temp.versions) )
-					{
-						KMPSearchState child = s.split(temp.versions);
-						if ( active == null )
-							active = child;
-						else
-							active.append( child );
-						if ( s.v.isEmpty() )
-							inactive = inactive.remove( s );
-					}
-					s = sequential;
-				}
-				// now process each char of the pair
-				if ( active != null )
-				{
-					char[] data = temp.getChars();
-					for ( int j=0;j<data.length;j++ )
-					{
-						KMPSearchState ss = active;
-						while ( ss != null )
-						{
-							if ( ss.update(data[j]) )
-							{
-								Match[] m = Match.makeMatches( 
-									pattern.length,ss.v,
-									this,i,j,multiple,ChunkState.found);
-								if ( matches == null )
-									matches = m;
-								else
-									matches = Match.merge( matches, m );
-								if ( !multiple )
-									break;
-							}
-							ss = ss.following;
-						}
-						// now prune the active list
-						KMPSearchState s1 = active;
-						if ( s1.next != null )
-						{
-							while ( s1 != null )
-							{
-								KMPSearchState s2 = s1.following;
-								while ( s2 != null )
-								{
-									KMPSearchState sequential = s2.following;
-									if ( s1.equals(s2) )
-									{
-										s1.merge( s2 );
-										active.remove( s2 );
-									}
-									s2 = sequential;
-								}
-								s1 = s1.following;
-							}
-						}
-					}
-				}
-			}
-		}
-		return matches;
+		if ( multiple && ngrams != null && pattern.length >= ngrams.getN() )
+			return ngrams.search( this, pattern, bs );
+		if ( versions.isEmpty() || pattern.length == 0 )
+			return new Match[0];
+		return new KMPAutomaton( pattern, bs ).search( this, multiple );
 	}
 	/**
-	 * Create a new empty version.
+	 * Search for a pattern allowing for small differences of spelling. 
+	 * A hit is anywhere the pattern can be turned into the text by at 
+	 * most k insertions, deletions or substitutions. All the versions 
+	 * are searched in one pass over the pairs.
+	 * @param pattern the pattern to search for
+	 * @param bs the set of versions to search through
+	 * @param k the most edits allowed, less than the pattern's length
+	 * @return the best hit in each stretch of overlapping ones
+	 * @throws MVDException if k is out of range
+	 */
+	public Match[] search( char[] pattern, BitSet bs, int k ) 
+		throws Exception
+	{
+		if ( k < 0 || k >= pattern.length )
+			throw new MVDException( "Number of errors must be from 0 to "
+				+"one less than the pattern length" );
+		if ( k == 0 )
+			return search( pattern, bs, true );
+		if ( versions.isEmpty() )
+			return new Match[0];
+		return new MyersAutomaton( pattern, bs, k ).search( this );
+	}
+	/**
+	 * Search for a regular expression. It is compiled to an NFA that 
+	 * is run over the pairs, so text shared by several versions is 
+	 * read only once. Matches are leftmost-longest and don't overlap; 
+	 * empty matches are not reported. See RegexNFA for the syntax.
+	 * @param regex the regular expression
+	 * @param bs the set of versions to search through
+	 * @return the matches in order of version and then of offset
+	 * @throws MVDException if the expression is malformed
+	 */
+	public Match[] searchRegex( String regex, BitSet bs ) throws Exception
+	{
+		RegexNFA nfa = new RegexNFA( regex );
+		if ( versions.isEmpty() )
+			return new Match[0];
+		return new RegexAutomaton( nfa, bs ).search( this );
+	}
+	/**
+	 * Search for many patterns at once. The patterns are compiled 
+	 * into one Aho-Corasick automaton and the pairs are read only 
+	 * once, which is much quicker than searching for each in turn.
+	 * @param patterns the patterns to search for
+	 * @param bs the set of versions to search through
+	 * @return all the matches of each pattern, in the order of patterns
+	 */
+	public Match[][] search( char[][] patterns, BitSet bs ) 
+		throws Exception
+	{
+		if ( versions.isEmpty() )
+			return new Match[patterns.length][0];
+		return new AhoCorasick( patterns, bs ).search( this );
+	}
+	/**
+	 * Create a new empty version. A partial version starts out as a 
+	 * copy of its backup, in the graph of the current batch of updates 
+	 * if there is one.
      * @param group if empty or null convert to TOP_LEVEL
 	 * @return the id of the new version
 	 */
@@ -593,20 +702,29 @@ public class MVD extends Serialiser implements Serializable
 			groups.add( g );
 			gId = (short)groups.size();
 		}
+		// without a backup there is nothing to copy
+		if ( backup == Version.NO_BACKUP )
+			partial = false;
 		versions.add( new Version(gId, (partial)?backup:Version.NO_BACKUP, 
 			shortName, longName) );
 		int vId = versions.size();
 		// now go through the graph, looking for any pair 
 		// containing the backup version and adding to it 
 		// the new version. Q: does that apply also to hints?
-		if ( partial )
+		if ( partial && session != null )
+			sessionGraph.copyVersion( backup, vId );
+		else if ( partial )
 		{
+			// the sets are shared so give each pair a new one
 			for ( int i=0;i<pairs.size();i++ )
 			{
 				Pair p = pairs.get( i );
 				if ( p.versions.nextSetBit(backup)==backup )
-					p.versions.set(vId);
+					p.versions = p.versions.with( vId );
 			}
+			VersionSetPool.internAll( pairs );
+			posIndex = null;
+			ngrams = null;
 		}
 		return vId;
 	}
@@ -824,18 +942,172 @@ public class MVD extends Serialiser implements Serializable
         throws Exception
     {
         Graph g = original;
-
+		if ( nearCopies && addNearCopy(original,version,data) )
+			return;
 		SpecialArc special = g.addSpecialArc( data, version, 0 );
 		if ( timing )
 			startTime = System.currentTimeMillis();
 		if ( g.getStart().cardinality() > 1 )
 		{
-			SuffixTree st = makeSuffixTree( special );
+			SuffixIndex st = getSuffixIndex( special );
 			MUM bestMUM = MUM.findDirectMUM( special, st, g );
+			if ( bestMUM == null )
+				special.setIndex( null );
 			mergeSpecial( g, bestMUM );
 		}
 		original.adopt( version );
     }
+	/**
+	 * Add a new version that differs only a little from an existing 
+	 * one. The new version first follows the path of the closest 
+	 * existing version, then the ranges where their texts differ are 
+	 * cut out as subgraphs and merged just as revise does.
+	 * @param original the graph to add it to
+	 * @param version the version id of the new version
+	 * @param data the new version's data
+	 * @return true if it was added, false if no version was close
+	 * @throws Exception if something went wrong
+	 */
+	private boolean addNearCopy( Graph original, short version, 
+		char[] data ) throws Exception
+	{
+		if ( sketches == null )
+			sketches = new HashMap<Integer,Sketch>();
+		Sketch sketch = new Sketch( data );
+		double best = NEAR_COPY_DISTANCE;
+		short base = 0;
+		for ( short v=1;v<version;v++ )
+		{
+			double d = getSketch( original, v ).distance( sketch );
+			if ( d <= best )
+			{
+				best = d;
+				base = v;
+			}
+		}
+		sketches.put( (int)version, sketch );
+		if ( base == 0 )
+			return false;
+		if ( timing )
+			startTime = System.currentTimeMillis();
+		Diff[] diffs = Matrix.computeBasicDiffs( data, 
+			original.getVersion(base) );
+		original.copyVersion( base, version );
+		mergeDiffs( original, version, data, diffs );
+		return true;
+	}
+	/**
+	 * Make a version that already follows the path of another one 
+	 * take on its own text. Each range where the texts differ is cut 
+	 * out as a subgraph, the version is taken out of it and its own 
+	 * text there is merged back in as a special arc.
+	 * @param original the graph containing the version
+	 * @param version the version to change
+	 * @param data the version's own text
+	 * @param diffs the differences between data and its current text
+	 * @throws Exception if something went wrong
+	 */
+	private void mergeDiffs( Graph original, short version, char[] data, 
+		Diff[] diffs ) throws Exception
+	{
+		Graph[] miniGraphs = new Graph[diffs.length];
+		Node n = original.getStart();
+		for ( int pos=0,i=0;i<diffs.length;i++ )
+		{
+			miniGraphs[i] = original.getMiniGraph( diffs[i], version, pos, n );
+			pos = diffs[i].oldOff()+diffs[i].oldLen();
+			n = miniGraphs[i].getEnd();
+		}
+		for ( int i=0;i<miniGraphs.length;i++ )
+		{
+			Graph g = miniGraphs[i];
+			g.removeVersion( version );
+			char[] diffData = new char[diffs[i].newLen()];
+			int offset = diffs[i].newOff();
+			for ( int j=0;j<diffData.length;j++ )
+				diffData[j] = data[offset+j];
+			SpecialArc special = g.addSpecialArc( diffData, version, offset );
+			if ( g.getStart().cardinality() > 1 )
+			{
+				MUM bestMUM = computeBestMUM( g, special );
+				if ( bestMUM != null )
+					mergeSpecial( g, bestMUM );
+			}
+			g.adopt( version );
+		}
+	}
+	/**
+	 * Add the text of a partial version. The version already follows 
+	 * the path of its backup, so wherever it has no text of its own 
+	 * before or after the part it covers it keeps the backup's text. 
+	 * The part it covers runs from the first to the last stretch of 
+	 * at least PARTIAL_ANCHOR characters that it shares with the 
+	 * backup. Only that part is merged as a difference. If there is 
+	 * no such stretch the version gets just its own text.
+	 * @param original the graph containing the version
+	 * @param version the version id of the partial version
+	 * @param data the part of its text that it has
+	 * @throws Exception if something went wrong
+	 */
+	private void addPartial( Graph original, short version, char[] data )
+		throws Exception
+	{
+		char[] base = original.getVersion( version );
+		Diff[] diffs = Matrix.computeBasicDiffs( data, base );
+		// find the first and last long runs the texts share
+		int firstOld=-1,firstNew=0,lastOld=0,lastNew=0;
+		int oldPos=0,newPos=0;
+		for ( int i=0;i<=diffs.length;i++ )
+		{
+			int oldEnd = (i<diffs.length)?diffs[i].oldOff():base.length;
+			if ( oldEnd-oldPos >= PARTIAL_ANCHOR )
+			{
+				if ( firstOld == -1 )
+				{
+					firstOld = oldPos;
+					firstNew = newPos;
+				}
+				lastOld = oldEnd;
+				lastNew = newPos+(oldEnd-oldPos);
+			}
+			if ( i < diffs.length )
+			{
+				oldPos = diffs[i].oldEnd();
+				newPos = diffs[i].newEnd();
+			}
+		}
+		// backup text kept before and after data
+		int lead = 0;
+		int trail = 0;
+		if ( firstOld != -1 )
+		{
+			lead = Math.max( 0, firstOld-firstNew );
+			trail = Math.max( 0, (base.length-lastOld)-(data.length-lastNew) );
+		}
+		char[] filled = new char[lead+data.length+trail];
+		System.arraycopy( base, 0, filled, 0, lead );
+		System.arraycopy( data, 0, filled, lead, data.length );
+		System.arraycopy( base, base.length-trail, filled, 
+			lead+data.length, trail );
+		diffs = Matrix.computeBasicDiffs( filled, base );
+		mergeDiffs( original, version, filled, diffs );
+	}
+	/**
+	 * Get the sketch of a version already in the graph
+	 * @param g the graph
+	 * @param version the version's id
+	 * @return its sketch, made now if need be
+	 */
+	private Sketch getSketch( Graph g, int version )
+	{
+		Sketch s = sketches.get( version );
+		if ( s == null )
+		{
+			s = new Sketch( g.getVersion(version) );
+			sketches.put( version, s );
+		}
+		return s;
+	}
 	/**
 	 * Given an initial best MUM merge it into the given graph or subgraph
 	 * @param g the initial graph or subgraph
@@ -844,39 +1116,122 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	void mergeSpecial( Graph g, MUM bestMUM ) throws Exception
 	{
-		TreeMap<SpecialArc,Graph> specials =
-		new TreeMap<SpecialArc,Graph>(new SpecialComparator());
+		SpecialQueue specials = new SpecialQueue();
+		// only direct alignments keep the subgraphs independent
+		if ( executor != null && directAlignOnly )
+		{
+			MergeScheduler scheduler = new MergeScheduler();
+			mergeSpecial( specials, bestMUM, scheduler );
+			scheduler.join();
+		}
+		else
+			mergeSpecial( specials, bestMUM, null );
+	}
+	/**
+	 * Merge MUMs longest first until there are no more special arcs. 
+	 * If a merge leaves nothing else pending, its left and right 
+	 * subgraphs can't affect each other and, given a scheduler, the 
+	 * right one is handed over to it and merged concurrently.
+	 * @param specials the special arcs still to merge
+	 * @param bestMUM the best MUM at the start or null
+	 * @param scheduler if not null fork independent subgraphs to it
+	 * @throws Exception
+	 */
+	private void mergeSpecial( SpecialQueue specials, 
+		MUM bestMUM, MergeScheduler scheduler ) throws Exception
+	{
 		while ( bestMUM != null )
 		{
 			if ( bestMUM.verify() )
 			{
+				bestMUM.getArc().setIndex( null );
 				bestMUM.merge();
 				SimpleQueue<SpecialArc> leftSpecials =
 					bestMUM.getLeftSpecialArcs();
 				SimpleQueue<SpecialArc> rightSpecials =
 					bestMUM.getRightSpecialArcs();
+				SpecialQueue rightQueue = specials;
+				if ( scheduler != null && specials.isEmpty()
+					&& leftSpecials != null && !leftSpecials.isEmpty() )
+					rightQueue = new SpecialQueue();
 				while ( leftSpecials != null && !leftSpecials.isEmpty() )
 					installSpecial( specials, leftSpecials.poll(),
 						bestMUM.getLeftSubgraph(), true );
 				while ( rightSpecials != null && !rightSpecials.isEmpty() )
-					installSpecial( specials, rightSpecials.poll(),
+					installSpecial( rightQueue, rightSpecials.poll(),
 						bestMUM.getRightSubgraph(), false );
+				if ( rightQueue != specials && !rightQueue.isEmpty() )
+					scheduler.fork( rightQueue );
 			}
 			else // try again
 			{
 				bestMUM = recomputeMUM( bestMUM );
 				if ( bestMUM != null )
-					specials.put( bestMUM.getArc(), bestMUM.getGraph() );
+					specials.add( bestMUM.getArc() );
 			}
 			// POP topmost entry, if possible
-			bestMUM = null;
-			if ( specials.size() > 0 )
+			bestMUM = pop( specials );
+		}
+	}
+	/**
+	 * Remove the special arc with the longest MUM
+	 * @param specials the pending special arcs
+	 * @return its MUM or null if there are none left
+	 */
+	private MUM pop( SpecialQueue specials )
+	{
+		SpecialArc key = specials.poll();
+		return (key==null)?null:key.getBest();
+	}
+	/**
+	 * Runs the merging of independent subgraphs on the executor. 
+	 * Each subgraph is merged longest MUM first as usual, so the 
+	 * result is the same as merging them all in one queue.
+	 */
+	private class MergeScheduler
+	{
+		/** subgraph merges in the order they were forked */
+		ConcurrentLinkedQueue<FutureTask<Object>> tasks = 
+			new ConcurrentLinkedQueue<FutureTask<Object>>();
+		/**
+		 * Merge a subgraph concurrently
+		 * @param specials its special arcs with their MUMs
+		 */
+		void fork( final SpecialQueue specials )
+		{
+			FutureTask<Object> task = new FutureTask<Object>( 
+				new Callable<Object>() {
+					public Object call() throws Exception
+					{
+						mergeSpecial( specials, pop(specials), 
+							MergeScheduler.this );
+						return null;
+					}
+				} );
+			tasks.add( task );
+			executor.execute( task );
+		}
+		/**
+		 * Wait for all forked merges, including those they fork 
+		 * themselves. Merges no worker has started yet are run here.
+		 * @throws Exception if any of them failed
+		 */
+		void join() throws Exception
+		{
+			FutureTask<Object> task;
+			while ( (task=tasks.poll()) != null )
 			{
-				SpecialArc key = specials.firstKey();
-				if ( key != null )
+				task.run();
+				try
 				{
-					g = specials.remove( key );
-					bestMUM = key.getBest();
+					task.get();
+				}
+				catch ( ExecutionException e )
+				{
+					Throwable cause = e.getCause();
+					if ( cause instanceof Error )
+						throw (Error)cause;
+					throw (Exception)cause;
 				}
 			}
 		}
@@ -893,10 +1248,10 @@ public class MVD extends Serialiser implements Serializable
     private void revise( Graph original, short version, char[] data,
         boolean mergeSharedVersions ) throws Exception
     {
-        char[] base = getVersion( version );
+        // the pairs are out of date during a batch of updates
+        char[] base = (session!=null)?original.getVersion( version )
+            :getVersion( version );
         Diff[] diffs = Matrix.computeBasicDiffs( data, base );
-        TreeMap<SpecialArc,Graph> specials =
-			new TreeMap<SpecialArc,Graph>(new SpecialComparator());
         Graph[] miniGraphs = new Graph[diffs.length];
         Node n = original.getStart();
         for ( int pos=0,i=0;i<diffs.length;i++ )
@@ -936,28 +1291,114 @@ public class MVD extends Serialiser implements Serializable
         boolean mergeSharedVersions ) throws Exception
 	{
 		// to do: if version already exists, remove it first
-		Converter con = new Converter();
-		Graph original = con.create( pairs, versions.size() );
+		Converter con;
+		Graph original;
+		if ( session != null )
+		{
+			con = session;
+			original = sessionGraph;
+			con.addVersion( version );
+		}
+		else
+		{
+			con = new Converter();
+			original = con.create( pairs, versions.size() );
+		}
 		if ( version < versions.size() )
         {
             //System.out.println("version="+version+" num-versions="+versions.size());
             revise( original, version, data, mergeSharedVersions );
+            sketches = null;
         }
+        else if ( version == versions.size() 
+            && versions.get(version-1).isPartial() )
+            addPartial( original, version, data );
         else
             add( original, version, data );
-        pairs = con.serialise();
+		if ( session == null )
+		{
+			pairs = con.serialise();
+			VersionSetPool.internAll( pairs );
+			posIndex = null;
+			ngrams = null;
+		}
 		if ( timing )
 		{
 			String finishTime = new Long(System.currentTimeMillis()
 				-startTime).toString();
 			System.out.println( "Time taken to merge version "
 				+version+"="+finishTime );
+			System.out.println( "Suffix indices reused: "
+				+indexReuses.get() );
 		}
 		if ( numVersions()==1 )
 			return 0.0f;
+		else if ( session != null )
+			return getPercentUnique( original, version );
 		else
 			return getPercentUnique( version );
     }
+	/**
+	 * Start a batch of updates. The variant graph is built from the 
+	 * pairs once here and kept until endUpdates, so that each call to 
+	 * update merges straight into it instead of rebuilding the graph 
+	 * and serialising it again every time. Until endUpdates is called 
+	 * the pairs are out of date, so apart from newVersion and update 
+	 * the MVD should be left alone.
+	 * @throws Exception if the graph couldn't be built
+	 */
+	public void beginUpdates() throws Exception
+	{
+		if ( session != null )
+			throw new MVDException( "Batch of updates already begun" );
+		Converter con = new Converter();
+		sessionGraph = con.create( pairs, versions.size() );
+		session = con;
+	}
+	/**
+	 * Finish a batch of updates by writing the graph out as pairs
+	 * @throws Exception if the graph couldn't be serialised
+	 */
+	public void endUpdates() throws Exception
+	{
+		if ( session == null )
+			throw new MVDException( "No batch of updates begun" );
+		try
+		{
+			pairs = session.serialise();
+			VersionSetPool.internAll( pairs );
+			posIndex = null;
+			ngrams = null;
+		}
+		finally
+		{
+			session = null;
+			sessionGraph = null;
+		}
+	}
+	/**
+	 * Get the percentage of the given version that is unique by 
+	 * following its path through a graph that may not have been 
+	 * serialised yet
+	 * @param g the graph
+	 * @param version the version to test
+	 * @return float fraction of version that is unique
+	 */
+	private float getPercentUnique( Graph g, short version )
+	{
+		float unique=0.0f,shared=0.0f;
+		Node n = g.getStart();
+		while ( n != g.getEnd() )
+		{
+			Arc a = n.pickOutgoingArc( version );
+			if ( a.versions.cardinality()==1 )
+				unique += a.dataLen();
+			else
+				shared += a.dataLen();
+			n = a.to;
+		}
+		return unique/shared;
+	}
     /**
 	 * Get the percentage of the given version that is unique
 	 * @param version the version to compute uniqueness for
@@ -976,7 +1417,7 @@ public class MVD extends Serialiser implements Serializable
 				Pair p = pairs.get( i );
 				if ( p.versions.nextSetBit(version)==version )
 				{
-					if ( p.versions.size()==1 )
+					if ( p.versions.cardinality()==1 )
 						uniqueLen+= p.length();
 					totalLen += p.length();
 				}
@@ -997,7 +1438,7 @@ public class MVD extends Serialiser implements Serializable
 			Pair p = pairs.get( i );
 			if ( p.versions.nextSetBit(version)==version )
 			{
-				if ( p.versions.size()==1 )
+				if ( p.versions.cardinality()==1 )
 					unique += p.length();
 				else
 					shared += p.length();
@@ -1026,11 +1467,13 @@ public class MVD extends Serialiser implements Serializable
 	private MUM computeBestMUM( Graph g, SpecialArc special ) 
 		throws MVDException
 	{
-		SuffixTree st = makeSuffixTree( special );
-		MUM directMUM = MUM.findDirectMUM( special, st, g );
-		MUM best = directMUM;
-		if ( !directAlignOnly )
+		SuffixIndex st = getSuffixIndex( special );
+		MUM best;
+		if ( directAlignOnly )
+			best = MUM.findDirectMUM( special, st, g, executor );
+		else if ( executor == null )
 		{
+			MUM directMUM = MUM.findDirectMUM( special, st, g );
 			MUM leftTransposeMUM = MUM.findLeftTransposeMUM( 
 				special, st, g );
 			MUM rightTransposeMUM = MUM.findRightTransposeMUM( 
@@ -1038,43 +1481,152 @@ public class MVD extends Serialiser implements Serializable
 			best = getBest( directMUM, leftTransposeMUM, 
 				rightTransposeMUM );
 		}
+		else
+		{
+			// the searches only read the graph and the suffix index
+			FutureTask<MUM> left = new FutureTask<MUM>( 
+				new MUMSearch(special,st,g,true) );
+			FutureTask<MUM> right = new FutureTask<MUM>( 
+				new MUMSearch(special,st,g,false) );
+			executor.execute( left );
+			executor.execute( right );
+			MUM directMUM = MUM.findDirectMUM( special, st, g, executor );
+			best = getBest( directMUM, getResult(left), 
+				getResult(right) );
+		}
 		if ( best != null )
 			special.setBest( best );
+		else
+			special.setIndex( null );
 		return best;
 	}
 	/**
-	 * Create a new suffix tree based on the data in the special arc. 
+	 * Wait for the result of a concurrent MUM search. If no worker 
+	 * has started it yet we run it ourselves rather than wait.
+	 * @param future the pending search
+	 * @return the MUM it found or null
+	 * @throws MVDException if the search failed or was interrupted
+	 */
+	private static MUM getResult( FutureTask<MUM> future ) 
+		throws MVDException
+	{
+		try
+		{
+			future.run();
+			return future.get();
+		}
+		catch ( ExecutionException e )
+		{
+			Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw (Error)cause;
+			throw new MVDException( (Exception)cause );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new MVDException( e );
+		}
+	}
+	/**
+	 * A transpose MUM search that can be run on an executor
+	 */
+	private static class MUMSearch implements Callable<MUM>
+	{
+		SpecialArc special;
+		SuffixIndex st;
+		Graph g;
+		boolean left;
+		/**
+		 * Create a search
+		 * @param special the special arc to find the MUM of
+		 * @param st the suffix index made from special
+		 * @param g the subgraph directly opposite it
+		 * @param left true for a left transpose search else right
+		 */
+		MUMSearch( SpecialArc special, SuffixIndex st, Graph g, 
+			boolean left )
+		{
+			this.special = special;
+			this.st = st;
+			this.g = g;
+			this.left = left;
+		}
+		/**
+		 * Do the search
+		 * @return the best transpose MUM or null
+		 */
+		public MUM call()
+		{
+			if ( left )
+				return MUM.findLeftTransposeMUM( special, st, g );
+			else
+				return MUM.findRightTransposeMUM( special, st, g );
+		}
+	}
+	/**
+	 * Get the suffix index of a special arc, building it only if this 
+	 * is the first time its MUM has been computed. 
+	 * @param special the special arc
+	 * @return its suffix index
+	 * @throws MVDException
+	 */
+	private SuffixIndex getSuffixIndex( SpecialArc special ) 
+		throws MVDException
+	{
+		SuffixIndex st = special.getIndex();
+		if ( st == null )
+		{
+			st = makeSuffixIndex( special );
+			special.setIndex( st );
+		}
+		else
+			indexReuses.incrementAndGet();
+		return st;
+	}
+	/**
+	 * Get the number of times the suffix index of a special arc was 
+	 * reused instead of being built again, since this MVD was created
+	 * @return the number of rebuilds avoided
+	 */
+	public int getIndexReuses()
+	{
+		return indexReuses.get();
+	}
+	/**
+	 * Create a new suffix index based on the data in the special arc. 
 	 * @param special the special arc
-	 * @return the suffix tree
+	 * @return a suffix array or a suffix tree
 	 * @throws MVDException
 	 */
-	private SuffixTree makeSuffixTree( SpecialArc special ) 
+	private SuffixIndex makeSuffixIndex( SpecialArc special ) 
 		throws MVDException
 	{
 		char[] specialData;
 		specialData = special.getData();
-		return new SuffixTree( specialData, false );
+		if ( suffixArray )
+			return new SuffixArray( specialData );
+		else
+			return new SuffixTree( specialData, false );
 	}
 	/**
 	 * Install a subarc into specials
-	 * @param specials the specials TreeMap (red-black tree)
+	 * @param specials the queue of special arcs
 	 * @param special the special subarc to add
 	 * @param subGraph the directly opposite subgraph
 	 * @param left true if we are doing the left subarc, otherwise the 
 	 * right
 	 */
-	private void installSpecial( TreeMap<SpecialArc,Graph> specials, 
+	private void installSpecial( SpecialQueue specials, 
 		SpecialArc special, Graph subGraph, boolean left ) throws MVDException
 	{
 		assert special.getFrom() != null && special.to != null;
-		// this is necessary BEFORE you recalculate the MUM
-		// because it will invalidate the special's location 
-		// in the treemap and make it unfindable
-		if ( specials.containsKey(special) )
-			specials.remove( special );
 		MUM best = computeBestMUM( subGraph, special );
+		// requeue it under its new priority if it was already there
 		if ( best != null )
-			specials.put( special, subGraph );
+			specials.add( special );
+		else
+			specials.remove( special );
         //System.out.println("special="+special.toString());
 	}
 	/**
@@ -1102,9 +1654,8 @@ public class MVD extends Serialiser implements Serializable
 		if ( direct != null && transposed != null )
 		{
 			int result = direct.compareTo( transposed );
-			// remember, we nobbled the compareTo method
-			// to produce reverse ordering in the specials
-			// treemap, so "less than" is actually longer
+			// remember, compareTo ranks better MUMs first,
+			// so "less than" is actually longer
 			if ( result == 0 || result < 0 )
 				best = direct;
 			else
@@ -1125,26 +1676,33 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	public void removeVersion( int version ) throws Exception
 	{
+		if ( session != null )
+			throw new MVDException( 
+				"Can't remove a version during a batch of updates" );
 		Converter con = new Converter();
 		Graph original = con.create( pairs, versions.size() );
 		original.removeVersion( version );
 		original.verify();
 		versions.remove( version-1 );
+		sketches = null;
 		pairs = con.serialise();
 		for ( int i=0;i<pairs.size();i++ )
 		{
 			Pair p = pairs.get( i );
 			p.versions = removeVersion( p.versions, version );
 		}
+		VersionSetPool.internAll( pairs );
+		posIndex = null;
+		ngrams = null;
 	}
 	/**
-	 * Remove a version from a BitSet and shift all subsequent 
+	 * Remove a version from a set and shift all subsequent 
 	 * versions down by 1
-	 * @param versions the bitset containing the versions
+	 * @param versions the set containing the versions
 	 * @param version the version id to remove
-	 * @erturn a modified bitset 
+	 * @return a new set without it 
 	 */
-	private BitSet removeVersion( BitSet versions, int version )
+	private VersionSet removeVersion( VersionSet versions, int version )
 	{
 		BitSet bs = new BitSet();
 		for ( int i=versions.nextSetBit(0);i>=0;
@@ -1156,7 +1714,7 @@ public class MVD extends Serialiser implements Serializable
 				bs.set( i-1 );
 			// and if equal we of course skip it
 		}
-		return bs;
+		return new VersionSet( bs );
 	}
 	/**
 	 * Remove a group from the group table. Check that the parent 
@@ -1484,29 +2042,68 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	public char[] getVersion( int version )
 	{
-		int length = 0;
-		// measure the length
-		for ( int i=0;i<pairs.size();i++ )
+		char[] result = new char[getVersionLength(version)];
+		for ( int k=0,i=0;i<pairs.size();i++ )
 		{
 			Pair p = pairs.get( i );
-			if ( p.versions.nextSetBit(version)==version )
+			if ( p.contains((short)version) )
 			{
-				length += p.length();
+				int len = p.length();
+				System.arraycopy( p.getChars(), 0, result, k, len );
+				k += len;
 			}
 		}
-		char[] result = new char[length];
-		// now copy it
-		int k,i;
-		for ( k=0,i=0;i<pairs.size();i++ )
+		return result;
+	}
+	/**
+	 * Write a version directly to a writer without building a copy 
+	 * of the whole version first
+	 * @param version the version to retrieve
+	 * @param out the writer to write it to
+	 * @throws IOException if the write failed
+	 */
+	public void getVersion( int version, Writer out ) throws IOException
+	{
+		for ( int i=0;i<pairs.size();i++ )
 		{
 			Pair p = pairs.get( i );
-			if ( p.versions.nextSetBit(version)==version )
-			{
-				for ( int j=0;j<p.length();j++ )
-					result[k++] = p.getChars()[j];
-			}
+			if ( p.contains((short)version) )
+				out.write( p.getChars(), 0, p.length() );
+		}
+	}
+	/**
+	 * Copy a version into a buffer
+	 * @param version the version to retrieve
+	 * @param buf the buffer to receive the data, with at least 
+	 * getVersionLength(version) chars remaining
+	 * @throws BufferOverflowException if buf is too small
+	 */
+	public void getVersion( int version, CharBuffer buf )
+	{
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			if ( p.contains((short)version) )
+				buf.put( p.getChars(), 0, p.length() );
+		}
+	}
+	/**
+	 * Get the length of a version in chars
+	 * @param version the version id
+	 * @return its length
+	 */
+	public int getVersionLength( int version )
+	{
+		if ( version >= 1 && version <= versions.size() )
+			return getPairIndex().getVersionLengths(versions.size())[version-1];
+		else
+		{
+			int length = 0;
+			for ( int i=0;i<pairs.size();i++ )
+				if ( pairs.get(i).contains((short)version) )
+					length += pairs.get(i).length();
+			return length;
 		}
-		return result;
 	}
     /**
      * Get the version id of the named shortname and group-path
@@ -1589,17 +2186,7 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	public int[] getVersionLengths()
 	{
-		int[] lengths = new int[versions.size()];
-		for ( int i=0;i<pairs.size();i++ )
-		{
-			Pair p = pairs.get( i );
-			BitSet bs = p.versions;
-			for ( int j=bs.nextSetBit(1);j>=0;j=bs.nextSetBit(j+1) ) 
-			{
-				lengths[j-1] += p.length();
-			}
-		}
-		return lengths;
+		return getPairIndex().getVersionLengths(versions.size()).clone();
 	}
 	/**
 	 * Get the size of the data required in bytes to store this MVD
@@ -1607,19 +2194,23 @@ public class MVD extends Serialiser implements Serializable
 	 * @throws UnsupportedEncodingException
 	 */
 	int dataSize() throws UnsupportedEncodingException
+	{
+		return dataSize( null );
+	}
+	/**
+	 * Get the size of the data required in bytes to store this MVD
+	 * @param sizes if not null an array to receive the data size 
+	 * of each pair
+	 * @return the byte-size of the serialised mvd
+	 * @throws UnsupportedEncodingException
+	 */
+	private int dataSize( int[] sizes ) throws UnsupportedEncodingException
 	{
 		headerSize = groupTableSize = versionTableSize = 
 			pairsTableSize = dataTableSize = 0;
 		// header
 		headerSize = MVDFile.MVD_MAGIC.length; // magic
 		headerSize += 5 * 4; // table offsets etc
-		/*try
-		{
-			MVDError.log( this.toString() );
-		}
-		catch ( Exception e )
-		{
-		}*/
 		headerSize += measureUtf8String( description );
 		headerSize += measureUtf8String( encoding );
 		groupTableSize = 2; // number of groups
@@ -1640,28 +2231,38 @@ public class MVD extends Serialiser implements Serializable
 		{
 			Pair p = pairs.get( i );
 			pairsTableSize += p.pairSize(versionSetSize);
-			dataTableSize += p.dataSize();
+			int size = p.dataSize();
+			if ( sizes != null )
+				sizes[i] = size;
+			dataTableSize += size;
 		}
 		return headerSize + groupTableSize + versionTableSize 
 			+ pairsTableSize + dataTableSize;
 	}
 	/**
-	 * Serialise the entire mvd into the given byte array. Must 
-	 * be preceded by a call to dataSize (otherwise no way to 
-	 * calculate size of data).
-	 * @param data a byte array of exactly the right size
+	 * Serialise the entire mvd to a stream. The header and tables are 
+	 * small enough to be built in memory, then the pairs table and 
+	 * the data table are written out pair by pair, so the data of 
+	 * each pair is encoded only once.
+	 * @param out the stream to write to
 	 * @return the number of serialised bytes
-	 * @throws an Exception if data was the wrong size
-	 */
-	int serialise( byte[] data ) throws Exception
-	{
-		int nBytes = serialiseHeader( data );
-		int p = headerSize;
-		nBytes += serialiseGroups( data, p );
-		p += groupTableSize;
-		nBytes += serialiseVersions( data, p );
-		p += versionTableSize;
-		nBytes += serialisePairs( data, p, p+pairsTableSize );
+	 * @throws an Exception if the size was not as predicted
+	 */
+	int serialise( OutputStream out ) throws Exception
+	{
+		int[] sizes = new int[pairs.size()];
+		int size = dataSize( sizes );
+		int tablesSize = headerSize + groupTableSize + versionTableSize;
+		// one spare byte for the bounds checks of the table writers
+		byte[] tables = new byte[tablesSize+1];
+		int nBytes = serialiseHeader( tables );
+		nBytes += serialiseGroups( tables, headerSize );
+		nBytes += serialiseVersions( tables, headerSize+groupTableSize );
+		out.write( tables, 0, tablesSize );
+		nBytes += serialisePairs( out, sizes );
+		if ( nBytes != size )
+			throw new MVDException( "MVD size "+nBytes
+				+" not as predicted: "+size );
 		return nBytes;
 	}
 	/**
@@ -1705,103 +2306,72 @@ public class MVD extends Serialiser implements Serializable
 		return nBytes;
 	}
 	/**
-	 * Serialise the pairs table starting at offset p in the data byte 
-	 * array. Don't serialise the data they refer to yet. Since parents 
-	 * and children may come in any order we have to keep track of orphaned 
-	 * children or parents without children, and then join them up when we 
-	 * can.
-	 * @param data the byte array to write to
-	 * @param p the offset within data to start writing
-	 * @param dataTableOffset the offset to the start of the dataTable 
-	 * within data
+	 * Serialise the pairs table followed by the data table. Since 
+	 * the data size of every pair is already known we can work out 
+	 * the data offsets and parent ids first. Then children can be 
+	 * written straight out, even if their parents come later.
+	 * @param out the stream to write to
+	 * @param sizes the data size of each pair
 	 * @return the number of serialised bytes
 	 */
-	private int serialisePairs( byte[] data, int p, int dataTableOffset ) 
+	private int serialisePairs( OutputStream out, int[] sizes ) 
 		throws Exception
 	{
 		int nBytes = 0;
 		HashMap<Pair,Integer> ancestors = new HashMap<Pair,Integer>();
-		HashMap<Pair,Integer> orphans = new HashMap<Pair,Integer>();
-		if ( p + pairsTableSize <= data.length )
+		int[] offsets = new int[pairs.size()];
+		int dataOffset = 0;
+		int parentId = 1;
+		for ( int i=0;i<pairs.size();i++ )
 		{
-			writeInt( data, p, pairs.size() );
-			p += 4;
-			nBytes += 4;
-			// where we're writing the actual data
-			int dataOffset = 0;
-			int parentDataOffset = 0;
-			int parentId = 1;
-			for ( int i=0;i<pairs.size();i++ )
+			Pair t = pairs.get( i );
+			offsets[i] = dataOffset;
+			if ( t.isParent() )
 			{
-				// this is set if known
-				int tempPId = NULL_PID;
-				Pair t = pairs.get( i );
-				if ( t.isChild() )
-				{
-					// Do we have a registered parent?
-					Integer value = ancestors.get( t.parent );
-					// value is the parent's data offset
-					if ( value != null )
-					{
-						parentDataOffset = value.intValue();
-						tempPId = t.parent.id;
-					}
-					else
-					{
-						// the value in orphans is the offset 
-						// pointing to the orphan pair entry
-						orphans.put( t, new Integer(p) );
-						// clearly duff value: fill this in later
-						tempPId = DUFF_PID;
-					}
-				}
-				else if ( t.isParent() )
-				{
-					// first assign this parent an id
-					tempPId = t.id = parentId++;
-					// then put ourselves in the ancestors list
-					ancestors.put( t, dataOffset );
-					// now check if we have any registered orphans
-					ListIterator<Pair> iter = t.getChildIterator();
-					while ( iter.hasNext() )
-					{
-						Pair child = iter.next();
-						Integer value = orphans.get( child );
-						if ( value != null )
-						{
-							// copy the parent's data offset 
-							// into that of the child
-							Pair.fixDataOffset( data, value.intValue(), 
-								dataOffset, versionSetSize, t.id );
-							// remove the child from the orphan list
-							orphans.remove( child );
-						}
-					}
-				}
-				// if we set the parent data offset use that
-				// otherwise use the current pair's data offset
-				nBytes += t.serialisePair( data, p, versionSetSize, 
-					(parentDataOffset!=0)?parentDataOffset:dataOffset, 
-					dataTableOffset, tempPId );
-				p += t.pairSize( versionSetSize );
-				dataOffset += t.dataSize();
-				parentDataOffset = 0;
+				t.id = parentId++;
+				ancestors.put( t, dataOffset );
 			}
-			if ( !orphans.isEmpty() )
+			dataOffset += sizes[i];
+		}
+		byte[] record = new byte[versionSetSize+12];
+		writeInt( record, 0, pairs.size() );
+		out.write( record, 0, 4 );
+		nBytes += 4;
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			int pId = NULL_PID;
+			int offset = offsets[i];
+			Pair t = pairs.get( i );
+			if ( t.isChild() )
 			{
-				Set<Pair> keys = orphans.keySet();
-				Iterator<Pair> iter = keys.iterator();
-				while ( iter.hasNext() )
-				{
-					Pair q = iter.next();
-					if ( !ancestors.containsKey(q) )
-						System.out.println("No matching key for pair");
-				}
-				throw new MVDException("Unmatched orphans after serialisation");
+				// the value is the parent's data offset
+				Integer value = ancestors.get( t.parent );
+				if ( value == null )
+					throw new MVDException(
+						"Unmatched orphans after serialisation");
+				offset = value.intValue();
+				pId = t.parent.id;
+			}
+			else if ( t.isParent() )
+				pId = t.id;
+			Arrays.fill( record, (byte)0 );
+			int len = t.serialisePair( record, 0, versionSetSize, 
+				offset, pId );
+			out.write( record, 0, len );
+			nBytes += len;
+		}
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			if ( sizes[i] > 0 )
+			{
+				byte[] data = pairs.get(i).getData();
+				if ( data.length != sizes[i] )
+					throw new MVDException( "Pair "+i+" data size "
+						+data.length+" not as predicted: "+sizes[i] );
+				out.write( data );
+				nBytes += data.length;
 			}
 		}
-		else
-			throw new MVDException( "No room for pairs table" );
 		return nBytes;
 	}
 	/**
@@ -1908,10 +2478,10 @@ public class MVD extends Serialiser implements Serializable
             PairPos sPos = getPairPos(start,offset);
             PairPos ePos = getPairPos(sPos,offset+len);
             BitSet bs = new BitSet();
-            bs.or( getPair(sPos.index).versions );
-            for ( int i=sPos.index;i<=ePos.index;i+=next(i+1,base) )
+            getPair(sPos.index).versions.addTo( bs );
+            for ( int i=sPos.index;i<=ePos.index;i=next(i+1,base) )
             {
-                bs.and(getPair(i).versions);
+                getPair(i).versions.retainIn( bs );
             }
             return bs;
         }
@@ -1993,7 +2563,7 @@ public class MVD extends Serialiser implements Serializable
         {
             Pair p = pairs.get( i );
             BitSet bs = new BitSet();
-            bs.or( p.versions );
+            p.versions.addTo( bs );
             bs.clear( base );
             if ( bs.isEmpty() )
                 continue;
@@ -2004,7 +2574,7 @@ public class MVD extends Serialiser implements Serializable
             }
             else
             {
-                BitSet pVersions = (BitSet)p.versions.clone();
+                BitSet pVersions = p.versions.toBitSet();
                 for ( int j=0;j<variants.size();j++ )
                 {
                     Variant v = variants.get(j);
@@ -2173,15 +2743,15 @@ public class MVD extends Serialiser implements Serializable
         {
             Pair p1 = pairs.get( index );
             Pair p2 = pairs.get( index+1 );
-            bs.or( p1.versions );
-            bs.or( p2.versions );
+            p1.versions.addTo( bs );
+            p2.versions.addTo( bs );
             for ( int i=index+1;i<pairs.size();i++ )
             {
                 Pair q2 = pairs.get( i );
                 Pair q1 = pairs.get( i-1 );
                 if ( q2.isHint() || q2.versions.intersects(q1.versions) )
                     break;
-                bs.or( q2.versions );
+                q2.versions.addTo( bs );
             }
         }
         return bs;
@@ -2203,12 +2773,12 @@ public class MVD extends Serialiser implements Serializable
         {
             Pair p1 = pairs.get( index );
             Pair p2 = pairs.get( index-1 );
-            bs.or( p1.versions );
-            bs.or( p2.versions );
+            p1.versions.addTo( bs );
+            p2.versions.addTo( bs );
             if ( p2.isHint() )
             {
                 Pair p3 = pairs.get( index-2 );
-                bs.or( p3.versions );
+                p3.versions.addTo( bs );
             }
             for ( int i=index+1;i<pairs.size();i++ )
             {
@@ -2216,7 +2786,7 @@ public class MVD extends Serialiser implements Serializable
                 Pair q1 = pairs.get( i-1 );
                 if ( q2.isHint() || q2.versions.intersects(q1.versions) )
                     break;
-                bs.or( q2.versions );
+                q2.versions.addTo( bs );
             }
         }
         return bs;
@@ -2298,15 +2868,15 @@ public class MVD extends Serialiser implements Serializable
                     {
                         BitSet bs = new BitSet();
                         int outgoing = i+1;
-                        bs.or( p.versions );
-                        bs.or( p2.versions );
+                        p.versions.addTo( bs );
+                        p2.versions.addTo( bs );
                         if ( p2.isHint() )
                         {
                             Pair p3 = pairs.get( i+2 );
-                            bs.or( p3.versions );
+                            p3.versions.addTo( bs );
                             outgoing = i+2;
                         }
-                        if ( bs.intersects(p1.versions) )
+                        if ( p1.versions.intersects(bs) )
                         {
                             start = outgoing;
                             break;
@@ -2360,12 +2930,12 @@ public class MVD extends Serialiser implements Serializable
                 if ( p.isHint()||p1.versions.intersects(p2.versions) )
                 {
                     BitSet bs = new BitSet();
-                    bs.or( p.versions );
-                    bs.or( p2.versions );
+                    p.versions.addTo( bs );
+                    p2.versions.addTo( bs );
                     if ( p.isHint() )
                     {
                         p3 = pairs.get( i+1 );
-                        bs.or( p3.versions );
+                        p3.versions.addTo( bs );
                     }
                     if ( p1.versions.intersects(bs) )
                     {
@@ -2388,7 +2958,7 @@ public class MVD extends Serialiser implements Serializable
                     for ( int j=nodes.size()-1;j>=0;j-- )
                     {
                         CompactNode cn = nodes.get( j );
-                        if ( cn.getWantsOutgoing().intersects(p.versions) )
+                        if ( p.versions.intersects(cn.getWantsOutgoing()) )
                         {
                             end = cn.getIndex();
                             found = true;
@@ -2409,10 +2979,13 @@ public class MVD extends Serialiser implements Serializable
 	 */
 	PairPos getPairPos( PairPos sPos, int distance )
     {
+        PairPos ePos = getPairIndex().getPairPos( sPos, distance );
+        if ( ePos != null )
+            return ePos;
+        // sPos is not in its base version: walk as before
         int i = sPos.getIndex();
         // position with distance
         int pos = -sPos.getPosition();
-        PairPos ePos = null;
         Pair p;
         do
         {
@@ -2561,11 +3134,11 @@ public class MVD extends Serialiser implements Serializable
      * @param constraint a set of versions they must be within
      * @return a new BitSet, the logical AND of original AND constraint
      */
-    BitSet constrainVersions( BitSet original, BitSet constraint )
+    BitSet constrainVersions( VersionSet original, BitSet constraint )
     {
         BitSet bs = new BitSet();
-        bs.or( original );
-        bs.and( constraint );
+        bs.or( constraint );
+        original.retainIn( bs );
         return bs;
     }
     /**
@@ -2691,7 +3264,7 @@ public class MVD extends Serialiser implements Serializable
         for ( int i=0;i<=pairs.size()-1;i++ )
         {
             Pair p = pairs.get( i );
-            BitSet pv = p.versions;
+            VersionSet pv = p.versions;
             if ( p.length()>0 )
             {
                 if ( !pv.intersects(bs) )
@@ -2819,7 +3392,7 @@ public class MVD extends Serialiser implements Serializable
             {
                 Pair p = pairs.get( i );
                 if ( p.versions.intersects(bs) )
-                    found.or( p.versions );
+                    p.versions.addTo( found );
             }
             found.and( bs );
             // so now we have a range of pair-positions
@@ -56,23 +56,33 @@
 package edu.luc.nmerge.mvd;
 import java.sql.*;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
 import edu.luc.nmerge.exception.*;
 
 /**
  *	Load and save an MVD file in binary form. The raw MVD binary 
- *	structure is first ZIP encoded and then Base64 wrapped.
+ *	structure is first ZIP encoded and then Base64 wrapped. When read 
+ *	back the pairs keep their data in the decoded byte array and only 
+ *	convert it to chars when it is first used.
  */
 public class MVDFile 
 {
 	public static boolean debug = false;
+	/** if true pairs read from a file only softly keep their 
+	 * decoded data and decode it again if it was reclaimed */
+	public static boolean softCache = false;
 	/** magic string '0xC0DEDEAD' */
 	static byte[] MVD_MAGIC = {(byte)'\336',(byte)'\255',
 		(byte)'\300',(byte)'\336'};
@@ -199,19 +209,95 @@ public class MVDFile
         }
 	}
 	/**
-	 * Write to an actual file
+	 * Write an MVD to an actual file. It is written to a temporary 
+	 * file first and then renamed, since dst may still be mapped or 
+	 * otherwise in use by the MVD being saved. The old file is moved 
+	 * aside until the new one is in place, and put back if it can't 
+	 * be, so a failed save leaves dst as it was and no temporary file.
 	 * @param dst the location of the file
-	 * @param str the string of data to write
+	 * @param mvd the MVD to write
 	 * @throws Exception
 	 */
-	private static void writeToFile( File dst, String str ) throws Exception
+	private static void writeToFile( File dst, MVD mvd ) throws Exception
 	{
-		if ( dst.exists() )
-			dst.delete();
-		dst.createNewFile();
-		FileWriter fw = new FileWriter( dst );
-		fw.write( str );
-		fw.close();
+		File parent = dst.getAbsoluteFile().getParentFile();
+		File tmp = new File( parent, dst.getName()+".tmp" );
+		File old = new File( parent, dst.getName()+".old" );
+		boolean saved = false;
+		boolean movedAside = false;
+		try
+		{
+			writeEncoded( mvd, new BufferedOutputStream(
+				new FileOutputStream(tmp)) );
+			if ( dst.exists() )
+			{
+				if ( old.exists() && !old.delete() )
+					throw new MVDException( "Couldn't remove "+old );
+				if ( !dst.renameTo(old) )
+					throw new MVDException( "Couldn't replace "+dst );
+				movedAside = true;
+			}
+			if ( !tmp.renameTo(dst) )
+			{
+				if ( movedAside )
+					old.renameTo( dst );
+				throw new MVDException( "Couldn't rename "+tmp+" to "+dst );
+			}
+			saved = true;
+		}
+		finally
+		{
+			if ( !saved )
+				tmp.delete();
+		}
+		if ( movedAside )
+			old.delete();
+	}
+	/**
+	 * Serialise an MVD, zip it and Base64 encode it, all in one pass 
+	 * and without building the whole binary MVD in memory. The output 
+	 * is the same as Base64.encodeBytes( data, Base64.GZIP ) on the 
+	 * serialised MVD.
+	 * @param mvd the MVD to write
+	 * @param dst the stream to write the encoded MVD to. It gets closed.
+	 * @throws Exception
+	 */
+	private static void writeEncoded( MVD mvd, OutputStream dst ) 
+		throws Exception
+	{
+		Base64.OutputStream b64os = new Base64.OutputStream( dst, 
+			Base64.ENCODE | Base64.GZIP );
+		GZIPOutputStream gzos = new GZIPOutputStream( b64os );
+		OutputStream out = new BufferedOutputStream( gzos );
+		try
+		{
+			mvd.serialise( out );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	/**
+	 * Save an MVD to a file or database in either format
+	 * @param mvd the MVD to save
+	 * @param dst the file to save it to
+	 * @param folderId id of the folder to contain it in
+	 * @param rb database properties file
+	 * @param mapped if true write the uncompressed mapped format 
+	 * (files only), otherwise the base64 zipped format
+	 * @throws Exception raised if an error occurred
+	 */
+	public static void externalise( MVD mvd, File dst, int folderId, 
+			Properties rb, boolean mapped ) throws Exception
+	{
+		if ( !mapped )
+			externalise( mvd, dst, folderId, rb );
+		else if ( rb != null )
+			throw new MVDException( 
+				"mapped format can only be saved to a file" );
+		else
+			MVDMappedFile.externalise( mvd, dst );
 	}
 	/**
 	 * Save an MVD to a file
@@ -227,15 +313,11 @@ public class MVDFile
 		long start = System.nanoTime()/1000;
         System.gc();
         long startMem = Runtime.getRuntime().freeMemory();
-        int size = mvd.dataSize();
-		byte[] data = new byte[size];
-		int nBytes = mvd.serialise( data );
-		assert nBytes==size: "MVD shorter than predicted";
-		String str = Base64.encodeBytes( data, Base64.GZIP );
 		if ( rb == null )
-			writeToFile( dst, str );
+			writeToFile( dst, mvd );
 		else
-			writeToDatabase( dst.getName(), str, mvd.description, folderId, rb );
+			writeToDatabase( dst.getName(), externalise(mvd), 
+				mvd.description, folderId, rb );
         long end = System.nanoTime()/1000;
         long endMem = Runtime.getRuntime().freeMemory();
         System.out.println("internalise took "+(end-start)+" microseconds");
@@ -251,11 +333,9 @@ public class MVDFile
 	 */
 	public static String externalise( MVD mvd ) throws Exception
 	{
-        int size = mvd.dataSize();
-		byte[] data = new byte[size];
-		int nBytes = mvd.serialise( data );
-		assert nBytes==size: "MVD shorter than predicted";
-		return Base64.encodeBytes( data, Base64.GZIP );
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeEncoded( mvd, baos );
+		return new String( baos.toByteArray(), "US-ASCII" );
 	}
 	/**
 	 * Read from an mvd file on disk
@@ -404,7 +484,9 @@ public class MVDFile
         //System.gc();
         //long startMem = Runtime.getRuntime().freeMemory();
         char[] data = null;
-		if ( props == null )
+		if ( props == null && MVDMappedFile.isMapped(src) )
+			return MVDMappedFile.internalise( src );
+		else if ( props == null )
 			data = readFromFile( src );
 		else
 			data = readFromDatabase( src.getName(), props );
@@ -554,21 +636,6 @@ public class MVDFile
 			mvd.addVersion( new Version(group, backup, shortName, longName) );
 		}
 	}
-    private static char[] toChars( byte[] bytes, String encoding )
-    {
-        String str;
-        try
-        {
-            str = new String(bytes,encoding);
-        }
-        catch ( Exception e )
-        {
-            str = new String(bytes);
-        }
-        char[] chars = new char[str.length()];
-        str.getChars(0,chars.length,chars,0);
-        return chars;
-    }
 	/**
 	 * Read the pairs table for an MVD from a byte array
 	 * @param data the byte array containing the version definitions
@@ -583,6 +650,12 @@ public class MVDFile
 		HashMap<Integer,Pair> parents = new HashMap<Integer,Pair>();
 		HashMap<Integer,LinkedList<Pair>> orphans = 
 			new HashMap<Integer,LinkedList<Pair>>();
+		// share identical version sets between pairs
+		VersionSetPool pool = new VersionSetPool();
+		// pairs decode their data from here when first asked
+		DataTable table = new DataTable( ByteBuffer.wrap(data), 
+			mvd.encoding );
+		table.soft = softCache;
 		int nPairs = readInt( data, p );
 		p += 4;
 		if ( nPairs < 0 )
@@ -590,10 +663,9 @@ public class MVDFile
 				"Invalid number of pairs: "+nPairs ); 
 		for ( int i=0;i<nPairs;i++ )
 		{
-			byte[] copy;
 			Pair pair;
-			BitSet versions = readVersionSet( mvd.versionSetSize, 
-				data, p );
+			VersionSet versions = pool.intern( readVersionSet(
+				mvd.versionSetSize,data,p) );
 			p += mvd.versionSetSize;
 			int offset = readInt( data, p );
 			p += 4;
@@ -608,8 +680,8 @@ public class MVDFile
 				int pId = readInt( data, p );
 				p += 4;
 				// transpose parent
-				copy = copyData( len, dataTableOffset+offset, data );
-				pair = new Pair( versions, toChars(copy,mvd.encoding) );
+				pair = new Pair( versions, table, dataTableOffset+offset, 
+					len );
 				Integer key = new Integer( pId );
 				// check for orphans of this parent
 				LinkedList<Pair> children = orphans.get( key );
@@ -658,8 +730,8 @@ public class MVDFile
 			else
 			{
 				// no transposition
-				copy = copyData( len, dataTableOffset+offset, data );
-				pair = new Pair( versions, toChars(copy,mvd.encoding) );
+				pair = new Pair( versions, table, dataTableOffset+offset, 
+					len );
 			}
 			mvd.addPair( pair );
 		}
@@ -688,20 +760,6 @@ public class MVDFile
 		}
 		return versions;
 	}
-	/**
-	 * Make a copy of a portion of a larger byte array
-	 * @param len the length of the copy
-	 * @param offset the offset within data where the copy begins
-	 * @param data the larger byte array from which to copy
-	 * @return a copy of a section off the data array
-	 */
-	private static byte[] copyData( int len, int offset, byte[] data )
-	{
-		byte[] raw = new byte[len];
-		for ( int j=0,q=offset;j<len;j++,q++ )
-			raw[j] = data[q];
-		return raw;
-	}
 	/**
 	 * Read a 2-byte integer from an array of bytes in big-endian order
 	 * @param data an array of bytes
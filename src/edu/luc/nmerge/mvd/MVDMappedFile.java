@@ -0,0 +1,429 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * <h4>Mapped MVD file format</h4>
+ * <p>Uncompressed and not base64 encoded, so that it can be opened
+ * with a memory map and only the parts actually used get read.</p>
+ * <p>Header:</p>
+ * <ul><li>magic string: 4 bytes must be 0xDEADC0DF</li>
+ * <li>format version: 4-byte int, currently 1</li>
+ * <li>group-table offset: 4-byte int offset from start of file</li>
+ * <li>version-table offset: 4-byte int offset from start of file</li>
+ * <li>pairs-table offset: 4-byte int offset from start of file</li>
+ * <li>data-table offset: 4-byte int offset from start of file</li>
+ * <li>description: 2-byte int preceded utf-8 string</li>
+ * <li>encoding: 2-byte int preceded utf-8 string</li></ul>
+ * <p>Tables:</p>
+ * <ul><li>group-table and version-table: as in {@link MVDFile}</li>
+ * <li>pairs table: number of pairs: 4-byte int;<br/>
+ * for each pair a fixed-width record: version-set size bytes, as in
+ * MVDFile; data offset: 4-byte int indexing into data-table; data len:
+ * 4-byte int, first 2 bits forming the transpose flag 0=DATA,1=CHILD,
+ * 2=PARENT; link: 4-byte int, the index in the pairs table of a
+ * child's parent, otherwise 0. Children have no data of their own.</li>
+ * <li>data-table: pair data, in the MVD's encoding</li></ul>
+ * <p>all ints are signed big-endian</p>
+ */
+
+package edu.luc.nmerge.mvd;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import edu.luc.nmerge.exception.*;
+
+/**
+ *	Load and save an MVD in the mapped binary format. Opening only
+ *	reads the header and tables: the text of each pair is decoded
+ *	from the mapped file when it is first used.
+ */
+public class MVDMappedFile extends Serialiser
+{
+	static final long serialVersionUID = 1;
+	/** magic string '0xDEADC0DF' */
+	static byte[] MAPPED_MAGIC = {(byte)'\336',(byte)'\255',
+		(byte)'\300',(byte)'\337'};
+	/** current format version */
+	static final int FORMAT_VERSION = 1;
+	/** size of the fixed part of the header */
+	static final int FIXED_HEADER_SIZE = 4 + 4 + 4 * 4;
+	/**
+	 * Is the given file in the mapped format?
+	 * @param src the file to test
+	 * @return true if it starts with MAPPED_MAGIC
+	 */
+	public static boolean isMapped( File src )
+	{
+		byte[] magic = new byte[MAPPED_MAGIC.length];
+		try
+		{
+			FileInputStream fis = new FileInputStream( src );
+			int n = fis.read( magic );
+			fis.close();
+			if ( n != magic.length )
+				return false;
+		}
+		catch ( IOException e )
+		{
+			return false;
+		}
+		for ( int i=0;i<magic.length;i++ )
+			if ( magic[i] != MAPPED_MAGIC[i] )
+				return false;
+		return true;
+	}
+	/**
+	 * Save an MVD to a file in mapped format. The pair data is
+	 * written first, encoding each pair once, then the tables are
+	 * written in front of it. The file is written under a temporary
+	 * name and then renamed, since dst may still be mapped.
+	 * @param mvd the MVD to save
+	 * @param dst the file to save it to
+	 * @throws Exception raised if an error occurred
+	 */
+	public static void externalise( MVD mvd, File dst ) throws Exception
+	{
+		MVDMappedFile mf = new MVDMappedFile();
+		ArrayList<Pair> pairs = mvd.pairs;
+		int setSize = (mvd.versions.size()+8)/8;
+		// header
+		byte[] desc = mvd.description.getBytes( "UTF-8" );
+		byte[] enc = mvd.encoding.getBytes( "UTF-8" );
+		int headerSize = FIXED_HEADER_SIZE + 2 + desc.length
+			+ 2 + enc.length;
+		// groups and versions
+		int groupTableSize = 2;
+		for ( int i=0;i<mvd.groups.size();i++ )
+			groupTableSize += mvd.groups.get(i).dataSize();
+		int versionTableSize = 4;
+		for ( int i=0;i<mvd.versions.size();i++ )
+			versionTableSize += mvd.versions.get(i).dataSize();
+		int recSize = setSize + 12;
+		int pairsTableSize = 4 + pairs.size() * recSize;
+		int groupTableOffset = headerSize;
+		int versionTableOffset = groupTableOffset + groupTableSize;
+		int pairsTableOffset = versionTableOffset + versionTableSize;
+		int dataTableOffset = pairsTableOffset + pairsTableSize;
+		// number the parents so children can refer to them
+		IdentityHashMap<Pair,Integer> parents =
+			new IdentityHashMap<Pair,Integer>();
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			if ( p.isParent() )
+				parents.put( p, Integer.valueOf(i) );
+		}
+		File tmp = new File( dst.getAbsoluteFile().getParentFile(),
+			dst.getName()+".tmp" );
+		RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+		boolean saved = false;
+		try
+		{
+			try
+			{
+				raf.setLength( 0 );
+				FileChannel fc = raf.getChannel();
+				// data table first, recording where each pair went
+				int[] offsets = new int[pairs.size()];
+				int[] lengths = new int[pairs.size()];
+				fc.position( dataTableOffset );
+				OutputStream out = new BufferedOutputStream(
+					Channels.newOutputStream(fc) );
+				int dataOffset = 0;
+				for ( int i=0;i<pairs.size();i++ )
+				{
+					Pair p = pairs.get( i );
+					if ( !p.isChild() && p.getChars() != null )
+					{
+						byte[] bytes = new String(p.getChars()).getBytes(
+							mvd.encoding );
+						out.write( bytes );
+						offsets[i] = dataOffset;
+						lengths[i] = bytes.length;
+						dataOffset += bytes.length;
+					}
+				}
+				out.flush();
+				// now the header and tables
+				byte[] tables = new byte[dataTableOffset+1];
+				System.arraycopy( MAPPED_MAGIC, 0, tables, 0,
+					MAPPED_MAGIC.length );
+				int p = MAPPED_MAGIC.length;
+				mf.writeInt( tables, p, FORMAT_VERSION );
+				p += 4;
+				mf.writeInt( tables, p, groupTableOffset );
+				p += 4;
+				mf.writeInt( tables, p, versionTableOffset );
+				p += 4;
+				mf.writeInt( tables, p, pairsTableOffset );
+				p += 4;
+				mf.writeInt( tables, p, dataTableOffset );
+				p += 4;
+				p += mf.writeUtf8String( tables, p, mvd.description );
+				mf.writeUtf8String( tables, p, mvd.encoding );
+				p = groupTableOffset;
+				mf.writeShort( tables, p, (short)mvd.groups.size() );
+				p += 2;
+				for ( int i=0;i<mvd.groups.size();i++ )
+				{
+					Group g = mvd.groups.get( i );
+					g.serialise( tables, p );
+					p += g.dataSize();
+				}
+				mf.writeShort( tables, p, (short)mvd.versions.size() );
+				p += 2;
+				mf.writeShort( tables, p, (short)setSize );
+				p += 2;
+				for ( int i=0;i<mvd.versions.size();i++ )
+				{
+					Version v = mvd.versions.get( i );
+					v.serialise( tables, p );
+					p += v.dataSize();
+				}
+				mf.writeInt( tables, p, pairs.size() );
+				p += 4;
+				for ( int i=0;i<pairs.size();i++ )
+				{
+					Pair q = pairs.get( i );
+					writeVersionSet( tables, p, setSize, q.versions );
+					p += setSize;
+					int link = 0;
+					int flag = 0;
+					if ( q.isChild() )
+					{
+						Integer parent = parents.get( q.parent );
+						if ( parent == null )
+							throw new MVDException(
+								"Child pair "+i+" has no parent" );
+						link = parent.intValue();
+						flag = Pair.CHILD_FLAG;
+					}
+					else if ( q.isParent() )
+						flag = Pair.PARENT_FLAG;
+					mf.writeInt( tables, p, offsets[i] );
+					p += 4;
+					mf.writeInt( tables, p, lengths[i] | flag );
+					p += 4;
+					mf.writeInt( tables, p, link );
+					p += 4;
+				}
+				fc.position( 0 );
+				fc.write( ByteBuffer.wrap(tables,0,dataTableOffset) );
+			}
+			finally
+			{
+				raf.close();
+			}
+			if ( dst.exists() && !dst.delete() )
+				throw new MVDException( "Couldn't replace "+dst );
+			if ( !tmp.renameTo(dst) )
+				throw new MVDException( "Couldn't rename "+tmp+" to "+dst );
+			saved = true;
+		}
+		finally
+		{
+			// don't leave a half-written file behind
+			if ( !saved )
+				tmp.delete();
+		}
+	}
+	/**
+	 * Write a version set LSB first, as in MVDFile
+	 * @param data the byte array to write to
+	 * @param p the offset in data to write at
+	 * @param setSize the number of bytes in a version set
+	 * @param versions the set to write
+	 */
+	private static void writeVersionSet( byte[] data, int p, int setSize,
+		VersionSet versions )
+	{
+		for ( int i=versions.nextSetBit(0);i>=0;i=versions.nextSetBit(i+1) )
+		{
+			int index = ((setSize*8-1)-i)/8;
+			data[p+index] |= 1 << (i%8);
+		}
+	}
+	/**
+	 * Read an MVD from a file in mapped format
+	 * @param src the file to read
+	 * @return the MVD, whose pairs decode their data on demand
+	 * @throws Exception if it wasn't a valid mapped MVD
+	 */
+	public static MVD internalise( File src ) throws Exception
+	{
+		MappedByteBuffer buf;
+		RandomAccessFile raf = new RandomAccessFile( src, "r" );
+		try
+		{
+			FileChannel fc = raf.getChannel();
+			// the mapping stays valid after the file is closed
+			buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+		}
+		finally
+		{
+			raf.close();
+		}
+		for ( int i=0;i<MAPPED_MAGIC.length;i++ )
+			if ( buf.limit() <= i || buf.get(i) != MAPPED_MAGIC[i] )
+				throw new MVDException( "Not a valid mapped MVD file" );
+		int p = MAPPED_MAGIC.length;
+		int formatVersion = buf.getInt( p );
+		if ( formatVersion != FORMAT_VERSION )
+			throw new MVDException( "Unsupported mapped MVD version "
+				+formatVersion );
+		p += 4;
+		int groupTableOffset = buf.getInt( p );
+		p += 4;
+		int versionTableOffset = buf.getInt( p );
+		p += 4;
+		int pairsTableOffset = buf.getInt( p );
+		p += 4;
+		int dataTableOffset = buf.getInt( p );
+		p += 4;
+		String description = readUtf8String( buf, p );
+		p += 2 + buf.getShort( p );
+		String encoding = readUtf8String( buf, p );
+		MVD mvd = new MVD( description, encoding );
+		// groups
+		p = groupTableOffset;
+		short nGroups = buf.getShort( p );
+		p += 2;
+		for ( int i=0;i<nGroups;i++ )
+		{
+			short parent = buf.getShort( p );
+			p += 2;
+			String name = readUtf8String( buf, p );
+			p += 2 + buf.getShort( p );
+			mvd.addGroup( new Group(parent,name) );
+		}
+		// versions
+		p = versionTableOffset;
+		short nVersions = buf.getShort( p );
+		p += 2;
+		short setSize = buf.getShort( p );
+		p += 2;
+		mvd.setVersionSetSize( setSize );
+		for ( int i=0;i<nVersions;i++ )
+		{
+			short group = buf.getShort( p );
+			p += 2;
+			short backup = buf.getShort( p );
+			p += 2;
+			String shortName = readUtf8String( buf, p );
+			p += 2 + buf.getShort( p );
+			String longName = readUtf8String( buf, p );
+			p += 2 + buf.getShort( p );
+			mvd.addVersion( new Version(group,backup,shortName,longName) );
+		}
+		// pairs
+		buf.position( dataTableOffset );
+		DataTable table = new DataTable( buf.slice(), encoding );
+		table.soft = MVDFile.softCache;
+		p = pairsTableOffset;
+		int nPairs = buf.getInt( p );
+		p += 4;
+		if ( nPairs < 0 )
+			throw new MVDException( "Invalid number of pairs: "+nPairs );
+		Pair[] pairs = new Pair[nPairs];
+		int[] links = new int[nPairs];
+		VersionSetPool pool = new VersionSetPool();
+		for ( int i=0;i<nPairs;i++ )
+		{
+			VersionSet versions = pool.intern( readVersionSet(buf,p,setSize) );
+			p += setSize;
+			int offset = buf.getInt( p );
+			p += 4;
+			int len = buf.getInt( p );
+			int flag = len & Pair.TRANSPOSE_MASK;
+			len &= Pair.INVERSE_MASK;
+			p += 4;
+			links[i] = buf.getInt( p );
+			p += 4;
+			if ( flag == Pair.CHILD_FLAG )
+				pairs[i] = new Pair( versions, null );
+			else
+			{
+				pairs[i] = new Pair( versions, table, offset, len );
+				links[i] = -1;
+			}
+		}
+		for ( int i=0;i<nPairs;i++ )
+		{
+			if ( links[i] >= 0 )
+			{
+				// a parent must exist and not itself be a child
+				if ( links[i] >= nPairs || links[links[i]] >= 0 )
+					throw new MVDException( "Invalid parent for pair "+i );
+				pairs[links[i]].addChild( pairs[i] );
+			}
+			mvd.addPair( pairs[i] );
+		}
+		return mvd;
+	}
+	/**
+	 * Read a 2-byte length preceded UTF-8 string
+	 * @param buf the buffer to read from
+	 * @param p the offset of the length
+	 * @return the string
+	 */
+	private static String readUtf8String( ByteBuffer buf, int p )
+		throws Exception
+	{
+		short len = buf.getShort( p );
+		byte[] bytes = new byte[len];
+		for ( int i=0;i<len;i++ )
+			bytes[i] = buf.get( p+2+i );
+		return new String( bytes, "UTF-8" );
+	}
+	/**
+	 * Read a version set written LSB first
+	 * @param buf the buffer to read from
+	 * @param p the offset of the set
+	 * @param setSize the number of bytes in the set
+	 * @return the set
+	 */
+	private static BitSet readVersionSet( ByteBuffer buf, int p,
+		int setSize )
+	{
+		BitSet versions = new BitSet();
+		p += setSize-1;
+		for ( int j=0;j<setSize;j++,p-- )
+		{
+			int b = buf.get( p ) & 0xFF;
+			for ( int k=0;b!=0;k++,b>>>=1 )
+			{
+				if ( (b & 1) != 0 )
+					versions.set( k+(j*8) );
+			}
+		}
+		return versions;
+	}
+}
@@ -107,6 +107,7 @@ public class MVDXMLFile
 					readPairs( (Element)topLevelNode, mvd, encoding );
 			}
 		}
+		VersionSetPool.internAll( mvd.pairs );
 		return mvd;
 	}
 	/**
@@ -506,7 +507,7 @@ public class MVDXMLFile
 	 * @param bs set of versions
 	 * @return return a string representation of the bitset
 	 */
-	private static String serialiseVersion( BitSet bs )
+	private static String serialiseVersion( VersionSet bs )
 	{
 		StringBuffer sb = new StringBuffer();
 		int start = bs.nextSetBit( 1 );
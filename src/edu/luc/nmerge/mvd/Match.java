@@ -22,6 +22,9 @@
 package edu.luc.nmerge.mvd;
 import java.nio.charset.Charset;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 /**
  * Store and create matches for an MVD. Matches are runs within 
@@ -230,7 +233,7 @@ public class Match extends BracketedData
 	 * Get the start offset of the match in its version
 	 * @return the offset within its version
 	 */
-	int getStartOffset()
+	public int getStartOffset()
 	{
 		return offset;
 	}
@@ -239,7 +242,7 @@ public class Match extends BracketedData
 	 * @param mvd the mvd the match belongs to
 	 * @return the length of the match 
 	 */
-	int getLength()
+	public int getLength()
 	{
 		return length;
 	}
@@ -266,6 +269,22 @@ public class Match extends BracketedData
 			temp[first.length+i] = second[i];
 		return temp;
 	}
+	/**
+	 *	Sort a list of matches by version and then by offset
+	 *	@param matches the list to sort in place
+	 */
+	static void sort( List<Match> matches )
+	{
+		Collections.sort( matches, new Comparator<Match>() {
+			public int compare( Match a, Match b )
+			{
+				if ( a.version != b.version )
+					return a.version-b.version;
+				else
+					return a.offset-b.offset;
+			}
+		});
+	}
 	/**
 	 * Set the found flag. We use this to skip over certain matches 
 	 * that exist in several locations
@@ -0,0 +1,148 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import edu.luc.nmerge.fastme.FastME;
+
+/**
+ * Choose the order in which to add a batch of versions to an MVD.
+ * Each new version is aligned against everything merged so far, so
+ * adding a text next to its closest relative gives longer MUMs and
+ * fewer transpositions than adding it next to a distant one. We
+ * estimate the distances from k-mer sketches, build a guide tree
+ * over them with FastME and then add versions in order of their
+ * distance along the tree to what has already been merged.
+ * @author Desmond Schmidt
+ */
+public class MergeOrder
+{
+	/**
+	 * Work out the order to add new versions in
+	 * @param existing sketches of the versions already in the MVD
+	 * @param incoming sketches of the versions to add
+	 * @return indices into incoming in the order to add them
+	 * @throws Exception if the guide tree couldn't be built
+	 */
+	public static int[] getOrder( Sketch[] existing, Sketch[] incoming )
+		throws Exception
+	{
+		int n = existing.length+incoming.length;
+		Sketch[] all = new Sketch[n];
+		System.arraycopy( existing, 0, all, 0, existing.length );
+		System.arraycopy( incoming, 0, all, existing.length,
+			incoming.length );
+		double[][] d = new double[n][n];
+		for ( int i=0;i<n;i++ )
+			for ( int j=i+1;j<n;j++ )
+				d[i][j] = d[j][i] = all[i].distance( all[j] );
+		if ( n >= 3 )
+		{
+			FastME fastME = new FastME();
+			String[] taxa = new String[n];
+			for ( int i=0;i<n;i++ )
+				taxa[i] = Integer.toString( i );
+			fastME.buildTree( d, taxa );
+			fastME.refineTree();
+			double[][] t = fastME.getLeafDistances();
+			if ( isUsable(t) )
+				d = t;
+		}
+		return nearestFirst( d, existing.length );
+	}
+	/**
+	 * Check that the tree gave a distance for every pair
+	 * @param d the matrix of path lengths
+	 * @return true if it has no missing or undefined entries
+	 */
+	private static boolean isUsable( double[][] d )
+	{
+		for ( int i=0;i<d.length;i++ )
+			for ( int j=0;j<d.length;j++ )
+				if ( Double.isNaN(d[i][j]) || Double.isInfinite(d[i][j]) )
+					return false;
+		return true;
+	}
+	/**
+	 * Repeatedly add the version closest to those already merged. If
+	 * nothing has been merged yet start with the closest pair.
+	 * @param d the distances between all versions, existing first
+	 * @param numExisting the number of versions already merged
+	 * @return the new versions in order, numbered from 0
+	 */
+	private static int[] nearestFirst( double[][] d, int numExisting )
+	{
+		int n = d.length;
+		boolean[] added = new boolean[n];
+		double[] nearest = new double[n];
+		int[] order = new int[n-numExisting];
+		int done = 0;
+		for ( int i=0;i<n;i++ )
+			nearest[i] = Double.MAX_VALUE;
+		if ( numExisting == 0 && n > 0 )
+		{
+			int first = 0;
+			double min = Double.MAX_VALUE;
+			for ( int i=0;i<n;i++ )
+			{
+				for ( int j=i+1;j<n;j++ )
+				{
+					if ( d[i][j] < min )
+					{
+						min = d[i][j];
+						first = i;
+					}
+				}
+			}
+			order[done++] = first;
+			add( d, first, added, nearest );
+		}
+		else
+		{
+			for ( int i=0;i<numExisting;i++ )
+				add( d, i, added, nearest );
+		}
+		while ( done < order.length )
+		{
+			int next = -1;
+			for ( int i=numExisting;i<n;i++ )
+				if ( !added[i] && (next == -1 || nearest[i] < nearest[next]) )
+					next = i;
+			order[done++] = next-numExisting;
+			add( d, next, added, nearest );
+		}
+		return order;
+	}
+	/**
+	 * Mark a version as merged and update the distances of the rest
+	 * @param d the distance matrix
+	 * @param v the version just merged
+	 * @param added the set of merged versions
+	 * @param nearest the distance of each version to the merged set
+	 */
+	private static void add( double[][] d, int v, boolean[] added,
+		double[] nearest )
+	{
+		added[v] = true;
+		for ( int i=0;i<d.length;i++ )
+			if ( d[v][i] < nearest[i] )
+				nearest[i] = d[v][i];
+	}
+}
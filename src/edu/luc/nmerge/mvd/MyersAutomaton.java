@@ -0,0 +1,418 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Approximate search of all the versions of an MVD at once, finding
+ * the places where a pattern occurs with at most k insertions,
+ * deletions or substitutions. Each version's state is the last column
+ * of the edit-distance table, encoded as vertical deltas one bit per
+ * pattern character, and updated for each character read with
+ * Myers' bit-parallel algorithm, one machine word at a time. As with
+ * the exact search, a run of the automaton is shared by all the
+ * versions in the same state, and runs that reach the same state by
+ * the end of a pair are merged. Where consecutive positions all match
+ * only the one with the fewest edits is reported. Its match ends where
+ * that edit distance is reached. Since insertions and deletions make
+ * the match longer or shorter than the pattern, its start is found
+ * afterwards by aligning the reversed pattern backwards from the end
+ * in the text of the version.
+ * @author Desmond Schmidt
+ */
+class MyersAutomaton
+{
+	/** the pattern to find */
+	char[] pattern;
+	/** the most edits allowed */
+	int k;
+	/** the number of words the pattern needs */
+	int numWords;
+	/** the bit of the last pattern character in the last word */
+	long highBit;
+	/** mask of the bits used in the last word */
+	long lastMask;
+	/** match vectors of pattern characters below 256 */
+	long[][] peqLow;
+	/** match vectors of all other pattern characters */
+	HashMap<Character,long[]> peqHigh;
+	/** match vector of characters not in the pattern */
+	long[] peqNone;
+	/** versions left in each state by their last pair */
+	HashMap<Run,Run> waiting;
+	/** the runs going through the current pair */
+	ArrayList<Run> runs;
+	/** end of the last hit in each version, or -1 */
+	int[] lastEnd;
+	/** end of the best hit in the current stretch of each version,
+	 * or -1 if there is none */
+	int[] bestEnd;
+	/** edit distance of each best hit */
+	int[] bestScore;
+	/** the matches found */
+	ArrayList<Match> found;
+	/** offset in each version of the pair being read */
+	int[] offsets;
+	/** the MVD being searched */
+	MVD mvd;
+	/**
+	 * The state of a group of versions
+	 */
+	static class Run
+	{
+		/** rows where the distance goes up by one from the row above */
+		long[] pv;
+		/** rows where it goes down by one */
+		long[] mv;
+		/** the edit distance of the whole pattern */
+		int score;
+		/** the versions in this state */
+		BitSet versions;
+		/**
+		 * Make a run
+		 * @param pv the positive vertical deltas
+		 * @param mv the negative vertical deltas
+		 * @param score the distance at the last row
+		 * @param versions the versions in this state
+		 */
+		Run( long[] pv, long[] mv, int score, BitSet versions )
+		{
+			this.pv = pv;
+			this.mv = mv;
+			this.score = score;
+			this.versions = versions;
+		}
+		/**
+		 * Runs are equal if their states are
+		 * @param other the other run
+		 * @return true if it has the same deltas
+		 */
+		public boolean equals( Object other )
+		{
+			if ( !(other instanceof Run) )
+				return false;
+			Run r = (Run)other;
+			for ( int b=0;b<pv.length;b++ )
+				if ( pv[b] != r.pv[b] || mv[b] != r.mv[b] )
+					return false;
+			return true;
+		}
+		/**
+		 * Hash the state only
+		 * @return a hash of the deltas
+		 */
+		public int hashCode()
+		{
+			long h = 0;
+			for ( int b=0;b<pv.length;b++ )
+				h = 31*(31*h+pv[b])+mv[b];
+			return (int)(h^(h>>>32));
+		}
+	}
+	/**
+	 * Set up the automaton with all versions at the start
+	 * @param pattern the pattern to search for, not empty
+	 * @param bs the versions to search
+	 * @param k the most edits allowed
+	 */
+	MyersAutomaton( char[] pattern, BitSet bs, int k )
+	{
+		int m = pattern.length;
+		this.pattern = pattern;
+		this.k = k;
+		numWords = (m+63)/64;
+		highBit = 1L<<((m-1)%64);
+		lastMask = highBit|(highBit-1);
+		peqLow = new long[256][];
+		peqHigh = new HashMap<Character,long[]>();
+		peqNone = new long[numWords];
+		for ( int i=0;i<m;i++ )
+		{
+			char c = pattern[i];
+			long[] peq = ( c < 256 ) ? peqLow[c] : peqHigh.get( c );
+			if ( peq == null )
+			{
+				peq = new long[numWords];
+				if ( c < 256 )
+					peqLow[c] = peq;
+				else
+					peqHigh.put( c, peq );
+			}
+			peq[i/64] |= 1L<<(i%64);
+		}
+		long[] pv = new long[numWords];
+		for ( int b=0;b<numWords;b++ )
+			pv[b] = -1L;
+		pv[numWords-1] = lastMask;
+		waiting = new HashMap<Run,Run>();
+		if ( !bs.isEmpty() )
+		{
+			BitSet start = new BitSet();
+			start.or( bs );
+			Run r = new Run( pv, new long[numWords], m, start );
+			waiting.put( r, r );
+		}
+		runs = new ArrayList<Run>();
+		found = new ArrayList<Match>();
+	}
+	/**
+	 * Get the rows of the pattern a character matches
+	 * @param c the character
+	 * @return a bit set in words, the first row lowest
+	 */
+	private long[] getPeq( char c )
+	{
+		long[] peq = ( c < 256 ) ? peqLow[c] : peqHigh.get( c );
+		return ( peq == null ) ? peqNone : peq;
+	}
+	/**
+	 * Move a run on by one character of text. The top row of the
+	 * table is always 0 since a match may start anywhere, so no
+	 * horizontal delta comes into the first word.
+	 * @param r the run
+	 * @param c the character read
+	 */
+	private void step( Run r, char c )
+	{
+		long[] peq = getPeq( c );
+		int hin = 0;
+		for ( int b=0;b<numWords;b++ )
+		{
+			long pv = r.pv[b];
+			long mv = r.mv[b];
+			long eq = peq[b];
+			long xv = eq|mv;
+			if ( hin < 0 )
+				eq |= 1L;
+			long xh = (((eq&pv)+pv)^pv)|eq;
+			long ph = mv|~(xh|pv);
+			long mh = pv&xh;
+			long high = ( b == numWords-1 ) ? highBit : Long.MIN_VALUE;
+			int hout = ((ph&high) != 0) ? 1 : ((mh&high) != 0) ? -1 : 0;
+			ph <<= 1;
+			mh <<= 1;
+			if ( hin < 0 )
+				mh |= 1L;
+			else if ( hin > 0 )
+				ph |= 1L;
+			r.pv[b] = mh|~(xv|ph);
+			r.mv[b] = ph&xv;
+			hin = hout;
+		}
+		r.pv[numWords-1] &= lastMask;
+		r.mv[numWords-1] &= lastMask;
+		r.score += hin;
+	}
+	/**
+	 * Take the versions of a pair away from the states they are
+	 * waiting in and make a run of each state
+	 * @param pv the versions of the pair
+	 */
+	private void gather( VersionSet pv )
+	{
+		runs.clear();
+		Iterator<Run> iter = waiting.values().iterator();
+		while ( iter.hasNext() )
+		{
+			Run w = iter.next();
+			if ( pv.intersects(w.versions) )
+			{
+				BitSet bs = new BitSet();
+				bs.or( w.versions );
+				pv.retainIn( bs );
+				pv.removeFrom( w.versions );
+				runs.add( new Run(w.pv.clone(),w.mv.clone(),w.score,bs) );
+				if ( w.versions.isEmpty() )
+					iter.remove();
+			}
+		}
+	}
+	/**
+	 * Leave the versions of the runs waiting where they got to,
+	 * merging those that ended up in the same state
+	 */
+	private void scatter()
+	{
+		for ( int g=0;g<runs.size();g++ )
+		{
+			Run r = runs.get( g );
+			Run w = waiting.get( r );
+			if ( w == null )
+				waiting.put( r, r );
+			else
+				w.versions.or( r.versions );
+		}
+	}
+	/**
+	 * Note a hit in each version of a run. A hit next to the last one
+	 * in the same version replaces it only if it has fewer edits.
+	 * @param r the run
+	 * @param j the offset in the pair of the last character read
+	 */
+	private void hit( Run r, int j )
+	{
+		BitSet bs = r.versions;
+		for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+		{
+			int end = offsets[v]+j;
+			if ( bestEnd[v] == -1 || lastEnd[v] != end-1 )
+			{
+				flush( v );
+				bestEnd[v] = end;
+				bestScore[v] = r.score;
+			}
+			else if ( r.score < bestScore[v] )
+			{
+				bestEnd[v] = end;
+				bestScore[v] = r.score;
+			}
+			lastEnd[v] = end;
+		}
+	}
+	/**
+	 * Report the best hit of a version's current stretch of hits. Until
+	 * it is located the match is given the length of the pattern.
+	 * @param v the version
+	 */
+	private void flush( int v )
+	{
+		if ( bestEnd[v] != -1 )
+		{
+			int offset = Math.max( 0, bestEnd[v]+1-pattern.length );
+			found.add( new Match((short)v, offset, bestEnd[v]+1-offset,
+				mvd.getVersionShortName(v), ChunkState.found) );
+			bestEnd[v] = -1;
+		}
+	}
+	/**
+	 * Find where a match really starts. Align the reversed pattern
+	 * with the text read backwards from the last character of the
+	 * match, both ends of the alignment fixed at that character. Of
+	 * the starts up to k characters either side of the pattern's
+	 * length the one with the fewest edits wins, and of those the one
+	 * whose length is nearest the pattern's.
+	 * @param m the match, ending where it should
+	 * @param text the text of its version
+	 */
+	private void locate( Match m, char[] text )
+	{
+		int end = m.offset+m.length-1;
+		int p = pattern.length;
+		int most = Math.min( end+1, p+k );
+		// column i of the table: distance between the last i characters
+		// of the pattern and the last j characters of the match
+		int[] col = new int[most+1];
+		for ( int j=0;j<=most;j++ )
+			col[j] = j;
+		for ( int i=1;i<=p;i++ )
+		{
+			char c = pattern[p-i];
+			int diag = col[0];
+			col[0] = i;
+			for ( int j=1;j<=most;j++ )
+			{
+				int d = diag+((text[end+1-j]==c)?0:1);
+				diag = col[j];
+				d = Math.min( d, col[j]+1 );
+				d = Math.min( d, col[j-1]+1 );
+				col[j] = d;
+			}
+		}
+		int best = -1;
+		for ( int j=1;j<=most;j++ )
+		{
+			if ( best == -1 || col[j] < col[best] || (col[j] == col[best]
+				&& Math.abs(j-p) < Math.abs(best-p)) )
+				best = j;
+		}
+		m.offset = end+1-best;
+		m.length = best;
+	}
+	/**
+	 * Locate the starts of all the matches, reading the text of each
+	 * version that has any just once
+	 */
+	private void locateAll()
+	{
+		char[] text = null;
+		int version = -1;
+		for ( int i=0;i<found.size();i++ )
+		{
+			Match m = found.get( i );
+			if ( m.version != version )
+			{
+				version = m.version;
+				text = mvd.getVersion( version );
+			}
+			locate( m, text );
+		}
+	}
+	/**
+	 * Search the pairs of an MVD
+	 * @param mvd the MVD
+	 * @return the matches in order of version and then of offset
+	 */
+	Match[] search( MVD mvd )
+	{
+		this.mvd = mvd;
+		int n = mvd.numVersions()+1;
+		offsets = new int[n];
+		lastEnd = new int[n];
+		bestEnd = new int[n];
+		bestScore = new int[n];
+		for ( int v=0;v<n;v++ )
+			lastEnd[v] = bestEnd[v] = -1;
+		for ( int i=0;i<mvd.pairs.size()&&!waiting.isEmpty();i++ )
+		{
+			Pair p = mvd.pairs.get( i );
+			gather( p.versions );
+			if ( runs.isEmpty() )
+			{
+				PairIndex.pass( offsets, p );
+				continue;
+			}
+			char[] data = p.getChars();
+			for ( int j=0;j<data.length;j++ )
+			{
+				for ( int g=0;g<runs.size();g++ )
+				{
+					Run r = runs.get( g );
+					step( r, data[j] );
+					if ( r.score <= k )
+						hit( r, j );
+				}
+			}
+			scatter();
+			PairIndex.pass( offsets, p );
+		}
+		for ( int v=0;v<n;v++ )
+			flush( v );
+		Match.sort( found );
+		locateAll();
+		Match[] result = new Match[found.size()];
+		found.toArray( result );
+		return result;
+	}
+}
@@ -0,0 +1,673 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An inverted index of the n-grams in an MVD. Each posting records
+ * the position in the whole MVD where an n-gram starts and the set
+ * of versions in which it starts there. An n-gram wholly inside a
+ * pair belongs to all the pair's versions; one that runs on into
+ * the following pairs gets a posting for each different text the
+ * versions continue with. The n-grams are case-folded so the same
+ * index serves both the exact search and the case-insensitive find.
+ * A literal query is answered by intersecting the posting lists of
+ * the n-grams that cover it, rarest first, and then checking the
+ * few positions that are left against the text. The index is a
+ * snapshot of the pairs: the MVD throws it away when they change,
+ * and a saved index is only read back if the pairs still match.
+ * @author Desmond Schmidt
+ */
+public class NGramIndex
+{
+	/** length of the n-grams unless told otherwise */
+	public static final int DEFAULT_N = 4;
+	/** marks a saved index file: "NGRM" */
+	static final int MAGIC = 0x4E47524D;
+	/** version of the saved format */
+	static final int FORMAT = 1;
+	/** length of the n-grams */
+	int n;
+	/** identifies the pairs the index was built from */
+	long fingerprint;
+	/** distinct n-gram hashes in increasing order */
+	int[] keys;
+	/** where each key's postings start, plus the total at the end */
+	int[] offsets;
+	/** position in the whole MVD of each posting, in order per key */
+	int[] positions;
+	/** index into versionSets of each posting's versions */
+	int[] sets;
+	/** the distinct version sets of the postings */
+	BitSet[] versionSets;
+	/** where the pairs start in each version, for checking candidates. 
+	 * It lives as long as this index, not the MVD's own. */
+	PairIndex pairIndex;
+	/**
+	 * Get the positional index used to check candidates
+	 * @param mvd the MVD this index belongs to
+	 * @return a pair index over its current pairs
+	 */
+	private PairIndex getPairIndex( MVD mvd )
+	{
+		if ( pairIndex == null )
+			pairIndex = mvd.newPairIndex();
+		return pairIndex;
+	}
+	/**
+	 * Private constructor used when reading a saved index
+	 */
+	private NGramIndex()
+	{
+	}
+	/**
+	 * Build an index over the current pairs of an MVD
+	 * @param mvd the MVD to index
+	 * @param n the length of the n-grams
+	 */
+	public NGramIndex( MVD mvd, int n )
+	{
+		this.n = n;
+		this.fingerprint = getFingerprint( mvd.pairs );
+		PairIndex pi = getPairIndex( mvd );
+		ArrayList<Pair> pairs = mvd.pairs;
+		Postings postings = new Postings();
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			char[] data = p.getChars();
+			BitSet bs = p.versions.toBitSet();
+			// leave out hints
+			bs.clear( 0 );
+			if ( data.length == 0 || bs.isEmpty() )
+				continue;
+			int start = pi.getMvdStart( i );
+			int setId = postings.intern( bs );
+			int whole = data.length-n+1;
+			for ( int j=0;j<whole;j++ )
+				postings.add( hash(data,j,n), start+j, setId );
+			// n-grams running on into the following pairs
+			HashMap<String,BitSet> tails = getTails( pairs, pi, i, bs );
+			for ( int j=Math.max(0,whole);j<data.length;j++ )
+			{
+				int need = n-(data.length-j);
+				Iterator<Map.Entry<String,BitSet>> iter =
+					tails.entrySet().iterator();
+				while ( iter.hasNext() )
+				{
+					Map.Entry<String,BitSet> e = iter.next();
+					String tail = e.getKey();
+					if ( tail.length() >= need )
+					{
+						int h = hash( data, j, data.length-j );
+						for ( int k=0;k<need;k++ )
+							h = 31*h+fold( tail.charAt(k) );
+						postings.add( h, start+j,
+							postings.intern(e.getValue()) );
+					}
+				}
+			}
+		}
+		postings.sort( this );
+	}
+	/**
+	 * Group the versions of a pair by the text that follows it
+	 * @param pairs the pairs of the MVD
+	 * @param pi the positional index over them
+	 * @param i the index of the pair
+	 * @param bs the pair's versions
+	 * @return a map of the next n-1 characters to their versions
+	 */
+	private HashMap<String,BitSet> getTails( ArrayList<Pair> pairs,
+		PairIndex pi, int i, BitSet bs )
+	{
+		HashMap<String,BitSet> tails = new HashMap<String,BitSet>();
+		for ( int v=bs.nextSetBit(1);v>=0;v=bs.nextSetBit(v+1) )
+		{
+			StringBuilder sb = new StringBuilder();
+			int k = i;
+			while ( sb.length() < n-1
+				&& (k=pi.next(k+1,(short)v)) != Integer.MAX_VALUE )
+			{
+				char[] data = pairs.get(k).getChars();
+				sb.append( data, 0, Math.min(data.length,n-1-sb.length()) );
+			}
+			String tail = sb.toString();
+			BitSet versions = tails.get( tail );
+			if ( versions == null )
+			{
+				versions = new BitSet();
+				tails.put( tail, versions );
+			}
+			versions.set( v );
+		}
+		return tails;
+	}
+	/**
+	 * Fold a character to lower case
+	 * @param c the character
+	 * @return its folded form
+	 */
+	private static char fold( char c )
+	{
+		return Character.toLowerCase( c );
+	}
+	/**
+	 * Hash a run of case-folded characters
+	 * @param data the characters
+	 * @param from the first to hash
+	 * @param len the number to hash
+	 * @return the hash
+	 */
+	private static int hash( char[] data, int from, int len )
+	{
+		int h = 0;
+		for ( int i=from;i<from+len;i++ )
+			h = 31*h+fold( data[i] );
+		return h;
+	}
+	/**
+	 * Compute a fingerprint of a list of pairs, so that we can tell
+	 * whether a saved index still belongs to an MVD
+	 * @param pairs the pairs
+	 * @return a hash of their lengths, versions and text
+	 */
+	static long getFingerprint( ArrayList<Pair> pairs )
+	{
+		long h = pairs.size();
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			h = 31*h+p.length();
+			h = 31*h+p.versions.hashCode();
+			char[] data = p.getChars();
+			for ( int j=0;j<data.length;j++ )
+				h = 31*h+data[j];
+		}
+		return h;
+	}
+	/**
+	 * Get the length of the n-grams
+	 * @return n
+	 */
+	public int getN()
+	{
+		return n;
+	}
+	/**
+	 * Does this index still describe the pairs of an MVD?
+	 * @param mvd the MVD
+	 * @return true if it was built from pairs just like them
+	 */
+	boolean fits( MVD mvd )
+	{
+		return fingerprint == getFingerprint( mvd.pairs );
+	}
+	/**
+	 * Find the postings of the n-gram at some point in a query
+	 * @param query the query
+	 * @param from the start of the n-gram
+	 * @return the index of its key or -1 if it doesn't occur
+	 */
+	private int lookup( char[] query, int from )
+	{
+		int k = Arrays.binarySearch( keys, hash(query,from,n) );
+		return ( k >= 0 )?k:-1;
+	}
+	/**
+	 * Work out where a query may start in each version. The n-grams
+	 * at 0, n, 2n... and at the end cover the query. We start with
+	 * the positions of the rarest and keep only those confirmed by
+	 * the others, until the next list would cost more to read than
+	 * the positions left would cost to check.
+	 * @param mvd the MVD this index belongs to
+	 * @param query the query, at least n long
+	 * @param bs the versions to look in
+	 * @return ascending possible start offsets indexed by version,
+	 * with null for versions that have none
+	 */
+	private int[][] getCandidates( MVD mvd, char[] query, BitSet bs )
+	{
+		int numVersions = mvd.numVersions();
+		int count = (query.length+n-1)/n;
+		int[] froms = new int[count];
+		int[] found = new int[count];
+		for ( int i=0;i<count;i++ )
+		{
+			froms[i] = Math.min( i*n, query.length-n );
+			found[i] = lookup( query, froms[i] );
+			if ( found[i] == -1 )
+				return new int[numVersions+1][];
+		}
+		// rarest first
+		for ( int i=1;i<count;i++ )
+		{
+			for ( int j=i;j>0&&size(found[j])<size(found[j-1]);j-- )
+			{
+				int temp = found[j];
+				found[j] = found[j-1];
+				found[j-1] = temp;
+				temp = froms[j];
+				froms[j] = froms[j-1];
+				froms[j-1] = temp;
+			}
+		}
+		PairIndex pi = getPairIndex( mvd );
+		int[][] cands = null;
+		int total = 0;
+		for ( int i=0;i<count;i++ )
+		{
+			if ( cands != null && size(found[i]) > total )
+				break;
+			int[][] next = collect( pi, found[i], froms[i], bs, cands,
+				numVersions );
+			cands = ( cands == null )?next:intersect( cands, next );
+			total = 0;
+			for ( int v=1;v<cands.length;v++ )
+				if ( cands[v] != null )
+					total += cands[v].length;
+			if ( total == 0 )
+				break;
+		}
+		return cands;
+	}
+	/**
+	 * Get the number of postings of a key
+	 * @param key the index of the key
+	 * @return its number of postings
+	 */
+	private int size( int key )
+	{
+		return offsets[key+1]-offsets[key];
+	}
+	/**
+	 * Turn the postings of an n-gram into possible query starts
+	 * @param pi the positional index of the MVD
+	 * @param key the index of the n-gram's key
+	 * @param from where the n-gram is in the query
+	 * @param bs the versions to look in
+	 * @param only if not null only versions with candidates here
+	 * @param numVersions the number of versions in the MVD
+	 * @return ascending start offsets indexed by version
+	 */
+	private int[][] collect( PairIndex pi, int key, int from, BitSet bs,
+		int[][] only, int numVersions )
+	{
+		int[][] lists = new int[numVersions+1][];
+		int[] counts = new int[numVersions+1];
+		for ( int i=offsets[key];i<offsets[key+1];i++ )
+		{
+			int pair = pi.getMvdPair( positions[i] );
+			int inPair = positions[i]-pi.getMvdStart( pair );
+			BitSet vs = versionSets[sets[i]];
+			for ( int v=vs.nextSetBit(1);v>=0&&v<=numVersions;
+				v=vs.nextSetBit(v+1) )
+			{
+				if ( !bs.get(v) || (only != null && only[v] == null) )
+					continue;
+				int start = pi.getVersionStart((short)v,pair)+inPair-from;
+				if ( start < 0 )
+					continue;
+				if ( lists[v] == null )
+					lists[v] = new int[4];
+				else if ( counts[v] == lists[v].length )
+					lists[v] = Arrays.copyOf( lists[v], counts[v]*2 );
+				lists[v][counts[v]++] = start;
+			}
+		}
+		for ( int v=1;v<=numVersions;v++ )
+			if ( lists[v] != null )
+				lists[v] = Arrays.copyOf( lists[v], counts[v] );
+		return lists;
+	}
+	/**
+	 * Keep only the possible starts found in both sets of lists
+	 * @param a the first lists
+	 * @param b the second lists
+	 * @return their intersection, null where a version has none
+	 */
+	private static int[][] intersect( int[][] a, int[][] b )
+	{
+		int[][] c = new int[a.length][];
+		for ( int v=1;v<a.length;v++ )
+		{
+			if ( a[v] == null || b[v] == null )
+				continue;
+			int[] res = new int[Math.min(a[v].length,b[v].length)];
+			int i=0,j=0,k=0;
+			while ( i < a[v].length && j < b[v].length )
+			{
+				if ( a[v][i] < b[v][j] )
+					i++;
+				else if ( a[v][i] > b[v][j] )
+					j++;
+				else
+				{
+					res[k++] = a[v][i];
+					i++;
+					j++;
+				}
+			}
+			if ( k > 0 )
+				c[v] = Arrays.copyOf( res, k );
+		}
+		return c;
+	}
+	/**
+	 * Does a version contain a pattern at an offset?
+	 * @param mvd the MVD
+	 * @param pi its positional index
+	 * @param v the version
+	 * @param offset the offset in the version
+	 * @param pattern the pattern, compared exactly
+	 * @return true if the pattern is there
+	 */
+	private static boolean matches( MVD mvd, PairIndex pi, short v,
+		int offset, char[] pattern )
+	{
+		int[] indices = pi.getPairs( v );
+		int[] starts = pi.getStarts( v );
+		int k = findPair( starts, offset );
+		int j = 0;
+		for ( ;k<indices.length&&j<pattern.length;k++ )
+		{
+			char[] data = mvd.pairs.get(indices[k]).getChars();
+			for ( int i=offset-starts[k];i<data.length&&j<pattern.length;i++ )
+				if ( data[i] != pattern[j++] )
+					return false;
+			offset = starts[k]+data.length;
+		}
+		return j == pattern.length;
+	}
+	/**
+	 * Find the last of a version's pairs starting at or before an
+	 * offset, i.e. the one that contains it
+	 * @param starts the start offsets of the version's pairs
+	 * @param offset the offset in the version
+	 * @return the ordinal of the pair in the version
+	 */
+	private static int findPair( int[] starts, int offset )
+	{
+		int lo = 0;
+		int hi = starts.length;
+		while ( lo < hi )
+		{
+			int mid = (lo+hi)>>>1;
+			if ( starts[mid] <= offset )
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return Math.max( 0, lo-1 );
+	}
+	/**
+	 * Find all the occurrences of a literal pattern
+	 * @param mvd the MVD this index belongs to
+	 * @param pattern the pattern, at least n long
+	 * @param bs the versions to search through
+	 * @return the matches, by version and then offset
+	 */
+	Match[] search( MVD mvd, char[] pattern, BitSet bs )
+	{
+		int[][] cands = getCandidates( mvd, pattern, bs );
+		PairIndex pi = getPairIndex( mvd );
+		ArrayList<Match> found = new ArrayList<Match>();
+		for ( short v=1;v<cands.length;v++ )
+		{
+			if ( cands[v] == null )
+				continue;
+			for ( int i=0;i<cands[v].length;i++ )
+			{
+				if ( matches(mvd,pi,v,cands[v][i],pattern) )
+					found.add( new Match(v, cands[v][i], pattern.length,
+						mvd.getVersionShortName(v), ChunkState.found) );
+			}
+		}
+		Match[] result = new Match[found.size()];
+		found.toArray( result );
+		return result;
+	}
+	/**
+	 * Find the positions in the whole MVD where a query may start in
+	 * some version, ignoring case
+	 * @param mvd the MVD this index belongs to
+	 * @param query the query, at least n long
+	 * @return the possible positions in increasing order
+	 */
+	int[] getMvdPositions( MVD mvd, char[] query )
+	{
+		BitSet all = new BitSet();
+		all.set( 1, mvd.numVersions()+1 );
+		int[][] cands = getCandidates( mvd, query, all );
+		PairIndex pi = getPairIndex( mvd );
+		TreeSet<Integer> set = new TreeSet<Integer>();
+		for ( short v=1;v<cands.length;v++ )
+		{
+			if ( cands[v] == null )
+				continue;
+			int[] indices = pi.getPairs( v );
+			int[] starts = pi.getStarts( v );
+			for ( int i=0;i<cands[v].length;i++ )
+			{
+				int k = findPair( starts, cands[v][i] );
+				set.add( pi.getMvdStart(indices[k])+cands[v][i]-starts[k] );
+			}
+		}
+		int[] result = new int[set.size()];
+		Iterator<Integer> iter = set.iterator();
+		for ( int i=0;iter.hasNext();i++ )
+			result[i] = iter.next().intValue();
+		return result;
+	}
+	/**
+	 * Save the index, typically next to its MVD
+	 * @param file the file to write to
+	 * @throws IOException if it couldn't be written
+	 */
+	public void write( File file ) throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(file)) );
+		try
+		{
+			dos.writeInt( MAGIC );
+			dos.writeInt( FORMAT );
+			dos.writeInt( n );
+			dos.writeLong( fingerprint );
+			dos.writeInt( versionSets.length );
+			for ( int i=0;i<versionSets.length;i++ )
+			{
+				BitSet bs = versionSets[i];
+				dos.writeShort( bs.cardinality() );
+				for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+					dos.writeShort( v );
+			}
+			dos.writeInt( keys.length );
+			for ( int i=0;i<keys.length;i++ )
+			{
+				dos.writeInt( keys[i] );
+				dos.writeInt( size(i) );
+			}
+			for ( int i=0;i<positions.length;i++ )
+			{
+				dos.writeInt( positions[i] );
+				dos.writeInt( sets[i] );
+			}
+		}
+		finally
+		{
+			dos.close();
+		}
+	}
+	/**
+	 * Read back a saved index
+	 * @param file the file it was saved in
+	 * @param mvd the MVD it should belong to
+	 * @return the index or null if it no longer fits the MVD
+	 * @throws IOException if the file couldn't be read
+	 */
+	public static NGramIndex read( File file, MVD mvd ) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(file)) );
+		try
+		{
+			if ( dis.readInt() != MAGIC || dis.readInt() != FORMAT )
+				throw new IOException( file.getName()
+					+" is not an n-gram index" );
+			NGramIndex index = new NGramIndex();
+			index.n = dis.readInt();
+			index.fingerprint = dis.readLong();
+			if ( !index.fits(mvd) )
+				return null;
+			index.versionSets = new BitSet[dis.readInt()];
+			for ( int i=0;i<index.versionSets.length;i++ )
+			{
+				BitSet bs = new BitSet();
+				int card = dis.readShort();
+				for ( int j=0;j<card;j++ )
+					bs.set( dis.readShort() );
+				index.versionSets[i] = bs;
+			}
+			int numKeys = dis.readInt();
+			index.keys = new int[numKeys];
+			index.offsets = new int[numKeys+1];
+			for ( int i=0;i<numKeys;i++ )
+			{
+				index.keys[i] = dis.readInt();
+				index.offsets[i+1] = index.offsets[i]+dis.readInt();
+			}
+			index.positions = new int[index.offsets[numKeys]];
+			index.sets = new int[index.positions.length];
+			for ( int i=0;i<index.positions.length;i++ )
+			{
+				index.positions[i] = dis.readInt();
+				index.sets[i] = dis.readInt();
+			}
+			return index;
+		}
+		finally
+		{
+			dis.close();
+		}
+	}
+	/**
+	 * Collects the postings while the index is being built
+	 */
+	private static class Postings
+	{
+		/** hash of each posting's n-gram */
+		int[] hashes = new int[1024];
+		/** mvd position of each posting */
+		int[] positions = new int[1024];
+		/** version set id of each posting */
+		int[] sets = new int[1024];
+		/** number of postings so far */
+		int count;
+		/** ids of the distinct version sets */
+		HashMap<BitSet,Integer> setIds = new HashMap<BitSet,Integer>();
+		/** the distinct version sets in order of id */
+		ArrayList<BitSet> setList = new ArrayList<BitSet>();
+		/**
+		 * Get the id of a version set, adding it if it is new
+		 * @param bs the set, which must not be modified afterwards
+		 * @return its id
+		 */
+		int intern( BitSet bs )
+		{
+			Integer id = setIds.get( bs );
+			if ( id == null )
+			{
+				id = Integer.valueOf( setList.size() );
+				setIds.put( bs, id );
+				setList.add( bs );
+			}
+			return id.intValue();
+		}
+		/**
+		 * Add a posting
+		 * @param hash the hash of its n-gram
+		 * @param pos its position in the whole MVD
+		 * @param set the id of its version set
+		 */
+		void add( int hash, int pos, int set )
+		{
+			if ( count == hashes.length )
+			{
+				hashes = Arrays.copyOf( hashes, count*2 );
+				positions = Arrays.copyOf( positions, count*2 );
+				sets = Arrays.copyOf( sets, count*2 );
+			}
+			hashes[count] = hash;
+			positions[count] = pos;
+			sets[count++] = set;
+		}
+		/**
+		 * Group the postings by n-gram, keeping each group in the
+		 * order the postings were added, i.e. by position
+		 * @param index the index to fill in
+		 */
+		void sort( NGramIndex index )
+		{
+			long[] order = new long[count];
+			for ( int i=0;i<count;i++ )
+				order[i] = ((long)hashes[i]<<32)|i;
+			Arrays.sort( order );
+			int[] keys = new int[count];
+			int[] offsets = new int[count+1];
+			int numKeys = 0;
+			index.positions = new int[count];
+			index.sets = new int[count];
+			for ( int i=0;i<count;i++ )
+			{
+				int hash = (int)(order[i]>>>32);
+				int j = (int)order[i];
+				if ( numKeys == 0 || keys[numKeys-1] != hash )
+				{
+					keys[numKeys] = hash;
+					offsets[numKeys++] = i;
+				}
+				index.positions[i] = positions[j];
+				index.sets[i] = sets[j];
+			}
+			offsets[numKeys] = count;
+			index.keys = Arrays.copyOf( keys, numKeys );
+			index.offsets = Arrays.copyOf( offsets, numKeys+1 );
+			index.versionSets = new BitSet[setList.size()];
+			setList.toArray( index.versionSets );
+		}
+	}
+}
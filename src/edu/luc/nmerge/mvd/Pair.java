@@ -20,6 +20,7 @@
  */
 package edu.luc.nmerge.mvd;
 
+import java.lang.ref.SoftReference;
 import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -39,20 +40,91 @@ public class Pair extends Serialiser
 	Pair parent;
 	LinkedList<Pair> children;
 	private char[] data;
-	public BitSet versions;
+	/** undecoded data in a file's data table or null */
+	private DataTable table;
+	/** offset of our bytes in table */
+	private int tableOffset;
+	/** number of our bytes in table */
+	private int tableLen;
+	/** length in chars of our data once known, else -1 */
+	private int charLen;
+	/** decoded data that may be reclaimed if table is soft */
+	private SoftReference<char[]> softData;
+	/** its versions, which may be shared with other pairs */
+	public VersionSet versions;
 	public static int pairId = 1;
 	/** parent id if subject of a transposition */
 	int id;
 	/**
 	 * Create a basic pair
-	 * @param versions its versions
+	 * @param versions its versions, which are copied
 	 * @param data its data
 	 */
 	public Pair( BitSet versions, char[] data )
+	{
+		this( new VersionSet(versions), data );
+	}
+	/**
+	 * Create a basic pair with a set of versions it may share
+	 * @param versions its versions
+	 * @param data its data
+	 */
+	public Pair( VersionSet versions, char[] data )
 	{
 		this.versions = versions;
 		this.data = data;
 	}
+	/**
+	 * Create a pair whose data is still encoded in a data table. 
+	 * The data is decoded when it is first asked for.
+	 * @param versions its versions
+	 * @param table the data table of the file it came from
+	 * @param offset the offset of its bytes in table
+	 * @param len the number of its bytes
+	 */
+	Pair( VersionSet versions, DataTable table, int offset, int len )
+	{
+		this.versions = versions;
+		this.table = table;
+		this.tableOffset = offset;
+		this.tableLen = len;
+		this.charLen = -1;
+	}
+	/**
+	 * Get our own data, decoding it first if need be
+	 * @return our data, which is null for children
+	 */
+	private char[] chars()
+	{
+		char[] d = data;
+		if ( d == null && table != null )
+		{
+			if ( table.soft )
+			{
+				SoftReference<char[]> ref = softData;
+				d = (ref==null)?null:ref.get();
+				if ( d == null )
+				{
+					d = table.decode( tableOffset, tableLen );
+					softData = new SoftReference<char[]>( d );
+				}
+			}
+			else
+			{
+				d = table.decode( tableOffset, tableLen );
+				data = d;
+			}
+		}
+		return d;
+	}
+	/**
+	 * Do we have any data of our own, decoded or not?
+	 * @return true if we do
+	 */
+	private boolean hasData()
+	{
+		return data != null || table != null;
+	}
     public void setId( int id )
     {
         this.id = id;
@@ -128,7 +200,16 @@ public class Pair extends Serialiser
 	 */
 	public int length()
 	{
-		return (parent!=null)?parent.length():data.length;
+		if ( parent != null )
+			return parent.length();
+		else if ( data == null && table != null )
+		{
+			if ( charLen == -1 )
+				charLen = table.charLength( tableOffset, tableLen );
+			return charLen;
+		}
+		else
+			return data.length;
 	}
     /**
 	 * Just get the length of the UTF-8 byte data, even if it is transposed.
@@ -136,8 +217,42 @@ public class Pair extends Serialiser
 	 */
 	public int byteLength() throws UnsupportedEncodingException
 	{
-        String str = new String(data);
-		return (parent!=null)?parent.byteLength():str.getBytes("UTF-8").length;
+		if ( parent != null )
+			return parent.byteLength();
+		else if ( table != null && table.utf8 )
+			return tableLen;
+		else
+			return utf8Length( chars() );
+	}
+	/**
+	 * Count the bytes that some chars will need in UTF-8 without 
+	 * encoding them. Unpaired surrogates count as one byte since 
+	 * the encoder replaces them with '?'.
+	 * @param chars the chars to measure
+	 * @return their length in UTF-8
+	 */
+	static int utf8Length( char[] chars )
+	{
+		int len = 0;
+		for ( int i=0;i<chars.length;i++ )
+		{
+			char c = chars[i];
+			if ( c < 0x80 )
+				len++;
+			else if ( c < 0x800 )
+				len += 2;
+			else if ( Character.isHighSurrogate(c) && i+1<chars.length 
+				&& Character.isLowSurrogate(chars[i+1]) )
+			{
+				len += 4;
+				i++;
+			}
+			else if ( Character.isSurrogate(c) )
+				len++;
+			else
+				len += 3;
+		}
+		return len;
 	}
 	/**
 	 * Return the size of the data used by this pair
@@ -147,29 +262,11 @@ public class Pair extends Serialiser
 	{
 		if ( parent!=null || isHint() )
 			return 0;
-		else if ( data == null )
+		else if ( !hasData() )
 			return 0;
 		else
 			return byteLength();
 	}
-	/**
-	 * Fix a data offset in a pair already serialised
-	 * @param data the data to fix
-	 * @param p the offset into data where the serialised pair starts
-	 * @param dataOffset the new value of dataoffset
-	 * @param vSetSize the number of bytes in the version set
-	 * @param parentId write this out as the third integer
-	 */
-	static void fixDataOffset( byte[] data, int p, int dataOffset, 
-		int vSetSize, int parentId )
-	{
-		// read versions
-		p += vSetSize;
-		Pair dummy = new Pair( null, null );
-		dummy.writeInt( data, p, dataOffset );
-		p += 8;
-		dummy.writeInt( data, p, parentId );
-	}
 	/**
 	 * Return the size of the pair itself (minus the data)
 	 * @return versionSetSize the size of a version set in bytes
@@ -183,19 +280,18 @@ public class Pair extends Serialiser
 		return pSize;
 	}
 	/**
-	 * Write the pair itself in serialised form and also its data.
+	 * Write the pair itself in serialised form but not its data.
 	 * Versions get written out LSB first.
-	 * @param bytes the byte array to write to
+	 * @param bytes the byte array to write to, zeroed
 	 * @param p the offset within bytes to start writing this pair
 	 * @param setSize the number of bytes in the version info
-	 * @param dataOffset offset reserved in the dataTable for this 
-	 * @param dataTableOffset the start of the data table within data
-	 * pair's data (might be the same as some other pair's)
+	 * @param dataOffset offset in the dataTable of this pair's data 
+	 * (might be the same as some other pair's)
 	 * @param parentId the id of the parent or NULL_PID if none
-	 * @return the number of bytes written to data
+	 * @return the number of bytes written to bytes
 	 */
 	int serialisePair( byte[] bytes, int p, int setSize, int dataOffset, 
-		int dataTableOffset, int parentId ) throws MVDException
+		int parentId ) throws MVDException
 	{
 		try
         {
@@ -205,16 +301,14 @@ public class Pair extends Serialiser
                 flag = CHILD_FLAG;
             else if ( children != null )
                 flag = PARENT_FLAG;
-            if ( bytes.length > p + pairSize(setSize) )
+            if ( bytes.length >= p + pairSize(setSize) )
             {
                 p += serialiseVersions( bytes, p, setSize );
                 // write data offset
-                // can't see the point of this any more
-                //writeInt( bytes, p, (children==null)?dataOffset:-dataOffset );
                 writeInt( bytes, p, dataOffset );
                 p += 4;
                 // write data length ORed with the parent/child flag
-                int dataLength = (data==null)?0:this.byteLength(); 
+                int dataLength = (!hasData())?0:this.byteLength(); 
                 dataLength |= flag;
                 writeInt( bytes, p, dataLength );
                 p += 4;
@@ -223,9 +317,6 @@ public class Pair extends Serialiser
                     writeInt( bytes, p, parentId );
                     p += 4;
                 }
-                // write actual data
-                if ( parent == null && !isHint() )
-                    p += writeData( bytes, dataTableOffset+dataOffset, getData() );
             }
             else
                 throw new Exception( "No room for pair during serialisation" );
@@ -262,7 +353,7 @@ public class Pair extends Serialiser
 	 */
 	public boolean contains( short version )
 	{
-		return versions.nextSetBit(version) == version;
+		return versions.get( version );
 	}
 	/**
 	 * Is this pair really a hint?
@@ -293,7 +384,7 @@ public class Pair extends Serialiser
 	 */
 	public boolean isEmpty()
 	{
-		return data.length == 0;
+		return (data==null&&table!=null)?tableLen==0:data.length==0;
 	}
 	/**
 	 * Does this pair start with the given prefix?
@@ -303,6 +394,7 @@ public class Pair extends Serialiser
 	public boolean startsWith( char[] prefix )
 	{
         int i;
+		char[] data = chars();
 		for ( i=0;i<prefix.length&&i<data.length;i++ )
         {
 			if ( data[i] != prefix[i] )
@@ -330,13 +422,13 @@ public class Pair extends Serialiser
 		if ( parent != null )
 		{
 			sb.append("["+parent.id+":");
-			sb.append( new String(parent.data) );
+			sb.append( new String(parent.getChars()) );
 			sb.append( "]" );
 		}
 		else if ( children != null )
 		{
 			sb.append("{"+id+":");
-			sb.append( new String(data) );
+			sb.append( new String(chars()) );
 			sb.append( "}" );
 			sb.append("; children=");
 			for ( int i=0;i<children.size();i++ )
@@ -347,8 +439,8 @@ public class Pair extends Serialiser
 					sb.append(",");
 			}
 		}
-		else if ( data != null )
-			sb.append( new String(data) );
+		else if ( hasData() )
+			sb.append( new String(chars()) );
 		else
 			sb.append("null");
 		return sb.toString();
@@ -366,7 +458,7 @@ public class Pair extends Serialiser
         if ( parent != null )
             return parent.getChars();
         else
-            return data;
+            return chars();
     }
 	/**
 	 * Get the data of this pair
@@ -378,9 +470,11 @@ public class Pair extends Serialiser
         {
             if ( parent != null )
                 return parent.getData();
+            else if ( table != null && table.utf8 )
+                return table.getBytes( tableOffset, tableLen );
             else
             {
-                String str = new String(data);
+                String str = new String(chars());
                 return str.getBytes("UTF-8");
             }
         }
@@ -396,6 +490,8 @@ public class Pair extends Serialiser
 	void setData( char[] data )
 	{
 		this.data = data;
+		this.table = null;
+		this.softData = null;
 	}
 	/**
 	 * Get the child of a parent
@@ -423,7 +519,7 @@ public class Pair extends Serialiser
 	 */
 	public void verify() throws MVDException
 	{
-		if ( data == null && parent == null && versions.nextSetBit(0) != 0 )
+		if ( !hasData() && parent == null && versions.nextSetBit(0) != 0 )
 			throw new MVDException(
 				"data in pair is null and it is not a child or hint");
 	}
@@ -0,0 +1,220 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.BitSet;
+
+/**
+ * Runs a deterministic search automaton over all the versions of an
+ * MVD in one pass through its pairs. The only thing that differs
+ * between versions is the state each has reached, so rather than
+ * one copy of the automaton per group of versions we keep, for each
+ * state, the set of versions that are in it. Each pair is run
+ * through the automaton once for every distinct state its versions
+ * are in, and runs that reach the same state are merged as they go,
+ * so a character costs no more than the number of distinct states.
+ * Nothing is allocated per character. Subclasses supply the
+ * transitions and say what to do when a state is reached.
+ * @author Desmond Schmidt
+ */
+abstract class PairAutomaton
+{
+	/** the MVD being searched */
+	MVD mvd;
+	/** offset in each version of the pair being read */
+	int[] offsets;
+	/** versions left in each state by their last pair */
+	BitSet[] at;
+	/** the states in which some versions are waiting */
+	int[] occupied;
+	/** number of occupied states */
+	int numOccupied;
+	/** states of the runs going through the current pair */
+	int[] states;
+	/** versions of each run */
+	BitSet[] versions;
+	/** number of runs */
+	int numStates;
+	/** the run in each state during the current character */
+	int[] slot;
+	/** the character each slot was last set for */
+	int[] stamp;
+	/** counts the characters read */
+	int clock;
+	/**
+	 * Set up the arrays
+	 * @param size the number of states of the automaton
+	 */
+	PairAutomaton( int size )
+	{
+		at = new BitSet[size];
+		versions = new BitSet[size];
+		occupied = new int[size];
+		states = new int[size];
+		slot = new int[size];
+		stamp = new int[size];
+	}
+	/**
+	 * Put versions in the start state
+	 * @param bs the versions to search
+	 */
+	void start( BitSet bs )
+	{
+		if ( !bs.isEmpty() )
+		{
+			at[0] = new BitSet();
+			at[0].or( bs );
+			occupied[numOccupied++] = 0;
+		}
+	}
+	/**
+	 * Make a transition
+	 * @param q the current state
+	 * @param c the character read
+	 * @return the next state
+	 */
+	abstract int step( int q, char c );
+	/**
+	 * Report any matches that end on reaching a state
+	 * @param q the state just reached
+	 * @param bs the versions that reached it
+	 * @param end the offset in the pair of the last character read
+	 * @return false to stop the search, true to go on
+	 */
+	abstract boolean report( int q, BitSet bs, int end );
+	/**
+	 * Get the state to carry on from after reaching a state
+	 * @param q the state reached
+	 * @return q unless it is a final state that has to be left
+	 */
+	int settle( int q )
+	{
+		return q;
+	}
+	/**
+	 * Get the offset in a version where a match starts
+	 * @param v the version
+	 * @param end the offset in the pair being read of its last character
+	 * @param len the length of the match
+	 * @return its start offset in the version
+	 */
+	int getOffset( int v, int end, int len )
+	{
+		return offsets[v]+end+1-len;
+	}
+	/**
+	 * Take the versions of a pair away from the states they are
+	 * waiting in and make a run of each state
+	 * @param pv the versions of the pair
+	 */
+	private void gather( VersionSet pv )
+	{
+		numStates = 0;
+		for ( int k=0;k<numOccupied;k++ )
+		{
+			int q = occupied[k];
+			if ( pv.intersects(at[q]) )
+			{
+				if ( versions[numStates] == null )
+					versions[numStates] = new BitSet();
+				BitSet bs = versions[numStates];
+				bs.clear();
+				bs.or( at[q] );
+				pv.retainIn( bs );
+				pv.removeFrom( at[q] );
+				states[numStates++] = q;
+				if ( at[q].isEmpty() )
+					occupied[k--] = occupied[--numOccupied];
+			}
+		}
+	}
+	/**
+	 * Leave the versions of the runs waiting where they got to
+	 */
+	private void scatter()
+	{
+		for ( int g=0;g<numStates;g++ )
+		{
+			int q = states[g];
+			if ( at[q] == null )
+				at[q] = new BitSet();
+			if ( at[q].isEmpty() )
+				occupied[numOccupied++] = q;
+			at[q].or( versions[g] );
+		}
+	}
+	/**
+	 * Drop a run that has been merged into another one
+	 * @param g the index of the run
+	 */
+	private void removeState( int g )
+	{
+		BitSet temp = versions[g];
+		numStates--;
+		states[g] = states[numStates];
+		versions[g] = versions[numStates];
+		versions[numStates] = temp;
+	}
+	/**
+	 * Run the automaton over the pairs of an MVD
+	 * @param mvd the MVD to search
+	 */
+	void run( MVD mvd )
+	{
+		this.mvd = mvd;
+		this.offsets = new int[mvd.numVersions()+1];
+		for ( int i=0;i<mvd.pairs.size()&&numOccupied>0;i++ )
+		{
+			Pair p = mvd.pairs.get( i );
+			gather( p.versions );
+			if ( numStates == 0 )
+			{
+				PairIndex.pass( offsets, p );
+				continue;
+			}
+			char[] data = p.getChars();
+			for ( int j=0;j<data.length;j++ )
+			{
+				clock++;
+				for ( int g=0;g<numStates;g++ )
+				{
+					int q = step( states[g], data[j] );
+					if ( !report(q,versions[g],j) )
+						return;
+					q = settle( q );
+					if ( stamp[q] == clock )
+					{
+						versions[slot[q]].or( versions[g] );
+						removeState( g-- );
+					}
+					else
+					{
+						stamp[q] = clock;
+						slot[q] = g;
+						states[g] = q;
+					}
+				}
+			}
+			scatter();
+			PairIndex.pass( offsets, p );
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A positional index over the pairs of an MVD. For each version we
+ * record, in pair order, the indices of the pairs that belong to it
+ * and the offset within that version at which each one starts. A
+ * version offset can then be mapped to a pair index and an offset
+ * within that pair by binary search instead of by walking the pairs
+ * list. The table for each version is built only when first asked
+ * for and then kept as long as the index is. The MVD keeps one index
+ * for moving about within a few versions; searches that visit many
+ * versions make their own so that the tables go when they finish.
+ * The index is a snapshot: it must be thrown away whenever the pairs
+ * change.
+ */
+class PairIndex
+{
+	/** the pairs being indexed */
+	ArrayList<Pair> pairs;
+	/** per version: indices into pairs of that version's pairs */
+	int[][] indices;
+	/** per version: offset in the version where each pair starts */
+	int[][] starts;
+	/** offset in the whole MVD where each pair starts */
+	int[] mvdStarts;
+	/** length of each version, index = version id-1 */
+	int[] lengths;
+	/**
+	 * Create an empty index. Tables are filled in on demand.
+	 * @param pairs the pairs list of the MVD
+	 * @param numVersions the number of versions in the MVD
+	 */
+	PairIndex( ArrayList<Pair> pairs, int numVersions )
+	{
+		this.pairs = pairs;
+		this.indices = new int[numVersions+1][];
+		this.starts = new int[numVersions+1][];
+	}
+	/**
+	 * Build the tables for one version, counting its pairs in one pass 
+	 * and filling the tables in a second
+	 * @param u the version to build the tables for
+	 */
+	private void build( short u )
+	{
+		if ( u >= indices.length )
+		{
+			indices = Arrays.copyOf( indices, u+1 );
+			starts = Arrays.copyOf( starts, u+1 );
+		}
+		if ( indices[u] == null )
+		{
+			int count = 0;
+			for ( int i=0;i<pairs.size();i++ )
+				if ( pairs.get(i).contains(u) )
+					count++;
+			int[] index = new int[count];
+			int[] start = new int[count];
+			int pos = 0;
+			for ( int i=0,j=0;i<pairs.size();i++ )
+			{
+				Pair p = pairs.get( i );
+				if ( p.contains(u) )
+				{
+					index[j] = i;
+					start[j++] = pos;
+					pos += p.length();
+				}
+			}
+			indices[u] = index;
+			starts[u] = start;
+		}
+	}
+	/**
+	 * Move the running offsets of a pair's versions past it. Walking 
+	 * the pairs in order this gives the offset in each version at 
+	 * which its next pair starts, without building any tables.
+	 * @param offsets the offsets, indexed by version id
+	 * @param p the pair just passed
+	 */
+	static void pass( int[] offsets, Pair p )
+	{
+		int len = p.length();
+		VersionSet bs = p.versions;
+		for ( int v=bs.nextSetBit(0);v>=0&&v<offsets.length;
+			v=bs.nextSetBit(v+1) )
+			offsets[v] += len;
+	}
+	/**
+	 * Get the indices of all the pairs of a version in order
+	 * @param u the version
+	 * @return an array of pair indices - read only!
+	 */
+	int[] getPairs( short u )
+	{
+		build( u );
+		return indices[u];
+	}
+	/**
+	 * Get the offsets in a version where each of its pairs start
+	 * @param u the version
+	 * @return an array parallel to getPairs(u) - read only!
+	 */
+	int[] getStarts( short u )
+	{
+		build( u );
+		return starts[u];
+	}
+	/**
+	 * Get the offset in a version where one of its pairs starts
+	 * @param u the version
+	 * @param pairIndex the index of the pair in the MVD
+	 * @return the offset or -1 if the pair isn't in that version
+	 */
+	int getVersionStart( short u, int pairIndex )
+	{
+		build( u );
+		int k = Arrays.binarySearch( indices[u], pairIndex );
+		return ( k >= 0 )?starts[u][k]:-1;
+	}
+	/**
+	 * Get the lengths of all versions, computing them in one pass
+	 * @param numVersions the number of versions in the MVD
+	 * @return an array of lengths indexed by version id-1 - read only!
+	 */
+	int[] getVersionLengths( int numVersions )
+	{
+		if ( lengths == null || lengths.length != numVersions )
+		{
+			lengths = new int[numVersions];
+			for ( int i=0;i<pairs.size();i++ )
+			{
+				Pair p = pairs.get( i );
+				VersionSet bs = p.versions;
+				for ( int j=bs.nextSetBit(1);j>=0&&j<=numVersions;
+					j=bs.nextSetBit(j+1) ) 
+					lengths[j-1] += p.length();
+			}
+		}
+		return lengths;
+	}
+	/**
+	 * Get the index of the next pair intersecting with a version
+	 * @param pairIndex the index to start looking from
+	 * @param u the version to look for
+	 * @return the index of the next pair or Integer.MAX_VALUE if not found
+	 */
+	int next( int pairIndex, short u )
+	{
+		build( u );
+		int[] index = indices[u];
+		int k = Arrays.binarySearch( index, pairIndex );
+		if ( k < 0 )
+			k = -k-1;
+		return ( k < index.length )?index[k]:Integer.MAX_VALUE;
+	}
+	/**
+	 * Get the index of the previous pair intersecting with a
+	 * version. As in MVD.previous the first pair is never returned.
+	 * @param pairIndex the index to start looking from
+	 * @param u the version to look for
+	 * @return the index of the previous pair or -1 if not found
+	 */
+	int previous( int pairIndex, short u )
+	{
+		build( u );
+		int[] index = indices[u];
+		int k = Arrays.binarySearch( index, pairIndex );
+		if ( k < 0 )
+			k = -k-1;
+		// k is now the first entry >= pairIndex
+		k--;
+		return ( k >= 0 && index[k] > 0 )?index[k]:-1;
+	}
+	/**
+	 * Get the end-position of a range given a start position. The
+	 * result is the same as walking forward through the pairs of the
+	 * base version: a distance that falls exactly on the end of a
+	 * pair stays in that pair, and a distance past the end of the
+	 * version is clamped to the end of its last pair.
+	 * @param sPos the start position
+	 * @param distance the distance from sPos within its base
+	 * @return the pair pos for the end of the range or null if sPos
+	 * does not designate a pair of its base version
+	 */
+	PairPos getPairPos( PairPos sPos, int distance )
+	{
+		short base = sPos.getBase();
+		build( base );
+		int[] index = indices[base];
+		int[] start = starts[base];
+		int k = Arrays.binarySearch( index, sPos.getIndex() );
+		if ( k < 0 )
+			return null;
+		int target = start[k]+sPos.getPosition()+distance;
+		// find the first pair from k on whose end is >= target
+		int lo = k;
+		int hi = index.length-1;
+		if ( end(base,hi) < target )
+			return new PairPos( index[hi], pairs.get(index[hi]).length(),
+				base );
+		while ( lo < hi )
+		{
+			int mid = (lo+hi)>>>1;
+			if ( end(base,mid) < target )
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return new PairPos( index[lo], target-start[lo], base );
+	}
+	/**
+	 * Get the offset in a version where one of its pairs ends
+	 * @param u the version
+	 * @param k the ordinal of the pair within the version
+	 * @return the end offset of that pair
+	 */
+	private int end( short u, int k )
+	{
+		return starts[u][k]+pairs.get(indices[u][k]).length();
+	}
+	/**
+	 * Find the pair containing a position within the whole MVD,
+	 * i.e. counting the data of all pairs in order
+	 * @param mvdPos the position in the whole MVD
+	 * @return the pair index or -1 if mvdPos is past the end
+	 */
+	int getMvdPair( int mvdPos )
+	{
+		if ( mvdStarts == null )
+		{
+			mvdStarts = new int[pairs.size()+1];
+			for ( int i=0;i<pairs.size();i++ )
+				mvdStarts[i+1] = mvdStarts[i]+pairs.get(i).length();
+		}
+		// first pair whose end is > mvdPos
+		int lo = 1;
+		int hi = mvdStarts.length;
+		while ( lo < hi )
+		{
+			int mid = (lo+hi)>>>1;
+			if ( mvdStarts[mid] <= mvdPos )
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return ( lo < mvdStarts.length )?lo-1:-1;
+	}
+	/**
+	 * Get the offset in the whole MVD where a pair starts
+	 * @param pairIndex the index of the pair
+	 * @return its starting position
+	 */
+	int getMvdStart( int pairIndex )
+	{
+		if ( mvdStarts == null )
+			getMvdPair( 0 );
+		return mvdStarts[pairIndex];
+	}
+}
@@ -0,0 +1,456 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Regular expression search of all the versions of an MVD at once.
+ * The expression is simulated as an NFA over the pairs. A thread is
+ * an NFA state together with where its match began, given as a pair
+ * and an offset in it so that it means the same in every version
+ * that has the pair. Matches are leftmost-longest and don't overlap,
+ * as a DFA-based matcher would find them, and empty matches are not
+ * reported. As in the other searches a run of the automaton is shared
+ * by all the versions in the same state and runs that end a pair in
+ * the same state are merged.
+ * <p>Until a match is known to be the longest the threads that could
+ * start the next one have to be kept apart from those that could
+ * still extend or replace it. So the threads of a run are divided
+ * into segments in order of their starts. Each segment keeps only the
+ * earliest-starting thread in each NFA state and, once some thread
+ * in it has accepted, the leftmost longest match found so far. The
+ * first segment's match is reported once none of its threads is
+ * left, and a match in a segment discards all the later ones, since
+ * they overlap it.</p>
+ * @author Desmond Schmidt
+ */
+class RegexAutomaton
+{
+	/** the compiled expression */
+	RegexNFA nfa;
+	/** versions left in each state by their last pair */
+	HashMap<Run,Run> waiting;
+	/** the runs going through the current pair */
+	ArrayList<Run> runs;
+	/** the matches found */
+	ArrayList<Match> found;
+	/** the MVD being searched */
+	MVD mvd;
+	/** its positional index, for working out match offsets */
+	PairIndex pi;
+	/** the step in which each NFA state was last added */
+	int[] mark;
+	/** counts the steps */
+	int clock;
+	/** states of the threads made by the current step */
+	int[] nextStates;
+	/** starts of the threads made by the current step */
+	long[] nextStarts;
+	/** the number of threads made by the current step */
+	int numNext;
+	/** states waiting to be followed during an epsilon closure */
+	int[] stack;
+	/**
+	 * The threads of a run that started between two matches
+	 */
+	static class Segment
+	{
+		/** the NFA state of each thread */
+		int[] states;
+		/** where each thread started, in increasing order */
+		long[] starts;
+		/** the number of threads */
+		int n;
+		/** the start of the match found so far, or -1 */
+		long matchStart = -1;
+		/** the end of the match found so far */
+		long matchEnd = -1;
+		/**
+		 * Make an empty segment
+		 * @param size the number of NFA states
+		 */
+		Segment( int size )
+		{
+			states = new int[size];
+			starts = new long[size];
+		}
+		/**
+		 * Copy a segment
+		 * @return a copy that can be changed independently
+		 */
+		Segment copy()
+		{
+			Segment s = new Segment( states.length );
+			System.arraycopy( states, 0, s.states, 0, n );
+			System.arraycopy( starts, 0, s.starts, 0, n );
+			s.n = n;
+			s.matchStart = matchStart;
+			s.matchEnd = matchEnd;
+			return s;
+		}
+		/**
+		 * Segments are equal if their threads and matches are
+		 * @param other the other segment
+		 * @return true if they are the same
+		 */
+		public boolean equals( Object other )
+		{
+			if ( !(other instanceof Segment) )
+				return false;
+			Segment s = (Segment)other;
+			if ( n != s.n || matchStart != s.matchStart
+				|| matchEnd != s.matchEnd )
+				return false;
+			for ( int t=0;t<n;t++ )
+				if ( states[t] != s.states[t] || starts[t] != s.starts[t] )
+					return false;
+			return true;
+		}
+		/**
+		 * Hash the threads and match
+		 * @return a hash code
+		 */
+		public int hashCode()
+		{
+			long h = matchStart*31+matchEnd;
+			for ( int t=0;t<n;t++ )
+				h = 31*(31*h+states[t])+starts[t];
+			return (int)(h^(h>>>32));
+		}
+	}
+	/**
+	 * The state of a group of versions
+	 */
+	static class Run
+	{
+		/** the segments in order of their starts */
+		ArrayList<Segment> segments;
+		/** the versions in this state */
+		BitSet versions;
+		/**
+		 * Make a run
+		 * @param segments its segments
+		 * @param versions the versions in this state
+		 */
+		Run( ArrayList<Segment> segments, BitSet versions )
+		{
+			this.segments = segments;
+			this.versions = versions;
+		}
+		/**
+		 * Runs are equal if their states are
+		 * @param other the other run
+		 * @return true if it has the same segments
+		 */
+		public boolean equals( Object other )
+		{
+			return other instanceof Run
+				&& segments.equals( ((Run)other).segments );
+		}
+		/**
+		 * Hash the state only
+		 * @return a hash of the segments
+		 */
+		public int hashCode()
+		{
+			return segments.hashCode();
+		}
+	}
+	/**
+	 * Set up the automaton with all versions waiting to start
+	 * @param nfa the compiled expression
+	 * @param bs the versions to search
+	 */
+	RegexAutomaton( RegexNFA nfa, BitSet bs )
+	{
+		this.nfa = nfa;
+		int size = nfa.numStates;
+		mark = new int[size];
+		nextStates = new int[size];
+		nextStarts = new long[size];
+		stack = new int[size*2+1];
+		waiting = new HashMap<Run,Run>();
+		if ( !bs.isEmpty() )
+		{
+			BitSet start = new BitSet();
+			start.or( bs );
+			Run r = new Run( new ArrayList<Segment>(), start );
+			waiting.put( r, r );
+		}
+		runs = new ArrayList<Run>();
+		found = new ArrayList<Match>();
+	}
+	/**
+	 * Add the threads reached by epsilon moves from a state to those
+	 * of the current step, unless they are already there
+	 * @param s the state
+	 * @param start where the thread started
+	 * @param accept false if accepting threads are to be left out
+	 */
+	private void addClosure( int s, long start, boolean accept )
+	{
+		int top = 0;
+		stack[top++] = s;
+		while ( top > 0 )
+		{
+			s = stack[--top];
+			if ( mark[s] == clock )
+				continue;
+			mark[s] = clock;
+			if ( nfa.type[s] == RegexNFA.SPLIT )
+			{
+				stack[top++] = nfa.out2[s];
+				stack[top++] = nfa.out1[s];
+			}
+			else if ( accept || nfa.type[s] != RegexNFA.ACCEPT )
+			{
+				nextStates[numNext] = s;
+				nextStarts[numNext++] = start;
+			}
+		}
+	}
+	/**
+	 * Replace the threads of a segment with those of the current step
+	 * @param seg the segment
+	 */
+	private void keep( Segment seg )
+	{
+		System.arraycopy( nextStates, 0, seg.states, 0, numNext );
+		System.arraycopy( nextStarts, 0, seg.starts, 0, numNext );
+		seg.n = numNext;
+	}
+	/**
+	 * Start a thread at a position, in the last segment unless that
+	 * already has a match
+	 * @param r the run
+	 * @param pos the position of the next character
+	 */
+	private void seed( Run r, long pos )
+	{
+		ArrayList<Segment> segs = r.segments;
+		Segment last = ( segs.isEmpty() ) ? null : segs.get( segs.size()-1 );
+		if ( last == null || last.matchStart != -1 )
+		{
+			last = new Segment( nfa.numStates );
+			segs.add( last );
+		}
+		clock++;
+		numNext = 0;
+		for ( int t=0;t<last.n;t++ )
+		{
+			mark[last.states[t]] = clock;
+			nextStates[numNext] = last.states[t];
+			nextStarts[numNext++] = last.starts[t];
+		}
+		addClosure( nfa.start, pos, false );
+		keep( last );
+	}
+	/**
+	 * Move the threads of a segment on by one character. Threads are
+	 * taken in order of their starts so the earliest one to reach a
+	 * state is the one kept.
+	 * @param seg the segment
+	 * @param c the character read
+	 */
+	private void step( Segment seg, char c )
+	{
+		clock++;
+		numNext = 0;
+		for ( int t=0;t<seg.n;t++ )
+		{
+			int s = seg.states[t];
+			if ( nfa.type[s] == RegexNFA.CHAR && nfa.matches(s,c) )
+				addClosure( nfa.out1[s], seg.starts[t], true );
+		}
+		keep( seg );
+	}
+	/**
+	 * Remove the threads of a segment that start after a position
+	 * @param seg the segment
+	 * @param start the latest start to keep
+	 */
+	private void dropAfter( Segment seg, long start )
+	{
+		int n = 0;
+		for ( int t=0;t<seg.n;t++ )
+		{
+			if ( seg.starts[t] <= start )
+			{
+				seg.states[n] = seg.states[t];
+				seg.starts[n++] = seg.starts[t];
+			}
+		}
+		seg.n = n;
+	}
+	/**
+	 * Move a run on by one character
+	 * @param r the run
+	 * @param c the character
+	 * @param pos its position as pair index and offset
+	 */
+	private void advance( Run r, char c, long pos )
+	{
+		ArrayList<Segment> segs = r.segments;
+		seed( r, pos );
+		for ( int k=0;k<segs.size();k++ )
+		{
+			Segment seg = segs.get( k );
+			step( seg, c );
+			long first = -1;
+			int n = 0;
+			for ( int t=0;t<seg.n;t++ )
+			{
+				if ( nfa.type[seg.states[t]] == RegexNFA.ACCEPT )
+				{
+					if ( first == -1 || seg.starts[t] < first )
+						first = seg.starts[t];
+				}
+				else
+				{
+					seg.states[n] = seg.states[t];
+					seg.starts[n++] = seg.starts[t];
+				}
+			}
+			seg.n = n;
+			if ( first != -1 )
+			{
+				if ( seg.matchStart == -1 || first < seg.matchStart )
+					seg.matchStart = first;
+				seg.matchEnd = pos;
+				dropAfter( seg, seg.matchStart );
+				while ( segs.size() > k+1 )
+					segs.remove( segs.size()-1 );
+			}
+		}
+		for ( int k=0;k<segs.size();k++ )
+			if ( segs.get(k).n == 0 && segs.get(k).matchStart == -1 )
+				segs.remove( k-- );
+		while ( !segs.isEmpty() && segs.get(0).n == 0 )
+			report( r, segs.remove(0) );
+	}
+	/**
+	 * Record the match of a segment in each version of a run
+	 * @param r the run
+	 * @param seg a segment with a match
+	 */
+	private void report( Run r, Segment seg )
+	{
+		BitSet bs = r.versions;
+		for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+		{
+			int start = getOffset( v, seg.matchStart );
+			int end = getOffset( v, seg.matchEnd );
+			found.add( new Match((short)v, start, end+1-start,
+				mvd.getVersionShortName(v), ChunkState.found) );
+		}
+	}
+	/**
+	 * Convert a position in the MVD to an offset in a version
+	 * @param v the version
+	 * @param pos the pair index in the top half and offset below
+	 * @return the offset in v
+	 */
+	private int getOffset( int v, long pos )
+	{
+		return pi.getVersionStart((short)v,(int)(pos>>>32))+(int)pos;
+	}
+	/**
+	 * Take the versions of a pair away from the states they are
+	 * waiting in and make a run of each state
+	 * @param pv the versions of the pair
+	 */
+	private void gather( VersionSet pv )
+	{
+		runs.clear();
+		Iterator<Run> iter = waiting.values().iterator();
+		while ( iter.hasNext() )
+		{
+			Run w = iter.next();
+			if ( pv.intersects(w.versions) )
+			{
+				BitSet bs = new BitSet();
+				bs.or( w.versions );
+				pv.retainIn( bs );
+				pv.removeFrom( w.versions );
+				ArrayList<Segment> segs = new ArrayList<Segment>();
+				for ( int k=0;k<w.segments.size();k++ )
+					segs.add( w.segments.get(k).copy() );
+				runs.add( new Run(segs,bs) );
+				if ( w.versions.isEmpty() )
+					iter.remove();
+			}
+		}
+	}
+	/**
+	 * Leave the versions of the runs waiting where they got to,
+	 * merging those that ended up in the same state
+	 */
+	private void scatter()
+	{
+		for ( int g=0;g<runs.size();g++ )
+		{
+			Run r = runs.get( g );
+			Run w = waiting.get( r );
+			if ( w == null )
+				waiting.put( r, r );
+			else
+				w.versions.or( r.versions );
+		}
+	}
+	/**
+	 * Search the pairs of an MVD
+	 * @param mvd the MVD
+	 * @return the matches in order of version and then of offset
+	 */
+	Match[] search( MVD mvd )
+	{
+		this.mvd = mvd;
+		this.pi = mvd.newPairIndex();
+		for ( int i=0;i<mvd.pairs.size();i++ )
+		{
+			Pair p = mvd.pairs.get( i );
+			gather( p.versions );
+			if ( runs.isEmpty() )
+				continue;
+			char[] data = p.getChars();
+			for ( int j=0;j<data.length;j++ )
+			{
+				long pos = ((long)i<<32)|j;
+				for ( int g=0;g<runs.size();g++ )
+					advance( runs.get(g), data[j], pos );
+			}
+			scatter();
+		}
+		// at the end of the text every match still held is final
+		for ( Run r : waiting.values() )
+			for ( int k=0;k<r.segments.size();k++ )
+				if ( r.segments.get(k).matchStart != -1 )
+					report( r, r.segments.get(k) );
+		Match.sort( found );
+		Match[] result = new Match[found.size()];
+		found.toArray( result );
+		return result;
+	}
+}
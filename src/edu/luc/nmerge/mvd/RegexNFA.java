@@ -0,0 +1,537 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import edu.luc.nmerge.exception.MVDException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A regular expression compiled to a Thompson NFA. States either read
+ * one character from a set of ranges, split into two epsilon moves
+ * or accept. Supported are literals, the escapes \d \D \w \W \s
+ * \S \t \n \r \f, unicode escapes, escaped punctuation, '.',
+ * character classes with ranges and negation, groups (capturing or
+ * not, though nothing is captured), alternation and the greedy
+ * quantifiers *, +, ? and {m,n}. Anchors, back-references, lookaround
+ * and lazy or possessive quantifiers are not.
+ * @author Desmond Schmidt
+ */
+class RegexNFA
+{
+	/** state that reads a character */
+	static final int CHAR = 0;
+	/** state with two epsilon moves */
+	static final int SPLIT = 1;
+	/** the final state */
+	static final int ACCEPT = 2;
+	/** the most states a compiled expression may have */
+	static final int MAX_STATES = 10000;
+	/** the kind of each state */
+	int[] type;
+	/** the next state, or the first epsilon move of a split */
+	int[] out1;
+	/** the second epsilon move of a split */
+	int[] out2;
+	/** the inclusive character ranges read by each CHAR state, as
+	 * sorted pairs of low and high bounds */
+	int[][] ranges;
+	/** the number of states */
+	int numStates;
+	/** the start state */
+	int start;
+	/** the expression being parsed */
+	String regex;
+	/** the position of the parser in regex */
+	int pos;
+	/**
+	 * A node of the parsed expression
+	 */
+	static class Node
+	{
+		/** reads one character from a set */
+		static final int SET = 0;
+		/** its children one after the other */
+		static final int CONCAT = 1;
+		/** any one of its children */
+		static final int ALT = 2;
+		/** its only child min to max times */
+		static final int REPEAT = 3;
+		/** which of the above this is */
+		int kind;
+		/** sub-expressions of CONCAT, ALT and REPEAT */
+		ArrayList<Node> children;
+		/** characters of a SET */
+		int[] ranges;
+		/** least number of repeats */
+		int min;
+		/** most repeats or -1 for no limit */
+		int max;
+		/**
+		 * Make a node
+		 * @param kind its kind
+		 */
+		Node( int kind )
+		{
+			this.kind = kind;
+			this.children = new ArrayList<Node>();
+		}
+	}
+	/**
+	 * Parse and compile an expression
+	 * @param regex the regular expression
+	 * @throws MVDException if it is malformed or uses unsupported syntax
+	 */
+	RegexNFA( String regex ) throws MVDException
+	{
+		this.regex = regex;
+		type = new int[16];
+		out1 = new int[16];
+		out2 = new int[16];
+		ranges = new int[16][];
+		Node root = parseAlternation();
+		if ( pos < regex.length() )
+			throw error( "unmatched )" );
+		int accept = newState( ACCEPT, -1, -1, null );
+		start = compile( root, accept );
+	}
+	/**
+	 * Make the exception for a syntax error
+	 * @param message what went wrong
+	 * @return an exception saying what and where, for the caller to throw
+	 */
+	private MVDException error( String message )
+	{
+		return new MVDException( "Regular expression "+regex+": "+message
+			+" at "+pos );
+	}
+	/**
+	 * Is the next character of the expression a given one?
+	 * @param c the character to look for
+	 * @return true if it is there
+	 */
+	private boolean peek( char c )
+	{
+		return pos < regex.length() && regex.charAt(pos) == c;
+	}
+	/**
+	 * Parse alternatives separated by |
+	 * @return the parsed node
+	 * @throws MVDException if the expression is malformed
+	 */
+	private Node parseAlternation() throws MVDException
+	{
+		Node alt = new Node( Node.ALT );
+		alt.children.add( parseConcatenation() );
+		while ( peek('|') )
+		{
+			pos++;
+			alt.children.add( parseConcatenation() );
+		}
+		return ( alt.children.size() == 1 ) ? alt.children.get(0) : alt;
+	}
+	/**
+	 * Parse a sequence of repeated atoms
+	 * @return the parsed node
+	 * @throws MVDException if the expression is malformed
+	 */
+	private Node parseConcatenation() throws MVDException
+	{
+		Node concat = new Node( Node.CONCAT );
+		while ( pos < regex.length() && !peek('|') && !peek(')') )
+			concat.children.add( parseRepeat() );
+		return concat;
+	}
+	/**
+	 * Parse an atom and any quantifiers after it
+	 * @return the parsed node
+	 * @throws MVDException if the expression is malformed
+	 */
+	private Node parseRepeat() throws MVDException
+	{
+		Node node = parseAtom();
+		while ( pos < regex.length() )
+		{
+			int min, max;
+			char c = regex.charAt( pos );
+			if ( c == '*' )
+			{
+				min = 0;
+				max = -1;
+				pos++;
+			}
+			else if ( c == '+' )
+			{
+				min = 1;
+				max = -1;
+				pos++;
+			}
+			else if ( c == '?' )
+			{
+				min = 0;
+				max = 1;
+				pos++;
+			}
+			else if ( c == '{' )
+			{
+				pos++;
+				min = max = parseNumber();
+				if ( peek(',') )
+				{
+					pos++;
+					max = ( peek('}') ) ? -1 : parseNumber();
+				}
+				if ( !peek('}') )
+					throw error( "expected }" );
+				pos++;
+				if ( max != -1 && max < min )
+					throw error( "bad repeat count" );
+			}
+			else
+				break;
+			if ( peek('?') || peek('+') )
+				throw error( "lazy and possessive quantifiers are not supported" );
+			Node repeat = new Node( Node.REPEAT );
+			repeat.children.add( node );
+			repeat.min = min;
+			repeat.max = max;
+			node = repeat;
+		}
+		return node;
+	}
+	/**
+	 * Parse a decimal number
+	 * @return its value
+	 * @throws MVDException if there are no digits
+	 */
+	private int parseNumber() throws MVDException
+	{
+		int start = pos;
+		while ( pos < regex.length() && Character.isDigit(regex.charAt(pos))
+			&& pos-start < 5 )
+			pos++;
+		if ( pos == start )
+			throw error( "expected a number" );
+		return Integer.parseInt( regex.substring(start,pos) );
+	}
+	/**
+	 * Parse a group, a character class, a dot, an escape or a literal
+	 * @return the parsed node
+	 * @throws MVDException if the expression is malformed
+	 */
+	private Node parseAtom() throws MVDException
+	{
+		char c = regex.charAt( pos++ );
+		switch ( c )
+		{
+			case '(':
+				if ( peek('?') )
+				{
+					if ( pos+1 < regex.length() && regex.charAt(pos+1) == ':' )
+						pos += 2;
+					else
+						throw error( "only (?: groups are supported" );
+				}
+				Node group = parseAlternation();
+				if ( !peek(')') )
+					throw error( "expected )" );
+				pos++;
+				return group;
+			case '[':
+				return makeSet( parseClass() );
+			case '.':
+				return makeSet( complement(new int[]{'\n','\n','\r','\r'}) );
+			case '\\':
+				return makeSet( parseEscape() );
+			case '^': case '$':
+				throw error( "anchors are not supported" );
+			case '*': case '+': case '?': case '{':
+				throw error( "nothing to repeat" );
+			default:
+				return makeSet( new int[]{c,c} );
+		}
+	}
+	/**
+	 * Make a node that reads a set of characters
+	 * @param ranges the set as sorted pairs of bounds
+	 * @return the node
+	 */
+	private Node makeSet( int[] ranges )
+	{
+		Node set = new Node( Node.SET );
+		set.ranges = ranges;
+		return set;
+	}
+	/**
+	 * Parse the contents of a character class after its [
+	 * @return the characters it matches as sorted pairs of bounds
+	 * @throws MVDException if the class is malformed
+	 */
+	private int[] parseClass() throws MVDException
+	{
+		boolean negated = peek( '^' );
+		if ( negated )
+			pos++;
+		ArrayList<int[]> parts = new ArrayList<int[]>();
+		boolean first = true;
+		while ( pos < regex.length() && (first || !peek(']')) )
+		{
+			char c = regex.charAt( pos++ );
+			first = false;
+			if ( c == '\\' )
+			{
+				int[] set = parseEscape();
+				if ( set.length > 2 || set[0] != set[1] || !peek('-') )
+				{
+					parts.add( set );
+					continue;
+				}
+				c = (char)set[0];
+			}
+			else if ( c == '[' )
+				throw error( "nested classes are not supported" );
+			if ( peek('-') && pos+1 < regex.length()
+				&& regex.charAt(pos+1) != ']' )
+			{
+				pos++;
+				char d = regex.charAt( pos++ );
+				if ( d == '\\' )
+				{
+					int[] set = parseEscape();
+					if ( set.length > 2 || set[0] != set[1] )
+						throw error( "bad range" );
+					d = (char)set[0];
+				}
+				if ( d < c )
+					throw error( "bad range" );
+				parts.add( new int[]{c,d} );
+			}
+			else
+				parts.add( new int[]{c,c} );
+		}
+		if ( !peek(']') )
+			throw error( "expected ]" );
+		pos++;
+		int[] set = union( parts );
+		return ( negated ) ? complement( set ) : set;
+	}
+	/**
+	 * Parse an escape after its backslash
+	 * @return the characters it matches as sorted pairs of bounds
+	 * @throws MVDException if the escape is unknown
+	 */
+	private int[] parseEscape() throws MVDException
+	{
+		if ( pos >= regex.length() )
+			throw error( "trailing backslash" );
+		char c = regex.charAt( pos++ );
+		switch ( c )
+		{
+			case 'd':
+				return new int[]{'0','9'};
+			case 'D':
+				return complement( new int[]{'0','9'} );
+			case 'w':
+				return new int[]{'0','9','A','Z','_','_','a','z'};
+			case 'W':
+				return complement( new int[]{'0','9','A','Z','_','_','a','z'} );
+			case 's':
+				return new int[]{'\t','\r',' ',' '};
+			case 'S':
+				return complement( new int[]{'\t','\r',' ',' '} );
+			case 't':
+				return new int[]{'\t','\t'};
+			case 'n':
+				return new int[]{'\n','\n'};
+			case 'r':
+				return new int[]{'\r','\r'};
+			case 'f':
+				return new int[]{'\f','\f'};
+			case 'u':
+				if ( pos+4 > regex.length() )
+					throw error( "bad unicode escape" );
+				try
+				{
+					int u = Integer.parseInt( regex.substring(pos,pos+4), 16 );
+					pos += 4;
+					return new int[]{u,u};
+				}
+				catch ( NumberFormatException e )
+				{
+					throw error( "bad unicode escape" );
+				}
+			default:
+				if ( Character.isLetterOrDigit(c) )
+					throw error( "unsupported escape \\"+c );
+				return new int[]{c,c};
+		}
+	}
+	/**
+	 * Combine sets of characters
+	 * @param parts sets as sorted pairs of bounds
+	 * @return their union as sorted, disjoint pairs of bounds
+	 */
+	private static int[] union( ArrayList<int[]> parts )
+	{
+		ArrayList<int[]> all = new ArrayList<int[]>();
+		for ( int[] part : parts )
+			for ( int i=0;i<part.length;i+=2 )
+				all.add( new int[]{part[i],part[i+1]} );
+		int[][] sorted = all.toArray( new int[all.size()][] );
+		Arrays.sort( sorted, new java.util.Comparator<int[]>() {
+			public int compare( int[] a, int[] b )
+			{
+				return a[0]-b[0];
+			}
+		});
+		int[] set = new int[sorted.length*2];
+		int n = 0;
+		for ( int i=0;i<sorted.length;i++ )
+		{
+			if ( n > 0 && sorted[i][0] <= set[n-1]+1 )
+				set[n-1] = Math.max( set[n-1], sorted[i][1] );
+			else
+			{
+				set[n++] = sorted[i][0];
+				set[n++] = sorted[i][1];
+			}
+		}
+		return Arrays.copyOf( set, n );
+	}
+	/**
+	 * Get all the characters not in a set
+	 * @param set sorted, disjoint pairs of bounds
+	 * @return the complement in the same form
+	 */
+	private static int[] complement( int[] set )
+	{
+		int[] comp = new int[set.length+2];
+		int n = 0, next = 0;
+		for ( int i=0;i<set.length;i+=2 )
+		{
+			if ( set[i] > next )
+			{
+				comp[n++] = next;
+				comp[n++] = set[i]-1;
+			}
+			next = set[i+1]+1;
+		}
+		if ( next <= Character.MAX_VALUE )
+		{
+			comp[n++] = next;
+			comp[n++] = Character.MAX_VALUE;
+		}
+		return Arrays.copyOf( comp, n );
+	}
+	/**
+	 * Add a state
+	 * @param kind CHAR, SPLIT or ACCEPT
+	 * @param next the next state or first epsilon move
+	 * @param alt the second epsilon move
+	 * @param set the characters a CHAR state reads
+	 * @return the new state
+	 * @throws MVDException if there are too many states
+	 */
+	private int newState( int kind, int next, int alt, int[] set )
+		throws MVDException
+	{
+		if ( numStates == MAX_STATES )
+			throw new MVDException( "Regular expression "+regex
+				+" is too large" );
+		if ( numStates == type.length )
+		{
+			int size = numStates*2;
+			type = Arrays.copyOf( type, size );
+			out1 = Arrays.copyOf( out1, size );
+			out2 = Arrays.copyOf( out2, size );
+			ranges = Arrays.copyOf( ranges, size );
+		}
+		type[numStates] = kind;
+		out1[numStates] = next;
+		out2[numStates] = alt;
+		ranges[numStates] = set;
+		return numStates++;
+	}
+	/**
+	 * Compile a node so that it leads on to a given state
+	 * @param node the node
+	 * @param next the state to go to after it
+	 * @return the state to enter it by
+	 * @throws MVDException if there are too many states
+	 */
+	private int compile( Node node, int next ) throws MVDException
+	{
+		int s = next;
+		switch ( node.kind )
+		{
+			case Node.SET:
+				return newState( CHAR, next, -1, node.ranges );
+			case Node.CONCAT:
+				for ( int i=node.children.size()-1;i>=0;i-- )
+					s = compile( node.children.get(i), s );
+				return s;
+			case Node.ALT:
+				s = compile( node.children.get(node.children.size()-1), next );
+				for ( int i=node.children.size()-2;i>=0;i-- )
+					s = newState( SPLIT, compile(node.children.get(i),next), s,
+						null );
+				return s;
+			default:
+				Node body = node.children.get( 0 );
+				if ( node.max == -1 )
+				{
+					s = newState( SPLIT, -1, next, null );
+					out1[s] = compile( body, s );
+				}
+				else
+				{
+					for ( int i=node.min;i<node.max;i++ )
+						s = newState( SPLIT, compile(body,s), next, null );
+				}
+				for ( int i=0;i<node.min;i++ )
+					s = compile( body, s );
+				return s;
+		}
+	}
+	/**
+	 * Does a CHAR state read a character?
+	 * @param s the state
+	 * @param c the character
+	 * @return true if c is in its set
+	 */
+	boolean matches( int s, char c )
+	{
+		int[] set = ranges[s];
+		int bottom = 0;
+		int top = set.length/2-1;
+		while ( bottom <= top )
+		{
+			int middle = (bottom+top)>>>1;
+			if ( c < set[middle*2] )
+				top = middle-1;
+			else if ( c > set[middle*2+1] )
+				bottom = middle+1;
+			else
+				return true;
+		}
+		return false;
+	}
+}
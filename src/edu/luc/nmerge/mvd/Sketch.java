@@ -0,0 +1,114 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.Arrays;
+
+/**
+ * A small fixed-size summary of a text used to estimate how alike
+ * two texts are without aligning them. We hash every k-mer of the
+ * text and keep only the smallest distinct hashes (a bottom-k
+ * MinHash). The proportion of shared hashes among the smallest of
+ * both sketches estimates the Jaccard similarity of their k-mer sets.
+ * @author Desmond Schmidt
+ */
+public class Sketch
+{
+	/** length of the substrings compared */
+	static final int KMER_LEN = 8;
+	/** maximum number of hashes kept */
+	static final int SKETCH_SIZE = 512;
+	/** the smallest distinct k-mer hashes in increasing order */
+	int[] hashes;
+	/**
+	 * Sketch a text
+	 * @param text the text of a version
+	 */
+	public Sketch( char[] text )
+	{
+		int n = text.length-KMER_LEN+1;
+		if ( n <= 0 )
+			hashes = new int[0];
+		else
+		{
+			int[] all = new int[n];
+			for ( int i=0;i<n;i++ )
+			{
+				int h = 0;
+				for ( int j=0;j<KMER_LEN;j++ )
+					h = 31*h+text[i+j];
+				all[i] = mix( h );
+			}
+			Arrays.sort( all );
+			int size = 0;
+			for ( int i=0;i<n&&size<SKETCH_SIZE;i++ )
+				if ( size == 0 || all[i] != all[size-1] )
+					all[size++] = all[i];
+			hashes = Arrays.copyOf( all, size );
+		}
+	}
+	/**
+	 * Scramble a k-mer hash so that the smallest values are a
+	 * random sample of the k-mers
+	 * @param h the raw hash
+	 * @return the mixed hash
+	 */
+	private static int mix( int h )
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+	/**
+	 * Estimate the distance between two texts
+	 * @param other the sketch of the other text
+	 * @return 0.0 if they look identical up to 1.0 if they share nothing
+	 */
+	public double distance( Sketch other )
+	{
+		int i = 0, j = 0, union = 0, shared = 0;
+		int limit = Math.min( SKETCH_SIZE,
+			Math.max(hashes.length,other.hashes.length) );
+		while ( union < limit && i < hashes.length
+			&& j < other.hashes.length )
+		{
+			if ( hashes[i] < other.hashes[j] )
+				i++;
+			else if ( hashes[i] > other.hashes[j] )
+				j++;
+			else
+			{
+				shared++;
+				i++;
+				j++;
+			}
+			union++;
+		}
+		if ( limit == 0 )
+			return 0.0;
+		union += Math.min( limit-union,
+			(hashes.length-i)+(other.hashes.length-j) );
+		return 1.0-((double)shared/(double)union);
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The set of versions of a pair. Most MVDs have fewer than 64 versions
+ * so the set is usually held in one long, and only in an array of them
+ * if it has a version of 64 or more. It can't be changed once made, so
+ * pairs with the same versions can share one. Its queries work on whole
+ * words where they can, and otherwise follow those of BitSet, whose
+ * hash code and string form it also keeps.
+ * @author Desmond Schmidt
+ */
+public final class VersionSet
+{
+	/** the versions if they are all below 64 */
+	private final long bits;
+	/** the versions in words, lowest first, or null if bits holds them */
+	private final long[] words;
+	/**
+	 * Make a set of the same versions as a BitSet
+	 * @param bs the versions, which are copied
+	 */
+	public VersionSet( BitSet bs )
+	{
+		int len = bs.length();
+		if ( len <= 64 )
+		{
+			long w = 0;
+			for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+				w |= 1L<<v;
+			bits = w;
+			words = null;
+		}
+		else
+		{
+			long[] w = new long[(len+63)/64];
+			for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+				w[v>>>6] |= 1L<<v;
+			bits = 0;
+			words = w;
+		}
+	}
+	/**
+	 * Get one of our words
+	 * @param i the index of the word
+	 * @return the word, or 0 if we don't have that many
+	 */
+	private long word( int i )
+	{
+		if ( words == null )
+			return ( i == 0 ) ? bits : 0;
+		else
+			return ( i < words.length ) ? words[i] : 0;
+	}
+	/**
+	 * Get the number of words we hold
+	 * @return 1 if all the versions are below 64
+	 */
+	private int numWords()
+	{
+		return ( words == null ) ? 1 : words.length;
+	}
+	/**
+	 * Is a version in the set?
+	 * @param v the version
+	 * @return true if it is
+	 */
+	public boolean get( int v )
+	{
+		return (word(v>>>6) & (1L<<v)) != 0;
+	}
+	/**
+	 * Get the first version in the set from a given one on
+	 * @param from the version to start from
+	 * @return the version or -1 if there are none from there on
+	 */
+	public int nextSetBit( int from )
+	{
+		if ( from < 0 )
+			throw new IndexOutOfBoundsException( "from < 0: "+from );
+		int i = from>>>6;
+		if ( i >= numWords() )
+			return -1;
+		long w = word(i) & (-1L<<from);
+		while ( w == 0 )
+		{
+			if ( ++i == numWords() )
+				return -1;
+			w = word( i );
+		}
+		return i*64+Long.numberOfTrailingZeros( w );
+	}
+	/**
+	 * Get the number of versions in the set
+	 * @return its size
+	 */
+	public int cardinality()
+	{
+		int sum = 0;
+		for ( int i=0;i<numWords();i++ )
+			sum += Long.bitCount( word(i) );
+		return sum;
+	}
+	/**
+	 * Is the set empty?
+	 * @return true if it has no versions
+	 */
+	public boolean isEmpty()
+	{
+		return words == null && bits == 0;
+	}
+	/**
+	 * Get one more than the highest version in the set
+	 * @return 0 if it is empty
+	 */
+	public int length()
+	{
+		int i = numWords()-1;
+		return i*64+64-Long.numberOfLeadingZeros( word(i) );
+	}
+	/**
+	 * Does this set have a version in common with another?
+	 * @param other the other set
+	 * @return true if they share a version
+	 */
+	public boolean intersects( VersionSet other )
+	{
+		int n = Math.min( numWords(), other.numWords() );
+		for ( int i=0;i<n;i++ )
+			if ( (word(i) & other.word(i)) != 0 )
+				return true;
+		return false;
+	}
+	/**
+	 * Does this set have a version in common with a BitSet?
+	 * @param bs the BitSet
+	 * @return true if they share a version
+	 */
+	public boolean intersects( BitSet bs )
+	{
+		for ( int v=nextSetBit(0);v>=0;v=nextSetBit(v+1) )
+			if ( bs.get(v) )
+				return true;
+		return false;
+	}
+	/**
+	 * Are all the versions of another set in this one?
+	 * @param other the other set
+	 * @return true if other is a subset of this
+	 */
+	public boolean contains( VersionSet other )
+	{
+		for ( int i=0;i<other.numWords();i++ )
+			if ( (other.word(i) & ~word(i)) != 0 )
+				return false;
+		return true;
+	}
+	/**
+	 * Get the set with one more version
+	 * @param v the version to add
+	 * @return a new set, or this one if v is already in it
+	 */
+	public VersionSet with( int v )
+	{
+		if ( get(v) )
+			return this;
+		BitSet bs = toBitSet();
+		bs.set( v );
+		return new VersionSet( bs );
+	}
+	/**
+	 * Copy the set into a BitSet that can be changed
+	 * @return a new BitSet of the same versions
+	 */
+	public BitSet toBitSet()
+	{
+		BitSet bs = new BitSet( numWords()*64 );
+		addTo( bs );
+		return bs;
+	}
+	/**
+	 * Add our versions to a BitSet, as bs.or would
+	 * @param bs the BitSet to add them to
+	 */
+	public void addTo( BitSet bs )
+	{
+		for ( int v=nextSetBit(0);v>=0;v=nextSetBit(v+1) )
+			bs.set( v );
+	}
+	/**
+	 * Take the versions not in this set out of a BitSet, as bs.and would
+	 * @param bs the BitSet to reduce
+	 */
+	public void retainIn( BitSet bs )
+	{
+		for ( int v=bs.nextSetBit(0);v>=0;v=bs.nextSetBit(v+1) )
+			if ( !get(v) )
+				bs.clear( v );
+	}
+	/**
+	 * Take our versions out of a BitSet, as bs.andNot would
+	 * @param bs the BitSet to reduce
+	 */
+	public void removeFrom( BitSet bs )
+	{
+		for ( int v=nextSetBit(0);v>=0;v=nextSetBit(v+1) )
+			bs.clear( v );
+	}
+	/**
+	 * Sets are equal if they have the same versions
+	 * @param other the other set
+	 * @return true if it is a VersionSet of the same versions
+	 */
+	public boolean equals( Object other )
+	{
+		if ( !(other instanceof VersionSet) )
+			return false;
+		VersionSet vs = (VersionSet)other;
+		if ( words == null )
+			return vs.words == null && bits == vs.bits;
+		else
+			return Arrays.equals( words, vs.words );
+	}
+	/**
+	 * Hash the set as a BitSet of the same versions would be
+	 * @return the hash code
+	 */
+	public int hashCode()
+	{
+		long h = 1234;
+		for ( int i=numWords();--i>=0; )
+			h ^= word(i)*(i+1);
+		return (int)((h>>32)^h);
+	}
+	/**
+	 * List the versions as a BitSet would
+	 * @return the versions in braces, separated by commas
+	 */
+	public String toString()
+	{
+		StringBuffer sb = new StringBuffer( "{" );
+		for ( int v=nextSetBit(0);v>=0;v=nextSetBit(v+1) )
+		{
+			if ( sb.length() > 1 )
+				sb.append( ", " );
+			sb.append( v );
+		}
+		sb.append( "}" );
+		return sb.toString();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ *  NMerge is Copyright 2009 Desmond Schmidt
+ *
+ *  This file is part of NMerge. NMerge is a Java library for merging
+ *  multiple versions into multi-version documents (MVDs), and for
+ *  reading, searching and comparing them.
+ *
+ *  NMerge is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  NMerge is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.luc.nmerge.mvd;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Share one VersionSet between all pairs with the same set of versions.
+ * An MVD typically has many more pairs than distinct version sets,
+ * so most pairs can point to a set owned by some other pair. Version
+ * sets can't be changed, so a pair's versions can only be changed by
+ * giving it a new set.
+ * @author Desmond Schmidt
+ */
+class VersionSetPool extends HashMap<VersionSet,VersionSet>
+{
+	/** required boilerplate */
+	static final long serialVersionUID = 1;
+	/**
+	 * Get the canonical instance of a version set
+	 * @param vs the set to look up
+	 * @return an equal set, vs itself if it was new
+	 */
+	VersionSet intern( VersionSet vs )
+	{
+		VersionSet canonical = get( vs );
+		if ( canonical == null )
+		{
+			canonical = vs;
+			put( canonical, canonical );
+		}
+		return canonical;
+	}
+	/**
+	 * Get the canonical instance of a set of versions
+	 * @param bs the versions to look up
+	 * @return an equal set, a new one if there was none
+	 */
+	VersionSet intern( BitSet bs )
+	{
+		return intern( new VersionSet(bs) );
+	}
+	/**
+	 * Make all pairs with equal version sets share the same set.
+	 * @param pairs the pairs to intern
+	 */
+	static void internAll( ArrayList<Pair> pairs )
+	{
+		VersionSetPool pool = new VersionSetPool();
+		for ( int i=0;i<pairs.size();i++ )
+		{
+			Pair p = pairs.get( i );
+			p.versions = pool.intern( p.versions );
+		}
+	}
+}